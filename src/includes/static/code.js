@@ -8,6 +8,8 @@ const SERVER_URL = "/api/";
 // Update timings. Map updating every second is a good balance of smoothness and not killing your CPU.
 const UPDATE_MAP_INTERVAL_MILLISEC = 1000;
 const QUERY_SERVER_TELEMETRY_INTERVAL_MILLISEC = 30000;
+const MAX_STREAM_FAILURES = 5; // Errors in a row before giving up on the stream and polling instead
+const STREAM_RETRY_INTERVAL_SEC = 60; // How long to poll for after giving up on the stream, before trying it again
 
 /////////////////////////////
 //      DATA STORAGE       //
@@ -22,6 +24,10 @@ var onMobile = window.matchMedia('screen and (max-width: 800px)').matches;
 var firstVisit = false;
 var selectedTrackID = "";
 var lastQueryTime = moment();
+var lastSequence = null; // Server's track table sequence number as of the last query, so updates only need to include changes since
+var eventSource = null; // Stream of changes pushed by the server, if connected. While it is, there is no need to poll for updates.
+var streamFailures = 0; // Errors from the stream since it last delivered anything
+var streamRetryTime = null; // Time after which to try the stream again, having given up on it
 
 
 ///////////////////////////////
@@ -79,6 +85,7 @@ function fetchDataFirst() {
     success: async function(result) {
       showServerOffline(false);
       handleDataFirst(result);
+      openStream();
     },
     error: function() {
       showServerOffline(true);
@@ -102,16 +109,22 @@ function fetchDataUpdate() {
     fetchTelemetry();
     return;
 
-  } else if (moment().diff(lastQueryTime, 'seconds') >= queryInterval) {
-    // Time for a real update call
+  } else if ((eventSource == null || eventSource.readyState !== EventSource.OPEN) && moment().diff(lastQueryTime, 'seconds') >= queryInterval) {
+    // Time for a real update call, as the server isn't streaming them to us,
+    // or the stream is reconnecting
     showLoadingIndicator(true);
     $.ajax({
-      url: SERVER_URL + "update",
+      url: SERVER_URL + "update" + (lastSequence != null ? "?since=" + lastSequence : ""),
       dataType: 'json',
       timeout: 5000,
       success: async function(result) {
         showServerOffline(false)
         handleDataUpdate(result);
+        // Having given up on the stream, try it again once the server is
+        // answering and it's been a while
+        if (eventSource == null && streamRetryTime != null && moment().isAfter(streamRetryTime)) {
+          openStream();
+        }
       },
       error: function() {
         showServerOffline(true);
@@ -126,6 +139,53 @@ function fetchDataUpdate() {
   }
 }
 
+// Open a stream from the server, which will push us changes as they happen
+// instead of us polling for them. If the browser can't do this, we poll with
+// the "update" API call instead. If the connection drops, the browser
+// reconnects by itself, telling the server the last event it got, and we poll
+// meanwhile. If the server turns us away (e.g. it has too many clients), or the
+// stream keeps failing, we give up on it and poll, and try it again later.
+function openStream() {
+  closeStream();
+  if (typeof(EventSource) === "undefined" || lastSequence == null) {
+    return;
+  }
+  streamFailures = 0;
+  streamRetryTime = null;
+  eventSource = new EventSource(SERVER_URL + "stream?since=" + lastSequence);
+  eventSource.addEventListener("update", async function(e) {
+    streamFailures = 0;
+    showServerOffline(false);
+    handleDataUpdate(JSON.parse(e.data));
+  });
+  eventSource.addEventListener("keepalive", async function(e) {
+    // Nothing has changed, but we are still up to date
+    streamFailures = 0;
+    lastQueryTime = moment();
+  });
+  eventSource.addEventListener("resync", async function(e) {
+    // Server can't tell us what we've missed, so start again
+    closeStream();
+    fetchDataFirst();
+  });
+  eventSource.onerror = function() {
+    // A closed stream won't be retried by the browser, which happens if the
+    // server responds with an error
+    streamFailures++;
+    if (eventSource.readyState === EventSource.CLOSED || streamFailures >= MAX_STREAM_FAILURES) {
+      closeStream();
+      streamRetryTime = moment().add(STREAM_RETRY_INTERVAL_SEC, 'seconds');
+    }
+  };
+}
+
+function closeStream() {
+  if (eventSource != null) {
+    eventSource.close();
+    eventSource = null;
+  }
+}
+
 // "Config" API call - called once on page load, this retrieves the frontend config properties from the backend. It will
 // also centre the map based on where the config says it should.
 function fetchConfig() {
@@ -166,6 +226,7 @@ function fetchTelemetry() {
 async function handleDataFirst(result) {
   tracks.clear();
   tracks = objectToMap(result.tracks);
+  lastSequence = (result.sequence != null) ? result.sequence : null;
   $("#version").text("v" + result.version);
   $("#version").show();
   updateGUIAfterDataQuery(result);
@@ -176,10 +237,21 @@ async function handleDataFirst(result) {
 // 1) Updated tracks - update the data in our map and append position
 //    history
 // 2) New tracks - just add the data to our map
-// 3) Missing tracks - delete from our tracks list, unless they are
+// 3) Dropped tracks - if the server only sent us what has changed, it
+//    tells us which tracks have been dropped. Otherwise, it sent us every
+//    track, so any that are missing have been dropped, unless they are
 //    config-created base station/airport/seaport.
 async function handleDataUpdate(result) {
   trackUpdate = objectToMap(result.tracks);
+  lastSequence = (result.sequence != null) ? result.sequence : null;
+
+  // Remove dropped tracks first, in case one has since been re-created and
+  // is in this update
+  if (result.dropped != null) {
+    result.dropped.forEach((id) => {
+      tracks.delete(id);
+    });
+  }
 
   trackUpdate.forEach((newTrack, id) => {
     if (tracks.has(id)) {
@@ -216,15 +288,17 @@ async function handleDataUpdate(result) {
     }
   });
 
-  tracks.forEach((oldTrack, id) => {
-    // This is a track that exists in our JS track table but the API is
-    // no longer telling us about, if it's not one of the "created by
-    // config" tracks that are only sent in the first API call, then
-    // it's a dropped track so delete it.
-    if (!oldTrack["createdByConfig"] && !trackUpdate.has(id)) {
-      tracks.delete(id);
-    }
-  });
+  if (result.full !== false) {
+    tracks.forEach((oldTrack, id) => {
+      // This is a track that exists in our JS track table but the API is
+      // no longer telling us about, if it's not one of the "created by
+      // config" tracks that are only sent in the first API call, then
+      // it's a dropped track so delete it.
+      if (!oldTrack["createdByConfig"] && !trackUpdate.has(id)) {
+        tracks.delete(id);
+      }
+    });
+  }
 
   updateGUIAfterDataQuery(result);
 }
@@ -0,0 +1,23 @@
+package com.ianrenton.planesailing.app;
+
+/**
+ * A latitude/longitude bounding box. If minLon is greater than maxLon, the box is
+ * assumed to cross the antimeridian.
+ *
+ * @param minLat Southern edge of the box, decimal degrees
+ * @param minLon Western edge of the box, decimal degrees
+ * @param maxLat Northern edge of the box, decimal degrees
+ * @param maxLon Eastern edge of the box, decimal degrees
+ */
+public record BoundingBox(double minLat, double minLon, double maxLat, double maxLon) {
+
+    /**
+     * Return true if the given point is inside the box.
+     */
+    public boolean contains(double lat, double lon) {
+        if (lat < minLat || lat > maxLat) {
+            return false;
+        }
+        return (minLon <= maxLon) ? (lon >= minLon && lon <= maxLon) : (lon >= minLon || lon <= maxLon);
+    }
+}
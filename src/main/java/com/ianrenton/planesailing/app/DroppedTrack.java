@@ -0,0 +1,10 @@
+package com.ianrenton.planesailing.app;
+
+/**
+ * Record of a track having been dropped from the track table.
+ *
+ * @param id       ID of the track that was dropped
+ * @param sequence Track table sequence number at which it was dropped
+ */
+public record DroppedTrack(String id, long sequence) {
+}
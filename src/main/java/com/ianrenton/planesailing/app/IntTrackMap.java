@@ -0,0 +1,205 @@
+package com.ianrenton.planesailing.app;
+
+import com.ianrenton.planesailing.data.Track;
+
+/**
+ * Thread-safe map from a primitive int key (e.g. an ICAO 24-bit address or an
+ * MMSI) to a track. This lets the receivers look up tracks on their hot path
+ * without building a String key for every message.
+ * <p>
+ * Internally this is a set of independently locked open-addressing hash tables
+ * ("stripes"), so lookups never box the key and threads working on different
+ * keys rarely contend.
+ *
+ * @param <T> The type of track stored
+ */
+public class IntTrackMap<T extends Track> {
+
+    private static final int STRIPES = 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Stripe<T>[] stripes;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public IntTrackMap() {
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe<>();
+        }
+    }
+
+    /**
+     * Get the track for a key, or null if there is none.
+     */
+    public T get(int key) {
+        int hash = mix(key);
+        return stripeFor(hash).get(key, hash);
+    }
+
+    /**
+     * Add a track for a key, unless one is already present.
+     *
+     * @return The existing track for the key, or null if the new track was added.
+     */
+    public T putIfAbsent(int key, T track) {
+        int hash = mix(key);
+        return stripeFor(hash).putIfAbsent(key, hash, track);
+    }
+
+    /**
+     * Remove the track for a key, only if it is the given track.
+     *
+     * @return true if the track was removed.
+     */
+    public boolean remove(int key, T track) {
+        int hash = mix(key);
+        return stripeFor(hash).remove(key, hash, track);
+    }
+
+    /**
+     * Get the number of tracks in the map.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe<T> s : stripes) {
+            size += s.size();
+        }
+        return size;
+    }
+
+    /**
+     * Remove all tracks from the map.
+     */
+    public void clear() {
+        for (Stripe<T> s : stripes) {
+            s.clear();
+        }
+    }
+
+    private Stripe<T> stripeFor(int hash) {
+        return stripes[hash & (STRIPES - 1)];
+    }
+
+    /**
+     * Scramble the bits of the key (MurmurHash3 finaliser) so that sequential
+     * keys, common for both ICAO addresses and MMSIs, spread out well.
+     */
+    private static int mix(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * One open-addressing hash table with linear probing. Uses the bits of the hash
+     * above those used to select the stripe, and backward-shift deletion so no
+     * tombstones are needed.
+     */
+    private static class Stripe<T> {
+        private int[] keys = new int[INITIAL_CAPACITY];
+        private Object[] values = new Object[INITIAL_CAPACITY];
+        private int size = 0;
+
+        @SuppressWarnings("unchecked")
+        synchronized T get(int key, int hash) {
+            int mask = keys.length - 1;
+            for (int i = slot(hash, mask); values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return (T) values[i];
+                }
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized T putIfAbsent(int key, int hash, T track) {
+            int mask = keys.length - 1;
+            int i = slot(hash, mask);
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return (T) values[i];
+                }
+            }
+            keys[i] = key;
+            values[i] = track;
+            size++;
+            if (size * 4 >= keys.length * 3) {
+                resize(keys.length * 2);
+            }
+            return null;
+        }
+
+        synchronized boolean remove(int key, int hash, T track) {
+            int mask = keys.length - 1;
+            int i = slot(hash, mask);
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    if (values[i] != track) {
+                        return false;
+                    }
+                    deleteSlot(i);
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void clear() {
+            keys = new int[INITIAL_CAPACITY];
+            values = new Object[INITIAL_CAPACITY];
+            size = 0;
+        }
+
+        /**
+         * Empty a slot, then shift back any following entries in the same probe run
+         * that would otherwise become unreachable.
+         */
+        private void deleteSlot(int i) {
+            int mask = keys.length - 1;
+            int gap = i;
+            int j = (i + 1) & mask;
+            while (values[j] != null) {
+                int home = slot(mix(keys[j]), mask);
+                // Move the entry at j into the gap if its home slot is not between the gap and j (cyclically)
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+                j = (j + 1) & mask;
+            }
+            values[gap] = null;
+        }
+
+        private void resize(int newCapacity) {
+            int[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new int[newCapacity];
+            values = new Object[newCapacity];
+            int mask = newCapacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = slot(mix(oldKeys[j]), mask);
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+
+        private static int slot(int hash, int mask) {
+            return (hash >>> 4) & mask;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.ianrenton.planesailing.app;
+
+import com.ianrenton.planesailing.data.TimestampedPosition;
+import com.ianrenton.planesailing.data.Track;
+import com.ianrenton.planesailing.data.TrackType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Grid-based spatial index of tracks, used by the track table to answer location
+ * queries without scanning every track.
+ * <p>
+ * The world is split into fixed-size cells of latitude and longitude. Each track
+ * with a known position lives in exactly one cell, and only moves between cells
+ * (touching the index) when its latest position crosses a cell boundary. The cell
+ * a track is in is remembered on the track itself so that the common case of a
+ * position update within the same cell costs nothing.
+ */
+public class SpatialIndex {
+
+    /**
+     * Size of a grid cell, in degrees. 0.1 degrees is roughly 6 nmi of latitude,
+     * so a typical airliner changes cell every minute or two, and a ship rarely.
+     */
+    private static final double CELL_SIZE_DEGREES = 0.1;
+    private static final int LAT_CELLS = (int) Math.ceil(180.0 / CELL_SIZE_DEGREES);
+    private static final int LON_CELLS = (int) Math.ceil(360.0 / CELL_SIZE_DEGREES);
+    private static final double EARTH_RADIUS_METRES = 6371000.0;
+
+    private final Map<Long, Set<Track>> cells = new ConcurrentHashMap<>();
+
+    /**
+     * Add the track to the index, or move it to the right cell if its position
+     * has changed. Tracks with no position are removed from the index.
+     */
+    public void update(Track t) {
+        TimestampedPosition p = t.getPosition();
+        if (p == null) {
+            remove(t);
+            return;
+        }
+        long newCell = cellFor(p.latitude(), p.longitude());
+        // Fast path, nothing to do if the track is still in the same cell
+        if (t.getGridCell() == newCell) {
+            return;
+        }
+        synchronized (t) {
+            long oldCell = t.getGridCell();
+            if (oldCell != newCell) {
+                removeFromCell(t, oldCell);
+                cells.compute(newCell, (k, s) -> {
+                    if (s == null) {
+                        s = ConcurrentHashMap.newKeySet();
+                    }
+                    s.add(t);
+                    return s;
+                });
+                t.setGridCell(newCell);
+            }
+        }
+    }
+
+    /**
+     * Remove the track from the index.
+     */
+    public void remove(Track t) {
+        synchronized (t) {
+            removeFromCell(t, t.getGridCell());
+            t.setGridCell(Track.NO_GRID_CELL);
+        }
+    }
+
+    /**
+     * Remove all tracks from the index.
+     */
+    public void clear() {
+        cells.clear();
+    }
+
+    /**
+     * Find all tracks within a bounding box. If minLon is greater than maxLon, the
+     * box is assumed to cross the antimeridian.
+     *
+     * @param minLat Southern edge of the box, decimal degrees
+     * @param minLon Western edge of the box, decimal degrees
+     * @param maxLat Northern edge of the box, decimal degrees
+     * @param maxLon Eastern edge of the box, decimal degrees
+     * @param types  Track types to include, or null to include all types
+     */
+    public List<Track> query(double minLat, double minLon, double maxLat, double maxLon, Set<TrackType> types) {
+        List<Track> results = new ArrayList<>();
+        int minLatCell = latCell(minLat);
+        int maxLatCell = latCell(maxLat);
+        int minLonCell = lonCell(minLon);
+        int maxLonCell = lonCell(maxLon);
+        boolean wraps = minLon > maxLon;
+        int lonCellCount = wraps ? (LON_CELLS - minLonCell) + maxLonCell + 1 : maxLonCell - minLonCell + 1;
+        long cellCount = (long) (maxLatCell - minLatCell + 1) * lonCellCount;
+
+        if (cellCount <= cells.size()) {
+            // Small area, look up each cell in turn
+            for (int latCell = minLatCell; latCell <= maxLatCell; latCell++) {
+                for (int i = 0; i < lonCellCount; i++) {
+                    Set<Track> cell = cells.get(cellKey(latCell, (minLonCell + i) % LON_CELLS));
+                    if (cell != null) {
+                        addMatches(cell, minLat, minLon, maxLat, maxLon, types, results);
+                    }
+                }
+            }
+        } else {
+            // Large area, cheaper to check every occupied cell than every cell in the area
+            for (Map.Entry<Long, Set<Track>> e : cells.entrySet()) {
+                int latCell = (int) (e.getKey() >> 32);
+                int lonCell = (int) (long) e.getKey();
+                boolean lonInRange = wraps ? (lonCell >= minLonCell || lonCell <= maxLonCell)
+                        : (lonCell >= minLonCell && lonCell <= maxLonCell);
+                if (latCell >= minLatCell && latCell <= maxLatCell && lonInRange) {
+                    addMatches(e.getValue(), minLat, minLon, maxLat, maxLon, types, results);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Find all tracks within a given radius of a point.
+     *
+     * @param lat       Latitude of the centre point, decimal degrees
+     * @param lon       Longitude of the centre point, decimal degrees
+     * @param radiusNmi Radius to search, in nautical miles
+     * @param types     Track types to include, or null to include all types
+     */
+    public List<Track> query(double lat, double lon, double radiusNmi, Set<TrackType> types) {
+        // Work out a bounding box that contains the circle, then filter the results by true distance
+        double latDelta = radiusNmi / 60.0;
+        double minLat = Math.max(-90.0, lat - latDelta);
+        double maxLat = Math.min(90.0, lat + latDelta);
+        double cosLat = Math.min(Math.cos(Math.toRadians(minLat)), Math.cos(Math.toRadians(maxLat)));
+        double lonDelta = (cosLat > 0.0) ? latDelta / cosLat : 360.0;
+        double minLon;
+        double maxLon;
+        if (lonDelta >= 180.0) {
+            minLon = -180.0;
+            maxLon = 180.0;
+        } else {
+            minLon = wrapLongitude(lon - lonDelta);
+            maxLon = wrapLongitude(lon + lonDelta);
+        }
+
+        double radiusMetres = radiusNmi / TrackTable.METRES_TO_NMI;
+        List<Track> results = query(minLat, minLon, maxLat, maxLon, types);
+        results.removeIf(t -> {
+            TimestampedPosition p = t.getPosition();
+            return p == null || haversine(lat, lon, p.latitude(), p.longitude()) > radiusMetres;
+        });
+        return results;
+    }
+
+    private void addMatches(Set<Track> cell, double minLat, double minLon, double maxLat, double maxLon,
+                            Set<TrackType> types, List<Track> results) {
+        for (Track t : cell) {
+            TimestampedPosition p = t.getPosition();
+            if (p != null && (types == null || types.contains(t.getTrackType()))
+                    && p.latitude() >= minLat && p.latitude() <= maxLat
+                    && (minLon <= maxLon ? (p.longitude() >= minLon && p.longitude() <= maxLon)
+                    : (p.longitude() >= minLon || p.longitude() <= maxLon))) {
+                results.add(t);
+            }
+        }
+    }
+
+    private void removeFromCell(Track t, long cell) {
+        if (cell != Track.NO_GRID_CELL) {
+            cells.computeIfPresent(cell, (k, s) -> {
+                s.remove(t);
+                return s.isEmpty() ? null : s;
+            });
+        }
+    }
+
+    private static long cellFor(double lat, double lon) {
+        return cellKey(latCell(lat), lonCell(lon));
+    }
+
+    private static long cellKey(int latCell, int lonCell) {
+        return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+    }
+
+    private static int latCell(double lat) {
+        return Math.min(LAT_CELLS - 1, Math.max(0, (int) Math.floor((lat + 90.0) / CELL_SIZE_DEGREES)));
+    }
+
+    private static int lonCell(double lon) {
+        return Math.min(LON_CELLS - 1, Math.max(0, (int) Math.floor((lon + 180.0) / CELL_SIZE_DEGREES)));
+    }
+
+    private static double wrapLongitude(double lon) {
+        if (lon < -180.0) {
+            return lon + 360.0;
+        } else if (lon > 180.0) {
+            return lon - 360.0;
+        }
+        return lon;
+    }
+
+    /**
+     * Great circle distance in metres between two points. Equivalent to libadsb's
+     * Position.haversine(), but without needing to allocate Position objects.
+     */
+    static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double sinDLat = Math.sin(dLat / 2.0);
+        double sinDLon = Math.sin(dLon / 2.0);
+        double a = sinDLat * sinDLat
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinDLon * sinDLon;
+        return 2.0 * EARTH_RADIUS_METRES * Math.asin(Math.sqrt(a));
+    }
+
+    /**
+     * Initial great circle bearing in degrees (0-360) from the first point to the
+     * second.
+     */
+    static double bearing(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double y = Math.sin(dLon) * Math.cos(phi2);
+        double x = Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1) * Math.cos(phi2) * Math.cos(dLon);
+        double b = Math.toDegrees(Math.atan2(y, x));
+        return (b + 360.0) % 360.0;
+    }
+
+    /**
+     * Bounding box that contains every point within the given distance of a point.
+     * Points outside it are definitely further away than that, so this can be used to
+     * rule points out before doing any trigonometry.
+     */
+    static BoundingBox boundingBox(double lat, double lon, double radiusMetres) {
+        double angularRadius = radiusMetres / EARTH_RADIUS_METRES;
+        double dLat = Math.toDegrees(angularRadius);
+        double minLat = lat - dLat;
+        double maxLat = lat + dLat;
+        double sinRadius = Math.sin(angularRadius);
+        double cosLat = Math.cos(Math.toRadians(lat));
+        if (minLat <= -90.0 || maxLat >= 90.0 || angularRadius >= Math.PI / 2.0 || sinRadius >= cosLat) {
+            // Circle contains a pole, so covers every longitude
+            return new BoundingBox(Math.max(-90.0, minLat), -180.0, Math.min(90.0, maxLat), 180.0);
+        }
+        double dLon = Math.toDegrees(Math.asin(sinRadius / cosLat));
+        return new BoundingBox(minLat, wrapLongitude(lon - dLon), maxLat, wrapLongitude(lon + dLon));
+    }
+}
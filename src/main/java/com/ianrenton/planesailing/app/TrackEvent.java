@@ -0,0 +1,21 @@
+package com.ianrenton.planesailing.app;
+
+import com.ianrenton.planesailing.data.ChangeGroup;
+import com.ianrenton.planesailing.data.Track;
+
+import java.util.Set;
+
+/**
+ * Event describing a change to the track table.
+ *
+ * @param type     Whether the track was created, updated or dropped
+ * @param track    The track. For updates this is the live track, so may have changed
+ *                 again by the time the event is handled.
+ * @param sequence Track table sequence number of the change
+ * @param changes  For updates, the groups of fields that have changed since the last
+ *                 event for this track. Empty for created and dropped events.
+ */
+public record TrackEvent(Type type, Track track, long sequence, Set<ChangeGroup> changes) {
+
+    public enum Type {CREATED, UPDATED, DROPPED}
+}
@@ -0,0 +1,155 @@
+package com.ianrenton.planesailing.app;
+
+import com.ianrenton.planesailing.data.ChangeGroup;
+import com.ianrenton.planesailing.data.Track;
+import com.ianrenton.planesailing.data.TrackType;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Delivers track created, updated and dropped events from the track table to the
+ * listeners subscribed to them.
+ * <p>
+ * Created and dropped events are published as they happen. Updates are coalesced:
+ * a track that changes is queued once, collecting the groups of fields that have
+ * changed, and a single UPDATED event is published for it on the next flush. This
+ * means that a receiver setting several fields from one message, or a busy aircraft
+ * sending many messages a second, results in at most one event per track per flush
+ * interval.
+ * <p>
+ * The track table's journal is fed from the same flush, directly rather than
+ * through a subscription, so that it never misses an update.
+ * <p>
+ * When nothing is subscribed and there is no journal, none of this costs anything,
+ * and no threads are started until the first subscription.
+ */
+public class TrackEventBus {
+    private static final Logger LOGGER = LogManager.getLogger(TrackEventBus.class);
+
+    /**
+     * Interval at which queued track updates are published, in milliseconds.
+     */
+    public static final long FLUSH_INTERVAL_MILLIS = 100;
+    /**
+     * Default maximum number of events waiting to be delivered to a listener.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    private final TrackTable trackTable;
+    private final List<TrackSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Queue<Track> changedTracks = new ConcurrentLinkedQueue<>();
+    private ExecutorService deliveryExecutor;
+    private ScheduledExecutorService flushExecutor;
+
+    public TrackEventBus(TrackTable trackTable) {
+        this.trackTable = trackTable;
+    }
+
+    /**
+     * Subscribe to track events.
+     *
+     * @param listener      The listener to receive events
+     * @param types         Track types to receive events for, or null for all types
+     * @param area          Area to receive events for, or null for anywhere. If an area
+     *                      is set, tracks with no known position are not included.
+     * @param queueCapacity Maximum number of events waiting to be delivered before
+     *                      further events are discarded
+     */
+    public synchronized TrackSubscription subscribe(TrackListener listener, Set<TrackType> types, BoundingBox area, int queueCapacity) {
+        start();
+        TrackSubscription s = new TrackSubscription(this, listener, types != null ? EnumSet.copyOf(types) : null, area, queueCapacity);
+        subscriptions.add(s);
+        return s;
+    }
+
+    /**
+     * Start the threads that flush and deliver events, if not already started.
+     */
+    public synchronized void start() {
+        if (deliveryExecutor == null) {
+            deliveryExecutor = Executors.newCachedThreadPool(new BasicThreadFactory.Builder().namingPattern("Track Event Delivery Thread %d").daemon(true).build());
+            flushExecutor = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder().namingPattern("Track Event Flush Thread").daemon(true).build());
+            flushExecutor.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void unsubscribe(TrackSubscription s) {
+        subscriptions.remove(s);
+    }
+
+    /**
+     * Return true if anything is subscribed to events.
+     */
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Publish an event to all interested subscribers.
+     */
+    public void publish(TrackEvent.Type type, Track t, long sequence, Set<ChangeGroup> changes) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        TrackEvent e = new TrackEvent(type, t, sequence, changes);
+        for (TrackSubscription s : subscriptions) {
+            s.offer(e, deliveryExecutor);
+        }
+    }
+
+    /**
+     * Queue an UPDATED event for the track on the next flush. Called by the track
+     * the first time it changes after its previous event.
+     */
+    public void onTrackChanged(Track t) {
+        changedTracks.add(t);
+    }
+
+    /**
+     * Publish UPDATED events for all the tracks that have changed since the last flush.
+     */
+    private void flush() {
+        try {
+            Track t;
+            while ((t = changedTracks.poll()) != null) {
+                int changeBits = t.takePendingChanges();
+                // Skip tracks that have been dropped since they changed
+                if (changeBits != 0 && t.getTrackTable() == trackTable) {
+                    trackTable.onTrackUpdated(t, t.getChangeSequence(), toChangeGroups(changeBits));
+                }
+            }
+        } catch (Exception ex) {
+            LOGGER.error("Caught exception when publishing track events, continuing...", ex);
+        }
+    }
+
+    /**
+     * Cancel all subscriptions and stop internal threads.
+     */
+    public synchronized void shutdown() {
+        for (TrackSubscription s : subscriptions) {
+            s.cancel();
+        }
+        if (deliveryExecutor != null) {
+            flushExecutor.shutdownNow();
+            deliveryExecutor.shutdownNow();
+        }
+    }
+
+    private static Set<ChangeGroup> toChangeGroups(int changeBits) {
+        Set<ChangeGroup> groups = EnumSet.noneOf(ChangeGroup.class);
+        for (ChangeGroup g : ChangeGroup.values()) {
+            if ((changeBits & g.bit()) != 0) {
+                groups.add(g);
+            }
+        }
+        return groups;
+    }
+}
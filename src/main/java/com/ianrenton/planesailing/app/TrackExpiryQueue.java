@@ -0,0 +1,121 @@
+package com.ianrenton.planesailing.app;
+
+import com.ianrenton.planesailing.data.Track;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Deadline queue that tells the track table which tracks are due for maintenance
+ * (culling old positions, or being dropped), so that a maintenance run only has
+ * to look at those tracks rather than every track in the table.
+ * <p>
+ * Tracks are held in buckets of one tick's width, keyed by the time the bucket
+ * falls due. A track is moved whenever its deadline moves into a different
+ * bucket, either later (the usual case when new data arrives) or earlier (for
+ * example when an aircraft lands and so should be dropped sooner). Since buckets
+ * are a tick wide, a track that is updated often only moves about once a tick,
+ * and the rest of its updates cost a comparison. Long-lived tracks like AIS base
+ * stations cost nothing until they are actually due.
+ */
+public class TrackExpiryQueue {
+
+    /**
+     * Width of a bucket in milliseconds. This should match the interval at which
+     * the maintenance task runs.
+     */
+    public static final long TICK_MILLIS = 10000;
+
+    private final ConcurrentSkipListMap<Long, Set<Track>> buckets = new ConcurrentSkipListMap<>();
+
+    /**
+     * Schedule the track according to its next maintenance time, moving it if it is
+     * currently scheduled for a different time.
+     */
+    public void schedule(Track t) {
+        long due = bucketFor(t.getNextMaintenanceTime());
+        // Fast path, nothing to do if the track is already in the right bucket
+        if (t.getScheduledMaintenanceTime() == due) {
+            return;
+        }
+        synchronized (t) {
+            long oldDue = t.getScheduledMaintenanceTime();
+            if (oldDue != due) {
+                removeFromBucket(t, oldDue);
+                buckets.compute(due, (k, s) -> {
+                    if (s == null) {
+                        s = ConcurrentHashMap.newKeySet();
+                    }
+                    s.add(t);
+                    return s;
+                });
+                t.setScheduledMaintenanceTime(due);
+            }
+        }
+    }
+
+    /**
+     * Remove the track from the queue.
+     */
+    public void unschedule(Track t) {
+        synchronized (t) {
+            removeFromBucket(t, t.getScheduledMaintenanceTime());
+            t.setScheduledMaintenanceTime(Track.NOT_SCHEDULED);
+        }
+    }
+
+    /**
+     * Remove and return all tracks whose maintenance is due at or before the given
+     * time. The returned tracks are no longer scheduled, so the caller must
+     * schedule() any that are to be kept.
+     */
+    public List<Track> pollDue(long now) {
+        List<Track> due = new ArrayList<>();
+        Map.Entry<Long, Set<Track>> e;
+        while ((e = buckets.firstEntry()) != null && e.getKey() <= now) {
+            if (buckets.remove(e.getKey(), e.getValue())) {
+                for (Track t : e.getValue()) {
+                    synchronized (t) {
+                        // If the track has been moved to another bucket meanwhile, leave it there
+                        if (t.getScheduledMaintenanceTime() == e.getKey()) {
+                            t.setScheduledMaintenanceTime(Track.NOT_SCHEDULED);
+                            due.add(t);
+                        }
+                    }
+                }
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Remove all tracks from the queue.
+     */
+    public void clear() {
+        buckets.clear();
+    }
+
+    private void removeFromBucket(Track t, long due) {
+        if (due != Track.NOT_SCHEDULED) {
+            buckets.computeIfPresent(due, (k, s) -> {
+                s.remove(t);
+                return s.isEmpty() ? null : s;
+            });
+        }
+    }
+
+    /**
+     * Round a time up to the end of its bucket, so that a track is never looked at
+     * before it is due.
+     */
+    private static long bucketFor(long time) {
+        if (time >= Long.MAX_VALUE - TICK_MILLIS) {
+            return Long.MAX_VALUE - TICK_MILLIS;
+        }
+        return Math.floorDiv(time, TICK_MILLIS) * TICK_MILLIS + TICK_MILLIS;
+    }
+}
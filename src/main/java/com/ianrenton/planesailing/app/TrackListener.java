@@ -0,0 +1,16 @@
+package com.ianrenton.planesailing.app;
+
+/**
+ * Interface for anything that wants to be told about tracks being created,
+ * updated or dropped in the track table. Register with TrackTable.subscribe().
+ */
+@FunctionalInterface
+public interface TrackListener {
+
+    /**
+     * Called with each event that matches the listener's subscription. Events for
+     * one listener are delivered in order, on a thread belonging to the track table,
+     * so implementations should not block for long.
+     */
+    void onTrackEvent(TrackEvent event);
+}
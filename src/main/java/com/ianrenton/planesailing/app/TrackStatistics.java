@@ -0,0 +1,180 @@
+package com.ianrenton.planesailing.app;
+
+import com.ianrenton.planesailing.data.Track;
+import com.ianrenton.planesailing.data.TrackType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Live statistics about the tracks in the track table, broken down by track type:
+ * how many there are, and how far the furthest one is from the base station.
+ * <p>
+ * These are kept up to date incrementally by the track table as tracks are added,
+ * removed, change type or move, so that reading them costs O(types) rather than
+ * needing a pass over every track.
+ * <p>
+ * The furthest range for each type is a running maximum. It only needs
+ * recomputing (from the tracks of that type only) if the track that holds the
+ * maximum moves closer, changes type or is dropped, and even then only when
+ * somebody next asks for it.
+ */
+public class TrackStatistics {
+
+    private final List<Set<Track>> tracksByType;
+    private final RangeMax[] rangeMaxByType;
+    private final ToDoubleFunction<Track> rangeFunction;
+
+    /**
+     * Create the statistics store.
+     *
+     * @param rangeFunction Function that returns the range of a track from the base
+     *                      station, in metres, or zero if unknown.
+     */
+    public TrackStatistics(ToDoubleFunction<Track> rangeFunction) {
+        this.rangeFunction = rangeFunction;
+        tracksByType = new ArrayList<>(TrackType.values().length);
+        rangeMaxByType = new RangeMax[TrackType.values().length];
+        for (int i = 0; i < rangeMaxByType.length; i++) {
+            tracksByType.add(ConcurrentHashMap.newKeySet());
+            rangeMaxByType[i] = new RangeMax();
+        }
+    }
+
+    /**
+     * Called when a track is added to the track table.
+     */
+    public void add(Track t) {
+        if (t.getTrackType() != null) {
+            tracksByType.get(t.getTrackType().ordinal()).add(t);
+            updateRange(t, t.getTrackType());
+        }
+    }
+
+    /**
+     * Called when a track is removed from the track table.
+     */
+    public void remove(Track t) {
+        // Remove from every type rather than trusting the track's current type, in
+        // case the type is being changed concurrently.
+        for (int i = 0; i < tracksByType.size(); i++) {
+            if (tracksByType.get(i).remove(t)) {
+                rangeMaxByType[i].invalidateIfHolder(t);
+            }
+        }
+    }
+
+    /**
+     * Called when a track in the track table changes type.
+     */
+    public void typeChanged(Track t, TrackType oldType, TrackType newType) {
+        if (oldType != null && tracksByType.get(oldType.ordinal()).remove(t)) {
+            rangeMaxByType[oldType.ordinal()].invalidateIfHolder(t);
+        }
+        if (newType != null) {
+            tracksByType.get(newType.ordinal()).add(t);
+            updateRange(t, newType);
+        }
+    }
+
+    /**
+     * Called when a track in the track table has moved.
+     */
+    public void positionChanged(Track t) {
+        if (t.getTrackType() != null) {
+            updateRange(t, t.getTrackType());
+        }
+    }
+
+    /**
+     * Called when all ranges are no longer valid, e.g. because the base station
+     * has moved.
+     */
+    public void invalidateRanges() {
+        for (RangeMax r : rangeMaxByType) {
+            r.invalidate();
+        }
+    }
+
+    /**
+     * Get the number of tracks of the given type.
+     */
+    public int count(TrackType type) {
+        return tracksByType.get(type.ordinal()).size();
+    }
+
+    /**
+     * Get a read-only view of the tracks of the given type.
+     */
+    public Set<Track> tracksOfType(TrackType type) {
+        return Collections.unmodifiableSet(tracksByType.get(type.ordinal()));
+    }
+
+    /**
+     * Get the range in metres from the base station to the furthest track of the
+     * given type, or zero if there are none or the base station position is unknown.
+     */
+    public double getFurthestRange(TrackType type) {
+        RangeMax r = rangeMaxByType[type.ordinal()];
+        if (r.dirty) {
+            synchronized (r) {
+                if (r.dirty) {
+                    r.dirty = false;
+                    double max = 0.0;
+                    Track holder = null;
+                    for (Track t : tracksByType.get(type.ordinal())) {
+                        double range = rangeFunction.applyAsDouble(t);
+                        if (range > max) {
+                            max = range;
+                            holder = t;
+                        }
+                    }
+                    r.max = max;
+                    r.holder = holder;
+                }
+            }
+        }
+        return r.max;
+    }
+
+    private void updateRange(Track t, TrackType type) {
+        RangeMax r = rangeMaxByType[type.ordinal()];
+        double range = rangeFunction.applyAsDouble(t);
+        // Fast path, nothing to do if this track doesn't affect the maximum
+        if (range <= r.max && t != r.holder) {
+            return;
+        }
+        synchronized (r) {
+            if (range > r.max) {
+                r.max = range;
+                r.holder = t;
+            } else if (t == r.holder && range < r.max) {
+                // Furthest track has moved closer, so something else might be furthest now
+                r.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Running maximum range for one track type, and the track that holds it.
+     */
+    private static class RangeMax {
+        private volatile double max = 0.0;
+        private volatile Track holder = null;
+        private volatile boolean dirty = false;
+
+        synchronized void invalidateIfHolder(Track t) {
+            if (t == holder) {
+                dirty = true;
+            }
+        }
+
+        synchronized void invalidate() {
+            dirty = true;
+        }
+    }
+}
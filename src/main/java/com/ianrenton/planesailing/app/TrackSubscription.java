@@ -0,0 +1,149 @@
+package com.ianrenton.planesailing.app;
+
+import com.ianrenton.planesailing.data.TimestampedPosition;
+import com.ianrenton.planesailing.data.Track;
+import com.ianrenton.planesailing.data.TrackType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A listener's subscription to track events, returned by TrackTable.subscribe().
+ * <p>
+ * Each subscription has its own bounded queue of events waiting to be delivered.
+ * If the listener can't keep up and the queue fills, further events are discarded
+ * and counted rather than holding up the track table or other listeners.
+ * <p>
+ * If the subscription is filtered by track type or area, a track that stops
+ * matching the filter (e.g. moves out of the area) gets one last UPDATED event so
+ * that the listener can see it has gone, and no more events after that until it
+ * matches again. Likewise a track that starts matching the filter after it was
+ * created (e.g. moves into the area) first appears to the listener as an UPDATED
+ * event.
+ */
+public class TrackSubscription {
+    private static final Logger LOGGER = LogManager.getLogger(TrackSubscription.class);
+
+    private final TrackEventBus bus;
+    private final TrackListener listener;
+    private final Set<TrackType> types;
+    private final BoundingBox area;
+    private final BlockingQueue<TrackEvent> queue;
+    private final Set<Track> matchingTracks = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final AtomicLong deliveredEvents = new AtomicLong();
+    private final AtomicLong discardedEvents = new AtomicLong();
+    private volatile boolean cancelled = false;
+
+    TrackSubscription(TrackEventBus bus, TrackListener listener, Set<TrackType> types, BoundingBox area, int queueCapacity) {
+        this.bus = bus;
+        this.listener = listener;
+        this.types = types;
+        this.area = area;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Stop receiving events. Any events still queued are discarded.
+     */
+    public void cancel() {
+        cancelled = true;
+        bus.unsubscribe(this);
+        queue.clear();
+        matchingTracks.clear();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Get the number of events delivered to the listener.
+     */
+    public long getDeliveredEventCount() {
+        return deliveredEvents.get();
+    }
+
+    /**
+     * Get the number of events discarded because the listener's queue was full.
+     */
+    public long getDiscardedEventCount() {
+        return discardedEvents.get();
+    }
+
+    /**
+     * Get the number of events waiting to be delivered to the listener.
+     */
+    public int getQueuedEventCount() {
+        return queue.size();
+    }
+
+    /**
+     * Queue the event for delivery, if it is of interest to this subscription, and
+     * make sure the queue is being drained.
+     */
+    void offer(TrackEvent e, Executor executor) {
+        if (cancelled || !isWanted(e)) {
+            return;
+        }
+        if (queue.offer(e)) {
+            scheduleDrain(executor);
+        } else {
+            discardedEvents.incrementAndGet();
+        }
+    }
+
+    private boolean isWanted(TrackEvent e) {
+        if (types == null && area == null) {
+            return true;
+        }
+        Track t = e.track();
+        if (e.type() != TrackEvent.Type.DROPPED && matches(t)) {
+            matchingTracks.add(t);
+            return true;
+        }
+        // Only interested if the track matched before, i.e. the listener knows about it
+        return matchingTracks.remove(t);
+    }
+
+    private boolean matches(Track t) {
+        if (types != null && !types.contains(t.getTrackType())) {
+            return false;
+        }
+        if (area != null) {
+            TimestampedPosition p = t.getPosition();
+            return p != null && area.contains(p.latitude(), p.longitude());
+        }
+        return true;
+    }
+
+    private void scheduleDrain(Executor executor) {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        do {
+            TrackEvent e;
+            while (!cancelled && (e = queue.poll()) != null) {
+                try {
+                    listener.onTrackEvent(e);
+                    deliveredEvents.incrementAndGet();
+                } catch (Exception ex) {
+                    LOGGER.error("Caught exception in track listener, continuing...", ex);
+                }
+            }
+            draining.set(false);
+            // Go round again if an event was queued after we finished polling but before we
+            // cleared the flag, and nobody else has started draining since
+        } while (!cancelled && !queue.isEmpty() && draining.compareAndSet(false, true));
+    }
+}
@@ -1,26 +1,54 @@
 package com.ianrenton.planesailing.app;
 
 import com.ianrenton.planesailing.data.*;
+import com.ianrenton.planesailing.store.HistoricalTrack;
+import com.ianrenton.planesailing.store.TrackArchive;
+import com.ianrenton.planesailing.store.TrackDataStore;
+import com.ianrenton.planesailing.store.TrackJournal;
 import com.typesafe.config.ConfigList;
 import com.typesafe.config.ConfigValue;
 import org.apache.commons.lang3.SerializationException;
-import org.apache.commons.lang3.SerializationUtils;
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.opensky.libadsb.Position;
 
 import java.io.*;
-import java.util.Iterator;
-import java.util.Map;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
- * Track table
+ * Track table. This is a map of track ID to track, but also maintains secondary
+ * indexes (such as a spatial index) over the tracks it contains. To keep these
+ * in step, tracks must only be added and removed via put() and remove(), not via
+ * the views returned by values() or entrySet(), which are read-only.
+ * <p>
+ * Receivers should create and modify tracks using the update() methods, which
+ * make the create-or-update atomic, and hold the track's lock while it is being
+ * modified so that several receivers updating the same track don't interleave.
+ * <p>
+ * The track ID space is split by hash across one or more shards (see
+ * TrackTableShard), each of which runs maintenance for its own tracks and can
+ * optionally apply all updates to them on a single ingest thread. This is set in
+ * the config file, and is invisible to users of the table.
  */
 public class TrackTable extends ConcurrentHashMap<String, Track> {
 
     public static final double METRES_TO_NMI = 0.000539957;
+    /**
+     * Number of dropped tracks to remember in the drop log.
+     */
+    public static final int DROP_LOG_SIZE = 10000;
+    /**
+     * Value returned by getRangeIfReasonable() for a position that is not reasonable.
+     */
+    public static final double UNREASONABLE = -1.0;
 
     @Serial
     private static final long serialVersionUID = 1L;
@@ -31,10 +59,37 @@ public class TrackTable extends ConcurrentHashMap<String, Track> {
     public final Map<Integer, String> aisNameCache = new ConcurrentHashMap<>();
 
     private Position baseStationPosition = null;
+    // Incremented whenever the base station moves, so tracks can tell if their cached range and bearing are stale
+    private transient volatile int baseStationVersion = 1;
+    // Areas outside which a position is definitely too far from the base station, by track type. Null if no limit.
+    private transient volatile BoundingBox[] reasonableAreaByType = new BoundingBox[TrackType.values().length];
+
+    private transient final SpatialIndex spatialIndex = new SpatialIndex();
+    private transient final IntTrackMap<Aircraft> aircraftByICAO24 = new IntTrackMap<>();
+    private transient final IntTrackMap<AISTrack> aisTracksByMMSI = new IntTrackMap<>();
+    private transient final TrackTableShard[] shards = createShards();
+    // Sequence numbers start from the time the table was created, scaled up so that any from an earlier run of the
+    // software are older than those from this one, and the drop log can tell they are too old to answer for
+    private transient final long initialSequence = System.currentTimeMillis() * 1000;
+    private transient final AtomicLong sequence = new AtomicLong(initialSequence);
+    private transient final Deque<DroppedTrack> dropLog = new ArrayDeque<>();
+    private transient long dropLogHorizon = initialSequence; // Sequence number of the newest entry evicted from the drop log
+    private transient final TrackStatistics statistics = new TrackStatistics(this::getDistanceFromBaseStationOrZero);
+    private transient final TrackEventBus eventBus = new TrackEventBus(this);
+    private transient final TrackJournal journal = Application.CONFIG.getBoolean("track-table.journal")
+            ? new TrackJournal(serializationFile, Application.CONFIG.getLong("track-table.journal-commit-interval")) : null;
+    private transient TrackDataStore dataStore;
+    private transient final TrackArchive archive = Application.CONFIG.getBoolean("track-table.archive.enabled")
+            ? new TrackArchive(new File(Application.CONFIG.getString("track-table.archive.directory")),
+            Application.CONFIG.getLong("track-table.archive.retention-days") * 24 * 60 * 60 * 1000) : null;
+    private transient final int fullBackupEvery = Application.CONFIG.getInt("track-table.full-backup-every");
+    private transient long lastBackupSequence = -1; // Sequence number as of the last backup, or -1 if none yet
+    private transient int lastBackupAISNameCount = -1;
+    private transient int backupsSinceFullBackup = 0;
 
     private transient final ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(2, new BasicThreadFactory.Builder().namingPattern("Track Table Processing Thread %d").build());
     @SuppressWarnings("rawtypes")
-    private transient ScheduledFuture maintenanceTask;
+    private transient ScheduledFuture statusTask;
     @SuppressWarnings("rawtypes")
     private transient ScheduledFuture backupTask;
 
@@ -42,7 +97,8 @@ public class TrackTable extends ConcurrentHashMap<String, Track> {
 
     /**
      * Set up the track table, using data found on disk if present. Spawns internal
-     * threads to run scheduled tasks such as culling old positions, printing status
+     * threads to run scheduled tasks such as culling old positions, dropping old
+     * tracks, printing status
      * data, and backing up the track table to disk.
      * <p>
      * This must be called before using the track table, unless creating one for
@@ -52,53 +108,585 @@ public class TrackTable extends ConcurrentHashMap<String, Track> {
         // Load data from serialised track data store, and immediately delete
         // anything too old to survive
         loadFromFile();
-        cullOldPositionData();
-        dropExpiredTracks();
+        for (TrackTableShard shard : shards) {
+            performDueMaintenance(shard);
+        }
+
+        // Start journalling changes, so they survive a crash before the next backup
+        if (journal != null) {
+            try {
+                journal.start(this);
+                // Tracks only queue their changes if something wants them
+                eventBus.start();
+            } catch (IOException ex) {
+                LOGGER.error("Could not start the track journal, changes will only be saved by periodic backups", ex);
+            }
+        }
+
+        // Start archiving history as it leaves the track table
+        if (archive != null) {
+            archive.start();
+        }
 
         // Set up tasks to run in the background
-        maintenanceTask = scheduledExecutorService.scheduleWithFixedDelay(new MaintenanceTask(), 10, 10, TimeUnit.SECONDS);
+        for (TrackTableShard shard : shards) {
+            shard.startMaintenance(() -> performDueMaintenance(shard), TrackExpiryQueue.TICK_MILLIS);
+        }
+        statusTask = scheduledExecutorService.scheduleWithFixedDelay(new StatusTask(), TrackExpiryQueue.TICK_MILLIS,
+                TrackExpiryQueue.TICK_MILLIS, TimeUnit.MILLISECONDS);
         backupTask = scheduledExecutorService.scheduleWithFixedDelay(new BackupTask(), 10, 600, TimeUnit.SECONDS);
     }
 
-    private long countTracksOfType(TrackType t) {
-        return values().stream().filter(track -> track.getTrackType() == t).count();
+    @Override
+    public Track put(String key, Track value) {
+        Track old = super.put(key, value);
+        if (old != value) {
+            if (old != null) {
+                onTrackRemoved(old);
+            }
+            onTrackAdded(value);
+        }
+        return old;
+    }
+
+    @Override
+    public Track putIfAbsent(String key, Track value) {
+        Track existing = super.putIfAbsent(key, value);
+        if (existing == null) {
+            onTrackAdded(value);
+        }
+        return existing;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Track> m) {
+        for (Entry<? extends String, ? extends Track> e : m.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    @Override
+    public Track remove(Object key) {
+        Track old = super.remove(key);
+        if (old != null) {
+            onTrackRemoved(old);
+        }
+        return old;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        boolean removed = super.remove(key, value);
+        if (removed) {
+            onTrackRemoved((Track) value);
+        }
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        for (Track t : super.values()) {
+            remove(t.getID(), t);
+        }
     }
 
     /**
-     * Delete position data older than the threshold for all non-fixed tracks.
-     * For fixed tracks, just leave the single most recent position (regardless
-     * of age) since it won't have moved anyway.
+     * Read-only view of the tracks in the table.
      */
-    private void cullOldPositionData() {
-        for (Track t : values()) {
-            try {
-                if (!t.isFixed()) {
-                    t.getPositionHistory().cull();
-                } else {
-                    t.getPositionHistory().keepOnlyLatest();
+    @Override
+    public Collection<Track> values() {
+        return Collections.unmodifiableCollection(super.values());
+    }
+
+    /**
+     * Read-only view of the entries in the table.
+     */
+    @Override
+    public Set<Entry<String, Track>> entrySet() {
+        return Collections.unmodifiableSet(super.entrySet());
+    }
+
+    /**
+     * Called when a track is added to the table, to update secondary indexes.
+     */
+    private void onTrackAdded(Track t) {
+        synchronized (t) {
+            t.setTrackTable(this);
+            statistics.add(t);
+        }
+        t.markChanged();
+        // The created event covers any changes made so far
+        t.takePendingChanges();
+        t.publishState();
+        if (journal != null) {
+            journal.trackCreated(t);
+        }
+        eventBus.publish(TrackEvent.Type.CREATED, t, t.getChangeSequence(), EnumSet.noneOf(ChangeGroup.class));
+        t.setGridCell(Track.NO_GRID_CELL);
+        t.setScheduledMaintenanceTime(Track.NOT_SCHEDULED);
+        spatialIndex.update(t);
+        TrackTableShard shard = shardFor(t.getID());
+        shard.getExpiryQueue().schedule(t);
+        shard.onTrackAdded();
+        if (t instanceof Aircraft a && a.getICAO24() != Aircraft.NO_ICAO24) {
+            aircraftByICAO24.putIfAbsent(a.getICAO24(), a);
+        } else if (t instanceof AISTrack s) {
+            aisTracksByMMSI.putIfAbsent(s.getMmsi(), s);
+        }
+    }
+
+    /**
+     * Called when a track is removed from the table, to update secondary indexes.
+     */
+    private void onTrackRemoved(Track t) {
+        synchronized (t) {
+            t.setTrackTable(null);
+            statistics.remove(t);
+        }
+        spatialIndex.remove(t);
+        TrackTableShard shard = shardFor(t.getID());
+        shard.getExpiryQueue().unschedule(t);
+        shard.onTrackRemoved();
+        if (t instanceof Aircraft a) {
+            aircraftByICAO24.remove(a.getICAO24(), a);
+        } else if (t instanceof AISTrack s) {
+            aisTracksByMMSI.remove(s.getMmsi(), s);
+        }
+        long dropSequence;
+        synchronized (dropLog) {
+            if (dropLog.size() >= DROP_LOG_SIZE) {
+                dropLogHorizon = dropLog.removeFirst().sequence();
+            }
+            dropSequence = nextSequence();
+            dropLog.addLast(new DroppedTrack(t.getID(), dropSequence));
+        }
+        if (journal != null) {
+            journal.trackDropped(t);
+        }
+        eventBus.publish(TrackEvent.Type.DROPPED, t, dropSequence, EnumSet.noneOf(ChangeGroup.class));
+    }
+
+    /**
+     * Called by a track in this table when it has accepted a new position.
+     */
+    public void onPositionAdded(Track t) {
+        spatialIndex.update(t);
+        statistics.positionChanged(t);
+    }
+
+    /**
+     * Called by a track in this table when its type has changed, to keep the
+     * per-type statistics correct.
+     */
+    public void onTrackTypeChanged(Track t, TrackType oldType, TrackType newType) {
+        synchronized (t) {
+            // Ignore the change if the track has been removed from the table meanwhile
+            if (t.getTrackTable() == this) {
+                statistics.typeChanged(t, oldType, newType);
+            }
+        }
+    }
+
+    /**
+     * Called by a track in this table when its metadata time has been updated,
+     * which may have moved the time at which it should be dropped.
+     */
+    public void onMetadataUpdated(Track t) {
+        shardFor(t.getID()).getExpiryQueue().schedule(t);
+    }
+
+    /**
+     * Subscribe to events for tracks being created, updated and dropped. Events are
+     * delivered asynchronously, on a thread belonging to the track table.
+     *
+     * @param listener The listener to receive events
+     * @param types    Track types to receive events for, or null for all types
+     * @param area     Area to receive events for, or null for anywhere. If an area
+     *                 is set, tracks with no known position are not included.
+     * @return The subscription, which can be used to unsubscribe later.
+     */
+    public TrackSubscription subscribe(TrackListener listener, Set<TrackType> types, BoundingBox area) {
+        return subscribe(listener, types, area, TrackEventBus.DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Subscribe to events for tracks being created, updated and dropped, with a
+     * given limit on the number of events waiting to be delivered before further
+     * events are discarded.
+     */
+    public TrackSubscription subscribe(TrackListener listener, Set<TrackType> types, BoundingBox area, int queueCapacity) {
+        return eventBus.subscribe(listener, types, area, queueCapacity);
+    }
+
+    /**
+     * Subscribe to events for all tracks.
+     */
+    public TrackSubscription subscribe(TrackListener listener) {
+        return subscribe(listener, null, null);
+    }
+
+    /**
+     * Return true if anything is subscribed to track events, or the journal needs
+     * them. Used by tracks to skip queueing events when nothing is listening.
+     */
+    public boolean hasSubscribers() {
+        return eventBus.hasSubscribers() || (journal != null && journal.isRunning());
+    }
+
+    /**
+     * Called by a track in this table the first time it changes after its last
+     * event was published, to queue an UPDATED event for it.
+     */
+    public void onTrackChanged(Track t) {
+        eventBus.onTrackChanged(t);
+    }
+
+    /**
+     * Called by the event bus when it flushes a track's coalesced changes, to
+     * journal them and then publish an UPDATED event. Journalling may wait for the
+     * journal writer to catch up, so that no changes are lost unless writing the
+     * journal fails altogether.
+     */
+    void onTrackUpdated(Track t, long sequence, Set<ChangeGroup> changes) {
+        if (journal != null) {
+            journal.trackUpdated(t, changes);
+        }
+        eventBus.publish(TrackEvent.Type.UPDATED, t, sequence, changes);
+    }
+
+    /**
+     * Take the next sequence number. Called by tracks in this table whenever they
+     * change, so that every change gets a unique, increasing number.
+     */
+    public long nextSequence() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * Get the current sequence number, i.e. that of the latest change to any track
+     * in the table, including tracks being dropped. A reader that remembers this
+     * can later find what has changed since by comparing it against each track's
+     * change sequence, and checking the drop log.
+     */
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * Get the tracks that have been dropped since the given sequence number, oldest
+     * first. Only the last DROP_LOG_SIZE drops are remembered, so this returns null
+     * if some drops since that sequence number may have been forgotten, in which
+     * case the caller needs to look at the whole table again.
+     */
+    public List<DroppedTrack> getDroppedSince(long since) {
+        synchronized (dropLog) {
+            if (since < dropLogHorizon) {
+                return null;
+            }
+            List<DroppedTrack> dropped = new ArrayList<>();
+            Iterator<DroppedTrack> it = dropLog.descendingIterator();
+            while (it.hasNext()) {
+                DroppedTrack d = it.next();
+                if (d.sequence() <= since) {
+                    break;
                 }
-            } catch (Exception ex) {
-                LOGGER.error("Caught exception when culling old position data for {}, continuing...", t.getDisplayName(), ex);
+                dropped.add(d);
+            }
+            Collections.reverse(dropped);
+            return dropped;
+        }
+    }
+
+    /**
+     * Create or update a track atomically. If there is no track with this ID, one is
+     * created using the factory, the mutator is applied to it, and it is then added
+     * to the table. If a track already exists, the mutator is applied to it while
+     * holding the track's lock. If two threads try to create the same track at once,
+     * only one is added and both updates are applied to it.
+     * <p>
+     * The mutator may therefore sometimes be applied to a new track that is then
+     * thrown away, so it should only modify the track it is given. It should also be
+     * quick, as other updates to the same track will wait for it.
+     * <p>
+     * If the track table is set up for single-writer ingest, the update is queued
+     * for the ingest thread of the track's shard and applied asynchronously, so the
+     * mutator must not rely on anything that the caller will change afterwards.
+     * <p>
+     * Track IDs are expected to be unique across track types, so the existing track
+     * is assumed to be of the type the factory creates.
+     *
+     * @param id      The track ID
+     * @param factory Function to create a new track with the given ID
+     * @param mutator Function to apply the update to the track
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Track> void update(String id, Function<String, T> factory, Consumer<T> mutator) {
+        TrackTableShard shard = shardFor(id);
+        shard.ingest(() -> update(shard, () -> (T) get(id), () -> factory.apply(id), null, mutator));
+    }
+
+    /**
+     * Create or update an aircraft track atomically, looking it up by its ICAO 24-bit
+     * address so that no String key is needed unless a new track is created. See
+     * update(String, Function, Consumer).
+     */
+    public void updateAircraft(int icao24, Supplier<Aircraft> factory, Consumer<Aircraft> mutator) {
+        update(() -> getAircraft(icao24), factory, mutator);
+    }
+
+    /**
+     * Create or update an AIS track atomically, looking it up by its MMSI so that no
+     * String key is needed unless a new track is created. See
+     * update(String, Function, Consumer).
+     */
+    public void updateAISTrack(int mmsi, Supplier<AISTrack> factory, Consumer<AISTrack> mutator) {
+        update(() -> getAISTrack(mmsi), factory, mutator);
+    }
+
+    /**
+     * Create or update a track that is looked up by something other than its ID. We
+     * need the ID to find the track's shard, so if the track doesn't exist yet it is
+     * created here, and handed on to be used if it still doesn't exist when the
+     * update is applied.
+     */
+    private <T extends Track> void update(Supplier<T> lookup, Supplier<T> factory, Consumer<T> mutator) {
+        T existing = lookup.get();
+        T created = (existing == null) ? factory.get() : null;
+        TrackTableShard shard = shardFor(existing != null ? existing.getID() : created.getID());
+        shard.ingest(() -> update(shard, lookup, factory, created, mutator));
+    }
+
+    /**
+     * Apply an update on behalf of the public update methods.
+     *
+     * @param shard   The shard the track belongs to
+     * @param lookup  Function to find the existing track, if any
+     * @param factory Function to create a new track
+     * @param created A new track that has already been created, to use instead of
+     *                calling the factory the first time one is needed. May be null.
+     * @param mutator Function to apply the update to the track
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends Track> void update(TrackTableShard shard, Supplier<T> lookup, Supplier<T> factory, T created, Consumer<T> mutator) {
+        while (true) {
+            T existing = lookup.get();
+            if (existing == null) {
+                T t = (created != null) ? created : factory.get();
+                created = null;
+                mutator.accept(t);
+                Track raced = putIfAbsent(t.getID(), t);
+                if (raced == null) {
+                    shard.onUpdateApplied();
+                    return;
+                }
+                // Lost the race to create the track, so apply the update to the winner
+                existing = (T) raced;
+            }
+            if (applyIfPresent(existing, mutator)) {
+                shard.onUpdateApplied();
+                return;
+            }
+            // The track was dropped between finding it and locking it, so go round again
+        }
+    }
+
+    /**
+     * Apply the mutator to the track while holding its lock, unless it has been
+     * removed from the table meanwhile.
+     *
+     * @return true if the mutator was applied.
+     */
+    private <T extends Track> boolean applyIfPresent(T t, Consumer<T> mutator) {
+        synchronized (t) {
+            if (t.getTrackTable() != this) {
+                return false;
             }
+            mutator.accept(t);
+            t.publishState();
+            // The update may have moved the track's drop time either way, e.g. an
+            // aircraft landing, so make sure it is looked at on time
+            shardFor(t.getID()).getExpiryQueue().schedule(t);
+            return true;
+        }
+    }
+
+    /**
+     * Get an aircraft track by its ICAO 24-bit address, without needing to build a
+     * String key. Returns null if there is no such aircraft.
+     */
+    public Aircraft getAircraft(int icao24) {
+        return aircraftByICAO24.get(icao24);
+    }
+
+    /**
+     * Get an AIS track by its MMSI, without needing to build a String key. Returns
+     * null if there is no such track.
+     */
+    public AISTrack getAISTrack(int mmsi) {
+        return aisTracksByMMSI.get(mmsi);
+    }
+
+    /**
+     * Find all tracks whose latest position is within a bounding box. If minLon is
+     * greater than maxLon, the box is assumed to cross the antimeridian.
+     *
+     * @param minLat Southern edge of the box, decimal degrees
+     * @param minLon Western edge of the box, decimal degrees
+     * @param maxLat Northern edge of the box, decimal degrees
+     * @param maxLon Eastern edge of the box, decimal degrees
+     * @param types  Track types to include, or null to include all types
+     */
+    public List<Track> query(double minLat, double minLon, double maxLat, double maxLon, Set<TrackType> types) {
+        return spatialIndex.query(minLat, minLon, maxLat, maxLon, types);
+    }
+
+    /**
+     * Find all tracks whose latest position is within a given radius of a point.
+     *
+     * @param lat       Latitude of the centre point, decimal degrees
+     * @param lon       Longitude of the centre point, decimal degrees
+     * @param radiusNmi Radius to search, in nautical miles
+     * @param types     Track types to include, or null to include all types
+     */
+    public List<Track> query(double lat, double lon, double radiusNmi, Set<TrackType> types) {
+        return spatialIndex.query(lat, lon, radiusNmi, types);
+    }
+
+    /**
+     * Get the number of tracks of the given type in the table.
+     */
+    public int countTracksOfType(TrackType t) {
+        return statistics.count(t);
+    }
+
+    /**
+     * Get the distance in nautical miles from the base station to the furthest track
+     * of any of the given types, or zero if there are none or the base station
+     * position is unknown.
+     */
+    public double getFurthestDistanceNmi(TrackType... types) {
+        double max = 0.0;
+        for (TrackType t : types) {
+            max = Math.max(max, statistics.getFurthestRange(t));
+        }
+        return max * METRES_TO_NMI;
+    }
+
+    /**
+     * Get the shards that the track ID space is split across.
+     */
+    public List<TrackTableShard> getShards() {
+        return List.of(shards);
+    }
+
+    /**
+     * Get the shard that looks after the track with the given ID.
+     */
+    private TrackTableShard shardFor(String id) {
+        if (shards.length == 1) {
+            return shards[0];
         }
+        // Spread the higher bits of the hash down, as String hashes of similar IDs
+        // differ mostly in their lower bits
+        int h = id.hashCode();
+        return shards[Math.floorMod(h ^ (h >>> 16), shards.length)];
     }
 
     /**
-     * Drop any tracks that have no current data
+     * Create the shards, according to the config file.
      */
-    private void dropExpiredTracks() {
-        for (Iterator<Entry<String, Track>> it = entrySet().iterator(); it.hasNext(); ) {
-            Track t = it.next().getValue();
+    private static TrackTableShard[] createShards() {
+        int count = Math.max(1, Application.CONFIG.getInt("track-table.shards"));
+        boolean singleWriter = Application.CONFIG.getBoolean("track-table.single-writer-ingest");
+        TrackTableShard[] shards = new TrackTableShard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new TrackTableShard(i, singleWriter);
+        }
+        return shards;
+    }
+
+    /**
+     * Perform maintenance on all tracks in a shard that are due for it, according to
+     * the shard's expiry queue. This culls old position data, and drops any tracks
+     * that have no current data. Tracks that are kept are rescheduled for their next
+     * maintenance time.
+     */
+    private void performDueMaintenance(TrackTableShard shard) {
+        long now = System.currentTimeMillis();
+        TrackExpiryQueue expiryQueue = shard.getExpiryQueue();
+        for (Track t : expiryQueue.pollDue(now)) {
+            // Skip any track that has been removed from the table since it was scheduled
+            if (get(t.getID()) != t) {
+                continue;
+            }
             try {
-                if (t.shouldDrop()) {
-                    it.remove();
+                // Hold the track's lock so that it can't be updated between deciding to
+                // drop it and dropping it
+                synchronized (t) {
+                    t.performMaintenance(now);
+                    boolean drop = t.shouldDrop(now);
+                    shard.onTrackMaintained(drop);
+                    if (drop) {
+                        if (archive != null) {
+                            // The snapshot is immutable, so can be handed over without copying
+                            archive(t, t.getPositionHistory().snapshot());
+                        }
+                        remove(t.getID(), t);
+                    } else {
+                        t.publishState();
+                        expiryQueue.schedule(t);
+                    }
                 }
             } catch (Exception ex) {
-                LOGGER.error("Caught exception when checking if {} should be dropped, continuing...", t.getDisplayName(), ex);
+                LOGGER.error("Caught exception when performing maintenance on {}, continuing...", t.getDisplayName(), ex);
+                expiryQueue.schedule(t);
             }
         }
     }
 
+    /**
+     * Hand positions that are leaving the track table, because they have been culled
+     * or their track has been dropped, to the track archive. Should be called while
+     * holding the track's lock.
+     */
+    public void archive(Track t, List<TimestampedPosition> positions) {
+        if (archive != null && !t.isCreatedByConfig()) {
+            archive.archive(t.getState(), positions);
+        }
+    }
+
+    /**
+     * Get the history of all tracks within a time window, and optionally an area,
+     * from both the track archive and the positions still in the track table.
+     *
+     * @param from Start of the window, UTC millis since epoch, inclusive
+     * @param to   End of the window, UTC millis since epoch, inclusive
+     * @param area Area to find history in, or null for everywhere
+     * @return Map of track ID to the track's history.
+     */
+    public Map<String, HistoricalTrack> getHistory(long from, long to, BoundingBox area) throws IOException {
+        Map<String, HistoricalTrack> history = (archive != null) ? archive.query(from, to, area) : new LinkedHashMap<>();
+        for (Track t : values()) {
+            if (t.isCreatedByConfig()) {
+                continue;
+            }
+            HistoricalTrack h = null;
+            for (TimestampedPosition p : t.getPositionHistory()) {
+                if (p.time() >= from && p.time() <= to && (area == null || area.contains(p.latitude(), p.longitude()))) {
+                    if (h == null) {
+                        h = history.computeIfAbsent(t.getID(), HistoricalTrack::new);
+                    }
+                    h.addPosition(p);
+                }
+            }
+            // The live track's metadata is the most recent
+            if (h != null) {
+                h.setInfo(t.getState());
+            }
+        }
+        return history;
+    }
+
     /**
      * Load data from serialisation file on disk.
      */
@@ -107,28 +695,58 @@ public class TrackTable extends ConcurrentHashMap<String, Track> {
     }
 
     /**
-     * Load data from serialisation file on disk.
+     * Load data from serialisation file on disk. This is normally a snapshot written
+     * by TrackDataStore, but a track table saved using Java serialization by an older
+     * version of the software can also be loaded, so that upgrading doesn't lose the
+     * track table.
      */
     public void loadFromFile(File file) {
-        if (file.exists()) {
+        // The journal may hold tracks even with no snapshot, if the software stopped
+        // before its first backup
+        boolean replayJournal = journal != null && file.equals(serializationFile);
+        if (file.exists() || replayJournal) {
             try {
                 clear();
-                ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
-                TrackTable newTT = (TrackTable) ois.readObject();
-                ois.close();
-                copy(newTT);
+                Map<String, Track> loaded = new LinkedHashMap<>();
+                if (!file.exists()) {
+                    LOGGER.info("Track table file did not exist in {}, probably first startup.", file.getAbsolutePath());
+                } else {
+                    TrackDataStore store = new TrackDataStore(file);
+                    if (store.isSnapshot()) {
+                        store.load(loaded, aisNameCache);
+                    } else {
+                        loadLegacyFile(file, loaded);
+                    }
+                }
+                if (replayJournal) {
+                    int replayed = journal.replay(loaded);
+                    if (replayed > 0) {
+                        LOGGER.info("Replayed {} changes from the track journal", replayed);
+                    }
+                }
+
+                // Perform post-load tasks on each loaded track. These are independent
+                // of each other and the tracks are not in the table yet, so they can
+                // run in parallel.
+                loaded.values().parallelStream().forEach(t -> {
+                    try {
+                        t.performPostLoadTasks();
+                    } catch (Exception ex) {
+                        LOGGER.error("Caught exception performing post-load tasks on {}, continuing...", t.getID(), ex);
+                    }
+                });
+
+                putAll(loaded);
                 LOGGER.info("Loaded {} tracks from track data store at {}", size(), file.getAbsolutePath());
                 LOGGER.info("Loaded {} AIS names from track data store", aisNameCache.size());
-
-                // Perform post-load tasks on each loaded track
-                for (Track t : values()) {
-                    t.performPostLoadTasks();
-                }
             } catch (SerializationException | IOException | ClassNotFoundException | ClassCastException ex) {
-                LOGGER.error("Exception loading track data store. Deleting the file so this doesn't reoccur.", ex);
-                boolean success = file.delete();
-                if (!success) {
-                    LOGGER.error("Failed to delete the file, check file permissions!");
+                // Keep the file in case the tracks can be recovered from it, e.g. by a later version
+                File failed = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".failed");
+                LOGGER.error("Exception loading track data store. Moving the file to {} so this doesn't reoccur.", failed.getAbsolutePath(), ex);
+                try {
+                    Files.move(file.toPath(), failed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    LOGGER.error("Failed to move the file, check file permissions!", e);
                 }
             }
         } else {
@@ -136,38 +754,141 @@ public class TrackTable extends ConcurrentHashMap<String, Track> {
         }
     }
 
+    /**
+     * Load a track table saved using Java serialization by an older version of the
+     * software. Tracks created by config are left out, as they are recreated from
+     * the config file, just as when loading a snapshot.
+     */
+    private void loadLegacyFile(File file, Map<String, Track> loaded) throws IOException, ClassNotFoundException {
+        LOGGER.info("Track data store is in the old format, it will be converted next time it is saved.");
+        PositionHistory.takeLegacyDiscardCount();
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+            TrackTable newTT = (TrackTable) ois.readObject();
+            int discarded = PositionHistory.takeLegacyDiscardCount();
+            if (discarded > 0) {
+                LOGGER.warn("Position history for {} tracks was saved in an old format that can't be converted, so their trails will start again.", discarded);
+            }
+            for (Track t : newTT.values()) {
+                if (!t.isCreatedByConfig()) {
+                    loaded.put(t.getID(), t);
+                }
+            }
+            aisNameCache.putAll(newTT.getAISNameCache());
+        }
+    }
+
     /**
      * Save data to serialisation file on disk.
      */
     public void saveToFile() {
-        saveToFile(serializationFile);
+        compact();
     }
 
     /**
-     * Save data to serialisation file on disk.
+     * Back up the track table to disk, and fold the track journal into it. The
+     * journal is moved on to a new generation first, so that every change in the
+     * older generations is already in the table when the backup is taken, and those
+     * generations can be deleted once it has been saved.
+     * <p>
+     * Usually only the tracks that have changed and the ones that have been dropped
+     * since the last backup are saved, as an incremental segment. The whole table is
+     * saved instead on the first backup, every "full-backup-every" backups,
+     * whenever the drop log no longer goes back as far as the last backup, and
+     * after the journal has failed.
      */
-    public void saveToFile(File file) {
+    private synchronized void compact() {
+        // Take the sequence number first, so any change made while saving is
+        // picked up again by the next backup
+        long backupSequence = getSequence();
+        List<File> oldJournals = null;
+        // Checked before rotating, which starts the journal again
+        boolean journalFailed = journal != null && journal.hasFailed();
+        if (journal != null) {
+            try {
+                oldJournals = journal.rotate();
+            } catch (IOException ex) {
+                LOGGER.error("Could not start a new track journal generation", ex);
+            }
+        }
+
+        List<DroppedTrack> dropped = (lastBackupSequence >= 0) ? getDroppedSince(lastBackupSequence) : null;
+        boolean success;
+        if (dropped == null || journalFailed || backupsSinceFullBackup + 1 >= fullBackupEvery) {
+            success = saveToFile(serializationFile);
+            if (success) {
+                backupsSinceFullBackup = 0;
+            }
+        } else {
+            success = saveSegment(dropped);
+            if (success) {
+                backupsSinceFullBackup++;
+            }
+        }
+
+        if (success) {
+            lastBackupSequence = backupSequence;
+            if (oldJournals != null) {
+                journal.deleteGenerations(oldJournals);
+            }
+        }
+    }
+
+    /**
+     * Save the tracks that have changed since the last backup, and the IDs of those
+     * that have been dropped, as an incremental segment of the track data store.
+     */
+    private boolean saveSegment(List<DroppedTrack> dropped) {
         try {
-            LOGGER.info("Saving to track data store...");
-            if (file.exists()) {
-                if (!file.delete()) {
-                    LOGGER.error("Failed to delete old track data store before writing a new one, check file permissions!");
+            List<Track> changed = new ArrayList<>();
+            for (Track t : values()) {
+                if (t.getChangeSequence() > lastBackupSequence) {
+                    changed.add(t);
                 }
             }
+            List<String> droppedIDs = dropped.stream().map(DroppedTrack::id).toList();
+            // The AIS name cache is only ever added to, so if its size hasn't changed, it doesn't need saving
+            int aisNameCount = aisNameCache.size();
+            boolean saveAISNames = aisNameCount != lastBackupAISNameCount;
 
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file));
-            // Deep copy to avoid concurrent modification problems when the track table
-            // contents are modified during save. While the top level object uses
-            // ConcurrentHashMap to avoid this problem, we should not be forcing that
-            // implementation detail on the whole tree of objects inside the table.
-            TrackTable copy = SerializationUtils.clone(this);
-            oos.writeObject(copy);
-            oos.flush();
-            oos.close();
-            LOGGER.info("Saved {} tracks to track data store at {}", size(), file.getAbsolutePath());
+            int count = getDataStore().saveSegment(changed, droppedIDs, saveAISNames ? aisNameCache : null);
+            if (saveAISNames) {
+                lastBackupAISNameCount = aisNameCount;
+            }
+            LOGGER.info("Saved {} changed and {} dropped tracks to track data store segment", count, droppedIDs.size());
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Could not save track table segment for {}", serializationFile.getAbsolutePath(), e);
+            return false;
+        }
+    }
+
+    private TrackDataStore getDataStore() {
+        if (dataStore == null) {
+            dataStore = new TrackDataStore(serializationFile);
+        }
+        return dataStore;
+    }
+
+    /**
+     * Save data to serialisation file on disk. The tracks are written straight from
+     * the table, one at a time while holding each track's lock, so this doesn't need
+     * to copy the table or stop it being updated while saving.
+     */
+    public boolean saveToFile(File file) {
+        try {
+            LOGGER.info("Saving to track data store...");
+            int aisNameCount = aisNameCache.size();
+            TrackDataStore store = file.getAbsoluteFile().equals(serializationFile.getAbsoluteFile()) ? getDataStore() : new TrackDataStore(file);
+            int count = store.save(values(), aisNameCache);
+            if (store == dataStore) {
+                lastBackupAISNameCount = aisNameCount;
+            }
+            LOGGER.info("Saved {} tracks to track data store at {}", count, file.getAbsolutePath());
             LOGGER.info("Saved {} AIS names to track data store", aisNameCache.size());
+            return true;
         } catch (IOException e) {
             LOGGER.error("Could not save track table to {}", file.getAbsolutePath(), e);
+            return false;
         }
     }
 
@@ -187,9 +908,13 @@ public class TrackTable extends ConcurrentHashMap<String, Track> {
     public void loadCustomTracksFromConfig() {
         // First, remove any existing base stations, airports and seaports from the track table.
         // We are loading a new set from config so we don't want to duplicate any old ones.
-        values().removeIf(t -> t.getTrackType() == TrackType.BASE_STATION
-                || t.getTrackType() == TrackType.AIRPORT
-                || t.getTrackType() == TrackType.SEAPORT);
+        for (Track t : values()) {
+            if (t.getTrackType() == TrackType.BASE_STATION
+                    || t.getTrackType() == TrackType.AIRPORT
+                    || t.getTrackType() == TrackType.SEAPORT) {
+                remove(t.getID(), t);
+            }
+        }
 
         // Now load.
         ConfigList baseStationConfigs = Application.CONFIG.getList("custom-tracks.base-stations");
@@ -201,10 +926,10 @@ public class TrackTable extends ConcurrentHashMap<String, Track> {
             put(bs.getID(), bs);
             // Special case - store the first base station's position as the ADS-B decoder
             // will want that. Note Position takes longitude first!
-            baseStationPosition = new Position(
+            setBaseStationPosition(new Position(
                     ((Number) data.get("lon")).doubleValue(),
                     ((Number) data.get("lat")).doubleValue(),
-                    ((Number) data.get("alt")).doubleValue());
+                    ((Number) data.get("alt")).doubleValue()));
         }
         LOGGER.info("Loaded {} base stations from config file", baseStationConfigs.size());
 
@@ -239,74 +964,182 @@ public class TrackTable extends ConcurrentHashMap<String, Track> {
     }
 
     /**
-     * Returns the distance from the base station to the given track. If either the base station
-     * position or the track position is unknown, return null.
+     * Set the base station position, and update everything that depends on it.
+     */
+    private void setBaseStationPosition(Position p) {
+        baseStationPosition = p;
+        BoundingBox[] areas = new BoundingBox[TrackType.values().length];
+        for (TrackType type : TrackType.values()) {
+            double maxRangeNmi = getMaxRangeNmi(type);
+            if (maxRangeNmi != Double.POSITIVE_INFINITY) {
+                areas[type.ordinal()] = SpatialIndex.boundingBox(p.getLatitude(), p.getLongitude(), maxRangeNmi / METRES_TO_NMI);
+            }
+        }
+        reasonableAreaByType = areas;
+        baseStationVersion++;
+        statistics.invalidateRanges();
+
+        // Cached ranges and bearings are now out of date, so mark every track changed
+        // to get them recalculated and republished
+        for (Track t : values()) {
+            synchronized (t) {
+                t.markChanged(ChangeGroup.POSITION);
+                t.publishState();
+            }
+        }
+    }
+
+    /**
+     * Returns the distance in metres from the base station to the given track. If either
+     * the base station position or the track position is unknown, return null.
+     * <p>
+     * This is normally cached on the track when it accepts a position, so is cheap to call.
      */
     public Double getDistanceFromBaseStation(Track t) {
-        if (baseStationPosition != null && t != null && t.getPosition() != null) {
-            return baseStationPosition.haversine(new Position(t.getPosition().longitude(), t.getPosition().latitude(), 0.0));
-        } else {
+        if (!updateRangeAndBearing(t)) {
             return null;
         }
+        return t.getRangeFromBaseStation();
     }
 
     /**
-     * Returns the distance from the base station to the given track. If either the base station
-     * position or the track position is unknown, return zero.
+     * Returns the distance in metres from the base station to the given track. If either
+     * the base station position or the track position is unknown, return zero.
      */
     public double getDistanceFromBaseStationOrZero(Track t) {
-        Double d = getDistanceFromBaseStation(t);
-        return d != null ? d : 0.0;
+        if (!updateRangeAndBearing(t)) {
+            return 0.0;
+        }
+        return t.getRangeFromBaseStation();
+    }
+
+    /**
+     * Returns the bearing in degrees from the base station to the given track. If either
+     * the base station position or the track position is unknown, return null.
+     */
+    public Double getBearingFromBaseStation(Track t) {
+        if (!updateRangeAndBearing(t)) {
+            return null;
+        }
+        return t.getBearingFromBaseStation();
+    }
+
+    /**
+     * Called by a track when it accepts a new position, to cache the range and bearing
+     * from the base station to that position on the track.
+     *
+     * @param t         The track
+     * @param latitude  Latitude, decimal degrees
+     * @param longitude Longitude, decimal degrees
+     * @param range     Range in metres, as returned by getRangeIfReasonable(), or NaN
+     *                  if the base station position is unknown
+     */
+    public void cacheRangeAndBearing(Track t, double latitude, double longitude, double range) {
+        Position base = baseStationPosition;
+        if (base != null && !Double.isNaN(range)) {
+            t.setRangeAndBearing(range, SpatialIndex.bearing(base.getLatitude(), base.getLongitude(), latitude, longitude),
+                    baseStationVersion);
+        }
+    }
+
+    /**
+     * Make sure the track's cached range and bearing are up-to-date, recalculating them
+     * if the base station has moved since, or if they have never been calculated (e.g.
+     * for tracks loaded from disk).
+     *
+     * @return false if the base station position or track position is unknown.
+     */
+    private boolean updateRangeAndBearing(Track t) {
+        Position base = baseStationPosition;
+        if (base == null || t == null) {
+            return false;
+        }
+        TimestampedPosition p = t.getPosition();
+        if (p == null) {
+            return false;
+        }
+        int version = baseStationVersion;
+        if (t.getRangeBaseStationVersion() != version) {
+            t.setRangeAndBearing(SpatialIndex.haversine(base.getLatitude(), base.getLongitude(), p.latitude(), p.longitude()),
+                    SpatialIndex.bearing(base.getLatitude(), base.getLongitude(), p.latitude(), p.longitude()), version);
+        }
+        return true;
+    }
+
+    /**
+     * <p>Return true if the position provided is considered "reasonable" for a track of the given type. See
+     * getRangeIfReasonable() for the checks performed.</p>
+     *
+     * @param latitude  Latitude, decimal degrees
+     * @param longitude Longitude, decimal degrees
+     * @param type      The type of track
+     */
+    public boolean isReasonablePosition(double latitude, double longitude, TrackType type) {
+        return getRangeIfReasonable(latitude, longitude, type) != UNREASONABLE;
     }
 
     /**
-     * <p>Return true if the position provided is considered "reasonable" for a track of the given type. For aircraft and
+     * <p>Check whether the position provided is considered "reasonable" for a track of the given type, and if so
+     * return its range from the base station, so that the caller doesn't need to calculate it again. For aircraft and
      * AIS tracks, the position is compared against the base station position and expected ranges set in the config file
      * to determine whether this is reasonable or likely to be dodgy data. Checks performed are as follows:</p>
      * <ul>
-     *     <li>If latitude or longitude are outside their numeric bounds, return false (corrupt or test data)</li>
-     *     <li>If latitude and longitude are exactly zero, return false (bad transponder reporting 0,0 for no data)</li>
-     *     <li>If no base station position is provided, return true (can't tell if positions are reasonable, assume they
+     *     <li>If latitude or longitude are outside their numeric bounds, return UNREASONABLE (corrupt or test data)</li>
+     *     <li>If latitude and longitude are exactly zero, return UNREASONABLE (bad transponder reporting 0,0 for no
+     *     data)</li>
+     *     <li>If no base station position is provided, return NaN (can't tell if positions are reasonable, assume they
      *     are</li>
-     *     <li>If the type is null, return false (we don't want to accidentally add a position that will then become
-     *     "unreasonable" once we know the type)</li>
-     *     <li>If the type is base station, airport or seaport, return true (these are pre-programmed)</li>
-     *     <li>If the type is APRS, return true (APRS is repeated so there is no reasonableness check for range)</li>
+     *     <li>If the type is null, return UNREASONABLE (we don't want to accidentally add a position that will then
+     *     become "unreasonable" once we know the type)</li>
+     *     <li>If the type is base station, airport or seaport, the position is reasonable (these are
+     *     pre-programmed)</li>
+     *     <li>If the type is APRS, the position is reasonable (APRS is repeated so there is no reasonableness check for
+     *     range)</li>
      *     <li>For the remaining types (aircraft & AIS) compare the range from the base station against the configued
-     *     limits. Return true if their range looks reasonable, false otherwise.</li>
+     *     limits. Positions outside a bounding box around the base station are rejected straight away, without
+     *     needing to calculate the range.</li>
      * </ul>
      *
      * @param latitude  Latitude, decimal degrees
      * @param longitude Longitude, decimal degrees
      * @param type      The type of track
+     * @return The range from the base station in metres if the position is reasonable, NaN if it is reasonable but
+     * the base station position is unknown, or UNREASONABLE.
      */
-    public boolean isReasonablePosition(double latitude, double longitude, TrackType type) {
+    public double getRangeIfReasonable(double latitude, double longitude, TrackType type) {
         if (latitude < -90.0 || latitude > 90.0 || longitude < -180.0 || longitude > 180.0) {
-            return false;
+            return UNREASONABLE;
         }
         if (latitude == 0.0 && longitude == 0.0) {
-            return false;
+            return UNREASONABLE;
         }
-        if (baseStationPosition == null) {
-            return true;
+        Position base = baseStationPosition;
+        if (base == null) {
+            return Double.NaN;
         }
         if (type == null) {
-            return false;
+            return UNREASONABLE;
         }
-        switch (type) {
-            case AIRCRAFT -> {
-                return baseStationPosition.haversine(new Position(longitude, latitude, 0.0)) * METRES_TO_NMI <= Aircraft.MAX_AIRCRAFT_RANGE;
-            }
-            case SHIP, AIS_ATON, AIS_SHORE_STATION -> {
-                return baseStationPosition.haversine(new Position(longitude, latitude, 0.0)) * METRES_TO_NMI <= AISTrack.MAX_AIS_RANGE;
-            }
-            case RADIOSONDE -> {
-                return baseStationPosition.haversine(new Position(longitude, latitude, 0.0)) * METRES_TO_NMI <= Radiosonde.MAX_RADIOSONDE_RANGE;
-            }
-            default -> {
-                return true;
-            }
+        BoundingBox[] areas = reasonableAreaByType;
+        BoundingBox area = (areas != null) ? areas[type.ordinal()] : null;
+        if (area != null && !area.contains(latitude, longitude)) {
+            return UNREASONABLE;
         }
+        double range = SpatialIndex.haversine(base.getLatitude(), base.getLongitude(), latitude, longitude);
+        return (range * METRES_TO_NMI <= getMaxRangeNmi(type)) ? range : UNREASONABLE;
+    }
+
+    /**
+     * Get the maximum range from the base station that a track of the given type is
+     * expected to be seen at, in nautical miles, or infinity if there is no limit.
+     */
+    private static double getMaxRangeNmi(TrackType type) {
+        return switch (type) {
+            case AIRCRAFT -> Aircraft.MAX_AIRCRAFT_RANGE;
+            case SHIP, AIS_ATON, AIS_SHORE_STATION -> AISTrack.MAX_AIS_RANGE;
+            case RADIOSONDE -> Radiosonde.MAX_RADIOSONDE_RANGE;
+            default -> Double.POSITIVE_INFINITY;
+        };
     }
 
     /**
@@ -315,24 +1148,32 @@ public class TrackTable extends ConcurrentHashMap<String, Track> {
     public void printStatusData() {
         StringBuilder summary = new StringBuilder();
         for (TrackType t : TrackType.values()) {
-            long count = countTracksOfType(t);
+            int count = countTracksOfType(t);
             if (count > 0) {
                 summary.append(count).append(" ").append(t).append("   ");
             }
         }
         LOGGER.info("Track table contains: {}", summary);
+        if (shards.length > 1) {
+            for (TrackTableShard shard : shards) {
+                LOGGER.info("Shard {}: {} tracks, {} updates, {} queued, {} dropped, last maintenance took {} ms",
+                        shard.getIndex(), shard.getTrackCount(), shard.getUpdateCount(), shard.getIngestQueueLength(),
+                        shard.getDroppedCount(), shard.getLastMaintenanceDuration());
+            }
+        }
 
         if (printTrackTableToStdOut && !isEmpty()) {
             LOGGER.info("----------------------------------------------------------------------------------");
             LOGGER.info("Name                 Type       Description                               Age (ms)");
             LOGGER.info("----------------------------------------------------------------------------------");
             for (Track e : values()) {
+                TrackState s = e.getState();
                 LOGGER.info("{} {} {} {} {}",
-                        String.format("%-20.20s", e.getDisplayName()),
-                        String.format("%-10.10s", e.getTrackType()),
-                        String.format("%-20.20s", e.getDisplayInfo1()),
-                        String.format("%-20.20s", e.getDisplayInfo2()),
-                        e.getTimeSinceLastUpdate() != null ? String.format("%-6.6s", e.getTimeSinceLastUpdate()) : "------");
+                        String.format("%-20.20s", s.displayName()),
+                        String.format("%-10.10s", s.trackType()),
+                        String.format("%-20.20s", s.displayInfo1()),
+                        String.format("%-20.20s", s.displayInfo2()),
+                        String.format("%-6.6s", e.getTimeSinceLastUpdate()));
             }
             LOGGER.info("----------------------------------------------------------------------------------");
         }
@@ -342,24 +1183,33 @@ public class TrackTable extends ConcurrentHashMap<String, Track> {
      * Stop internal threads and prepare for shutdown.
      */
     public void shutdown() {
-        maintenanceTask.cancel(true);
+        statusTask.cancel(true);
         backupTask.cancel(true);
+        // Shut down the shards first, so that any queued updates make it into the save
+        for (TrackTableShard shard : shards) {
+            shard.shutdown();
+        }
         saveToFile();
+        if (journal != null) {
+            journal.shutdown();
+        }
+        if (archive != null) {
+            archive.shutdown();
+        }
+        eventBus.shutdown();
     }
 
     /**
-     * Scheduled maintenance task that runs while the track table is running.
+     * Scheduled status task that runs while the track table is running.
      */
-    private class MaintenanceTask implements Runnable {
+    private class StatusTask implements Runnable {
 
         @Override
         public void run() {
             try {
                 printStatusData();
-                cullOldPositionData();
-                dropExpiredTracks();
             } catch (Throwable t) {
-                LOGGER.error("Caught exception in maintenance task, continuing...", t);
+                LOGGER.error("Caught exception in status task, continuing...", t);
             }
         }
     }
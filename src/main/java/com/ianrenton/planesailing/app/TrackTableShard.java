@@ -0,0 +1,215 @@
+package com.ianrenton.planesailing.app;
+
+import com.ianrenton.planesailing.data.Track;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One shard of the track table. The track ID space is split across the shards by
+ * hash, and each shard looks after the tracks whose IDs fall into it: it has its
+ * own expiry queue and maintenance thread, so maintenance of a large table is
+ * spread across several threads that never look at the same track, and its own
+ * counters.
+ * <p>
+ * Optionally, a shard can also have a single ingest thread which applies every
+ * update to its tracks. Updates to any one track are then applied in the order
+ * they arrived, by one thread, so receivers never wait on each other's track
+ * locks. If a shard's ingest thread falls too far behind, receivers wait for room
+ * in its queue, rather than applying the update themselves out of order.
+ * <p>
+ * The tracks themselves are still held in the track table's single map, so
+ * lookups and iteration over the table are not affected by sharding.
+ */
+public class TrackTableShard {
+    private static final Logger LOGGER = LogManager.getLogger(TrackTableShard.class);
+
+    /**
+     * Maximum number of updates waiting for a shard's ingest thread before
+     * receivers have to wait for it to catch up.
+     */
+    public static final int INGEST_QUEUE_CAPACITY = 10000;
+
+    private final int index;
+    private final TrackExpiryQueue expiryQueue = new TrackExpiryQueue();
+    private final ScheduledExecutorService maintenanceExecutor;
+    private final ThreadPoolExecutor ingestExecutor;
+    @SuppressWarnings("rawtypes")
+    private ScheduledFuture maintenanceTask;
+
+    private final AtomicInteger trackCount = new AtomicInteger();
+    private final AtomicLong updateCount = new AtomicLong();
+    private final AtomicLong maintainedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile long lastMaintenanceDuration = 0;
+
+    /**
+     * Create a shard.
+     *
+     * @param index        Index of this shard in the track table
+     * @param singleWriter Whether to apply updates to this shard's tracks on a
+     *                     dedicated ingest thread
+     */
+    public TrackTableShard(int index, boolean singleWriter) {
+        this.index = index;
+        maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("Track Table Shard " + index + " Maintenance Thread").build());
+        if (singleWriter) {
+            ingestExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(INGEST_QUEUE_CAPACITY),
+                    new BasicThreadFactory.Builder().namingPattern("Track Table Shard " + index + " Ingest Thread").build(),
+                    this::waitForRoom);
+        } else {
+            ingestExecutor = null;
+        }
+    }
+
+    /**
+     * Start running the given maintenance task for this shard at a fixed interval.
+     */
+    void startMaintenance(Runnable task, long intervalMillis) {
+        maintenanceTask = maintenanceExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                task.run();
+                lastMaintenanceDuration = System.currentTimeMillis() - start;
+            } catch (Throwable t) {
+                LOGGER.error("Caught exception in maintenance task for shard {}, continuing...", index, t);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called when the ingest queue is full. Block the receiver until there is room,
+     * so that updates are still applied by the ingest thread in arrival order. An
+     * update that arrives once the shard is shutting down is discarded.
+     */
+    private void waitForRoom(Runnable r, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            LOGGER.warn("Shard {} is shutting down, discarding an update", index);
+            return;
+        }
+        try {
+            executor.getQueue().put(r);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Apply an update to one of this shard's tracks, on the ingest thread if there
+     * is one, or immediately on the calling thread if not.
+     */
+    void ingest(Runnable update) {
+        if (ingestExecutor != null) {
+            ingestExecutor.execute(() -> {
+                try {
+                    update.run();
+                } catch (Exception ex) {
+                    LOGGER.error("Caught exception applying an update in shard {}, continuing...", index, ex);
+                }
+            });
+        } else {
+            update.run();
+        }
+    }
+
+    /**
+     * Stop this shard's threads. Any updates already queued for the ingest thread
+     * are applied first.
+     */
+    void shutdown() {
+        if (maintenanceTask != null) {
+            maintenanceTask.cancel(true);
+        }
+        maintenanceExecutor.shutdownNow();
+        if (ingestExecutor != null) {
+            ingestExecutor.shutdown();
+            try {
+                if (!ingestExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    LOGGER.warn("Shard {} ingest thread did not finish its queued updates in time", index);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void onTrackAdded() {
+        trackCount.incrementAndGet();
+    }
+
+    void onTrackRemoved() {
+        trackCount.decrementAndGet();
+    }
+
+    void onUpdateApplied() {
+        updateCount.incrementAndGet();
+    }
+
+    void onTrackMaintained(boolean dropped) {
+        maintainedCount.incrementAndGet();
+        if (dropped) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    TrackExpiryQueue getExpiryQueue() {
+        return expiryQueue;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public boolean isSingleWriter() {
+        return ingestExecutor != null;
+    }
+
+    /**
+     * Get the number of tracks currently in this shard.
+     */
+    public int getTrackCount() {
+        return trackCount.get();
+    }
+
+    /**
+     * Get the number of updates applied to this shard's tracks.
+     */
+    public long getUpdateCount() {
+        return updateCount.get();
+    }
+
+    /**
+     * Get the number of times a track in this shard has had maintenance performed.
+     */
+    public long getMaintainedCount() {
+        return maintainedCount.get();
+    }
+
+    /**
+     * Get the number of tracks dropped from this shard by maintenance.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Get the number of updates waiting for this shard's ingest thread, or zero if
+     * it doesn't have one.
+     */
+    public int getIngestQueueLength() {
+        return ingestExecutor != null ? ingestExecutor.getQueue().size() : 0;
+    }
+
+    /**
+     * Get the time taken by the last maintenance run for this shard, in milliseconds.
+     */
+    public long getLastMaintenanceDuration() {
+        return lastMaintenanceDuration;
+    }
+}
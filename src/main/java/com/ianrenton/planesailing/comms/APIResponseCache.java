@@ -0,0 +1,155 @@
+package com.ianrenton.planesailing.comms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.LongSupplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of encoded API call responses, so that when many clients make the same
+ * call at around the same time, the response is only encoded once and the result
+ * shared between them.
+ * <p>
+ * Responses are cached by a key identifying the call, so this is only suitable
+ * for responses that are the same for every client that makes the call. A response
+ * is reused until it reaches a maximum age, whatever has changed since, so that
+ * with a busy live feed the cost of a call still doesn't grow with the number of
+ * clients. Responses carry the sequence number they were encoded at, so a client
+ * given a slightly old one still asks for the right changes next time. If a
+ * request comes in while the response it needs is being encoded, it always waits
+ * for that to finish rather than encoding another copy.
+ * <p>
+ * Optionally, a version can be given, so that responses are replaced before their
+ * maximum age when the version changes. This is only worthwhile for data that
+ * changes much less often than the maximum age.
+ * <p>
+ * Each response is held both as it is and gzip-compressed, so clients that accept
+ * compression can be sent it without it being compressed again for each of them.
+ */
+public class APIResponseCache {
+
+    private final LongSupplier version;
+    private final long maxAge;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Writes a response to a stream.
+     */
+    @FunctionalInterface
+    public interface Encoder {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * An encoded response.
+     *
+     * @param identity The response as it is
+     * @param gzip     The response gzip-compressed
+     */
+    public record Response(byte[] identity, byte[] gzip) {
+    }
+
+    /**
+     * A response that has been, or is being, encoded.
+     */
+    private static class Entry {
+        final long version;
+        final CompletableFuture<Response> response = new CompletableFuture<>();
+        volatile long encodedTime;
+
+        Entry(long version) {
+            this.version = version;
+        }
+
+        /**
+         * Return true if this can be used for a request made at the given version
+         * and time. An entry that is still being encoded can always be used, to
+         * save starting another encode of the same response.
+         */
+        boolean isCurrent(long version, long time, long maxAge) {
+            return !response.isDone() || (this.version == version && time - encodedTime < maxAge);
+        }
+    }
+
+    /**
+     * Create the cache, reusing each response until it reaches the maximum age.
+     *
+     * @param maxAge Maximum age in milliseconds at which a response is reused
+     */
+    public APIResponseCache(long maxAge) {
+        this(() -> 0, maxAge);
+    }
+
+    /**
+     * Create the cache, also replacing responses early when the version changes.
+     *
+     * @param version Supplies the current version of the data responses are made
+     *                from. Finished responses encoded at older versions are not
+     *                reused, though one still being encoded is waited for.
+     * @param maxAge  Maximum age in milliseconds at which a response is reused
+     */
+    public APIResponseCache(LongSupplier version, long maxAge) {
+        this.version = version;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Get a response from the cache, encoding it if there isn't a current one and
+     * another thread isn't already encoding it.
+     *
+     * @param key     Identifies the call and its parameters
+     * @param encoder Writes the response, if it needs encoding
+     * @throws IOException if the response could not be encoded, either by this
+     *                     thread or by the one this was waiting for
+     */
+    public Response get(String key, Encoder encoder) throws IOException {
+        // Take the version before encoding, so a response is never reused for a
+        // version newer than the data it was encoded from
+        long currentVersion = version.getAsLong();
+        long now = System.currentTimeMillis();
+        Entry mine = new Entry(currentVersion);
+        Entry entry = entries.compute(key, (k, e) -> (e != null && e.isCurrent(currentVersion, now, maxAge)) ? e : mine);
+
+        if (entry == mine) {
+            try {
+                Response response = encode(encoder);
+                mine.encodedTime = System.currentTimeMillis();
+                mine.response.complete(response);
+            } catch (IOException | RuntimeException ex) {
+                entries.remove(key, mine);
+                mine.response.completeExceptionally(ex);
+                throw ex;
+            }
+            // Clear out old responses, so they don't hold on to memory until the
+            // same call is next made
+            entries.values().removeIf(e -> e.response.isDone() && !e.isCurrent(currentVersion, now, maxAge));
+            return mine.response.join();
+        }
+
+        try {
+            return entry.response.get();
+        } catch (ExecutionException ex) {
+            throw new IOException("Could not encode response", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for response", ex);
+        }
+    }
+
+    private static Response encode(Encoder encoder) throws IOException {
+        ByteArrayOutputStream identity = new ByteArrayOutputStream();
+        encoder.write(identity);
+        byte[] bytes = identity.toByteArray();
+
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream(bytes.length / 4);
+        try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+            out.write(bytes);
+        }
+        return new Response(bytes, gzip.toByteArray());
+    }
+}
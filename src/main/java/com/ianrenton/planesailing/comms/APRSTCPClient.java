@@ -129,12 +129,6 @@ public class APRSTCPClient extends TCPClient {
         String destCall = packet.getDestinationCall();
         String route = packet.getDigiString();
 
-        // If this is a new track, add it to the track table
-        if (!trackTable.containsKey(callsign)) {
-            trackTable.put(callsign, new APRSTrack(callsign));
-        }
-        APRSTrack a = (APRSTrack) trackTable.get(callsign);
-
         // Extract APRS data
         InformationField data = packet.getAprsInformation();
 
@@ -154,57 +148,43 @@ public class APRSTCPClient extends TCPClient {
         // Tweak formatting of route, and only keep the comment
         // if it contains human-entered data, approximated here
         // by being more than five characters long
-        if (route.startsWith(",")) {
-            route = route.replaceFirst(",", "");
-        }
-        if (comment.length() < 5) {
-            comment = null;
-        }
+        String formattedRoute = route.startsWith(",") ? route.replaceFirst(",", "") : route;
+        String humanComment = (comment.length() >= 5) ? comment : null;
 
         // Extract position data if available
-        Position p = null;
-        if (data.containsType(APRSTypes.T_POSITION)) {
-            p = ((PositionField) data.getAprsData(APRSTypes.T_POSITION)).getPosition();
-        }
-
-        // Extract course/speed data if available
-        Double course = null;
-        Double speed = null;
-        if (data.getExtension() instanceof CourseAndSpeedExtension) {
-            course = (double) ((CourseAndSpeedExtension) data.getExtension()).getCourse();
-            speed = (double) ((CourseAndSpeedExtension) data.getExtension()).getSpeed();
-        }
-        // Don't trust course = 0 and speed = 0 as valid data
-        if (course != null && course == 0.0 && speed == 0.0) {
-            course = null;
-            speed = null;
-        }
-
-        // Update the track.
-        a.setSSID(ssid);
-        if (destCall != null && !destCall.isEmpty()) {
-            a.setPacketDestCall(destCall);
-        }
-        if (!route.isEmpty()) {
-            a.setPacketRoute(route);
-        }
-        if (comment != null) {
-            a.setComment(comment);
-        }
-        if (p != null) {
-            a.addPosition(p.getLatitude(), p.getLongitude());
-            if (p.getAltitude() > 0) {
-                a.setAltitude((double) p.getAltitude());
+        Position p = data.containsType(APRSTypes.T_POSITION)
+                ? ((PositionField) data.getAprsData(APRSTypes.T_POSITION)).getPosition() : null;
+
+        // Extract course/speed data if available. Don't trust course = 0 and speed = 0 as valid data
+        CourseAndSpeedExtension cs = (data.getExtension() instanceof CourseAndSpeedExtension e) ? e : null;
+        boolean hasCourseAndSpeed = cs != null && !(cs.getCourse() == 0 && cs.getSpeed() == 0);
+
+        // Update the track, creating it if it is new
+        long time = System.currentTimeMillis();
+        trackTable.update(callsign, APRSTrack::new, a -> {
+            a.setSSID(ssid);
+            if (destCall != null && !destCall.isEmpty()) {
+                a.setPacketDestCall(destCall);
             }
-        }
-        if (course != null) {
-            a.setCourse(course);
-            a.setHeading(course);
-        }
-        if (speed != null) {
-            a.setSpeed(speed);
-        }
-        a.updateMetadataTime();
+            if (!formattedRoute.isEmpty()) {
+                a.setPacketRoute(formattedRoute);
+            }
+            if (humanComment != null) {
+                a.setComment(humanComment);
+            }
+            if (p != null) {
+                a.addPosition(p.getLatitude(), p.getLongitude(), time);
+                if (p.getAltitude() > 0) {
+                    a.setAltitude(p.getAltitude());
+                }
+            }
+            if (hasCourseAndSpeed) {
+                a.setCourse(cs.getCourse());
+                a.setHeading(cs.getCourse());
+                a.setSpeed(cs.getSpeed());
+            }
+            a.updateMetadataTime(time);
+        });
     }
 
     @Override
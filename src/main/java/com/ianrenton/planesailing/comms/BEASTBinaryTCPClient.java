@@ -26,6 +26,7 @@ public class BEASTBinaryTCPClient extends TCPClient {
     private static final Logger LOGGER = LogManager.getLogger(BEASTBinaryTCPClient.class);
     private static final byte ESC = (byte) 0x1a;
     private static final String COMMB_CALLSIGN_BASE64 = "@ABCDEFGHIJKLMNOPQRSTUVWXYZ[\\]^_ !\"#$%&'()*+,-./0123456789:;<=>?";
+    // Shared by all connections. The decoder is not thread-safe, so it must be locked while in use.
     private static final ModeSDecoder DECODER = new ModeSDecoder();
 
     private final boolean mlat;
@@ -132,7 +133,11 @@ public class BEASTBinaryTCPClient extends TCPClient {
             // Modify MLAT data to look like "real" ADS-B data
             byte[] fudgedData = fudgeMLATData(data);
             // Handle the message
-            handle(DECODER.decode(fudgedData), trackTable, name);
+            ModeSReply msg;
+            synchronized (DECODER) {
+                msg = DECODER.decode(fudgedData);
+            }
+            handle(msg, trackTable, name);
 
         } catch (BadFormatException e) {
             LOGGER.debug("Malformed message skipped. Message: {}", e.getMessage());
@@ -172,216 +177,246 @@ public class BEASTBinaryTCPClient extends TCPClient {
      */
     static void handle(ModeSReply msg, TrackTable trackTable, String name) {
         try {
-            // Get the ICAO 24-bit hex code
-            String icao24 = tools.toHexString(msg.getIcao24());
+            // Get the ICAO 24-bit address
+            byte[] icao24Bytes = msg.getIcao24();
+            int icao24 = ((icao24Bytes[0] & 0xFF) << 16) | ((icao24Bytes[1] & 0xFF) << 8) | (icao24Bytes[2] & 0xFF);
+
+            // Take the time and decode any position now, as the message is received.
+            // The decoder keeps state between messages, so must only see each one
+            // once, whereas the update below may be applied more than once, and later.
+            long time = System.currentTimeMillis();
+            Position position = decodePosition(msg, time, trackTable.getBaseStationPosition());
+
+            // Update the track, creating it if it is new. We only need the hex string
+            // form of the address when creating a track.
+            trackTable.updateAircraft(icao24, () -> new Aircraft(tools.toHexString(icao24Bytes)),
+                    a -> update(a, msg, position, time));
+        } catch (Exception ex) {
+            LOGGER.warn("Receiver {} encountered an exception handling a Mode S packet", name, ex);
+        }
+    }
 
-            // If this is a new track, add it to the track table
-            if (!trackTable.containsKey(icao24)) {
-                trackTable.put(icao24, new Aircraft(icao24));
+    /**
+     * Figure out a position from a Mode S packet, if it is an airborne or surface
+     * position message. If we have a real position decoded "properly" using two
+     * packets (odd and even) then use it. Otherwise, we fall back on the "local
+     * position" provided in the single packet we just received. This will be less
+     * accurate and will only work for planes within 180 nmi of the base station,
+     * but should be good enough to get us some kind of position rather than having
+     * it blank in the track table and no icon shown.
+     *
+     * @param msg                 The Mode S packet
+     * @param time                Time the packet was received
+     * @param baseStationPosition Position of the base station, used as the reference
+     * @return The position, or null if the packet doesn't give one
+     */
+    private static Position decodePosition(ModeSReply msg, long time, Position baseStationPosition) {
+        Position decoded;
+        Position local;
+        switch (msg.getType()) {
+            case ADSB_AIRBORN_POSITION_V0, ADSB_AIRBORN_POSITION_V1, ADSB_AIRBORN_POSITION_V2 -> {
+                AirbornePositionV0Msg ap0 = (AirbornePositionV0Msg) msg;
+                synchronized (DECODER) {
+                    decoded = DECODER.decodePosition(time, ap0, baseStationPosition);
+                }
+                local = ap0.getLocalPosition(baseStationPosition);
+            }
+            case ADSB_SURFACE_POSITION_V0, ADSB_SURFACE_POSITION_V1, ADSB_SURFACE_POSITION_V2 -> {
+                SurfacePositionV0Msg sp0 = (SurfacePositionV0Msg) msg;
+                synchronized (DECODER) {
+                    decoded = DECODER.decodePosition(time, sp0, baseStationPosition);
+                }
+                local = sp0.getLocalPosition(baseStationPosition);
+            }
+            default -> {
+                return null;
             }
+        }
+        return (decoded != null) ? decoded : local;
+    }
 
-            // Extract the data and update the track
-            Aircraft a = (Aircraft) trackTable.get(icao24);
-
-            // now check the message type / downlink format, and unpack data as necessary.
-            switch (msg.getType()) {
-                case ADSB_AIRBORN_POSITION_V0:
-                case ADSB_AIRBORN_POSITION_V1:
-                case ADSB_AIRBORN_POSITION_V2:
-                    AirbornePositionV0Msg ap0 = (AirbornePositionV0Msg) msg;
-
-                    // Figure out a position. If we have a real position decoded "properly" using
-                    // two packets (odd and even) then use it. Otherwise, we fall back on the "local
-                    // position" provided in the single packet we just received. This will be less
-                    // accurate and will only work for planes within 180 nmi of the base station,
-                    // but should be good enough to get us some kind of position rather than having
-                    // it blank in the track table and no icon shown.
-                    Position airPos = DECODER.decodePosition(System.currentTimeMillis(), ap0,
-                            trackTable.getBaseStationPosition());
-                    Position localPos = ap0.getLocalPosition(trackTable.getBaseStationPosition());
-                    if (airPos != null) {
-                        a.addPosition(airPos.getLatitude(), airPos.getLongitude());
-                    } else if (localPos != null) {
-                        a.addPosition(localPos.getLatitude(), localPos.getLongitude());
-                    }
+    /**
+     * Extract the data from a Mode S packet and update the aircraft with it. This
+     * only modifies the aircraft, so is safe for the track table to apply more than
+     * once.
+     *
+     * @param a        The aircraft to update
+     * @param msg      The Mode S packet
+     * @param position Position decoded from the packet, or null if none
+     * @param time     Time the packet was received
+     */
+    private static void update(Aircraft a, ModeSReply msg, Position position, long time) {
+        // now check the message type / downlink format, and unpack data as necessary.
+        switch (msg.getType()) {
+            case ADSB_AIRBORN_POSITION_V0:
+            case ADSB_AIRBORN_POSITION_V1:
+            case ADSB_AIRBORN_POSITION_V2:
+                AirbornePositionV0Msg ap0 = (AirbornePositionV0Msg) msg;
+                if (position != null) {
+                    a.addPosition(position.getLatitude(), position.getLongitude(), time);
+                }
 
-                    // Get an altitude, this could be barometric or geometric but Plane/Sailing
-                    // doesn't really care
-                    if (ap0.hasAltitude()) {
-                        a.setAltitude(ap0.getAltitude().doubleValue());
-                    }
+                // Get an altitude, this could be barometric or geometric but Plane/Sailing
+                // doesn't really care
+                if (ap0.hasAltitude()) {
+                    a.setAltitude(ap0.getAltitude().doubleValue());
+                }
 
-                    // Got this message so we know this is airborne
-                    a.setOnGround(false);
-                    break;
-
-                case ADSB_SURFACE_POSITION_V0:
-                case ADSB_SURFACE_POSITION_V1:
-                case ADSB_SURFACE_POSITION_V2:
-                    SurfacePositionV0Msg sp0 = (SurfacePositionV0Msg) msg;
-
-                    // Figure out a position. If we have a real position decoded "properly" using
-                    // two packets (odd and even) then use it. Otherwise, we fall back on the "local
-                    // position" provided in the single packet we just received. This will be less
-                    // accurate and will only work for planes within 180 nmi of the base station,
-                    // but should be good enough to get us some kind of position rather than having
-                    // it blank in the track table and no icon shown.
-                    Position surPos = DECODER.decodePosition(System.currentTimeMillis(), sp0,
-                            trackTable.getBaseStationPosition());
-                    Position localPos2 = sp0.getLocalPosition(trackTable.getBaseStationPosition());
-                    if (surPos != null) {
-                        a.addPosition(surPos.getLatitude(), surPos.getLongitude());
-                    } else if (localPos2 != null) {
-                        a.addPosition(localPos2.getLatitude(), localPos2.getLongitude());
-                    }
+                // Got this message so we know this is airborne
+                a.setOnGround(false);
+                break;
 
-                    if (sp0.hasGroundSpeed()) {
-                        a.setSpeed(sp0.getGroundSpeed());
-                    }
+            case ADSB_SURFACE_POSITION_V0:
+            case ADSB_SURFACE_POSITION_V1:
+            case ADSB_SURFACE_POSITION_V2:
+                SurfacePositionV0Msg sp0 = (SurfacePositionV0Msg) msg;
+                if (position != null) {
+                    a.addPosition(position.getLatitude(), position.getLongitude(), time);
+                }
 
-                    // We can approximate heading as course here, I suppose unless the aircraft
-                    // is being pushed?
-                    if (sp0.hasValidHeading()) {
-                        a.setHeading(sp0.getHeading());
-                        a.setCourse(sp0.getHeading());
-                    }
+                if (sp0.hasGroundSpeed()) {
+                    a.setSpeed(sp0.getGroundSpeed());
+                }
 
-                    // Got this message so we know this is on the ground
-                    a.setOnGround(true);
-                    a.setAltitude(0.0);
-                    break;
+                // We can approximate heading as course here, I suppose unless the aircraft
+                // is being pushed?
+                if (sp0.hasValidHeading()) {
+                    a.setHeading(sp0.getHeading());
+                    a.setCourse(sp0.getHeading());
+                }
 
-                case ADSB_AIRSPEED:
-                    AirspeedHeadingMsg airspeed = (AirspeedHeadingMsg) msg;
+                // Got this message so we know this is on the ground
+                a.setOnGround(true);
+                a.setAltitude(0.0);
+                break;
 
-                    if (airspeed.hasAirspeedInfo()) {
-                        a.setSpeed(airspeed.getAirspeed().doubleValue());
-                    }
+            case ADSB_AIRSPEED:
+                AirspeedHeadingMsg airspeed = (AirspeedHeadingMsg) msg;
 
-                    // Might as well approximate heading as course here,
-                    // in lieu of any other source
-                    if (airspeed.hasHeadingStatusFlag()) {
-                        a.setHeading(airspeed.getHeading());
-                        a.setCourse(airspeed.getHeading());
-                    }
+                if (airspeed.hasAirspeedInfo()) {
+                    a.setSpeed(airspeed.getAirspeed().doubleValue());
+                }
 
-                    if (airspeed.hasVerticalRateInfo()) {
-                        a.setVerticalRate(Double.valueOf(airspeed.getVerticalRate()));
-                    }
-                    break;
+                // Might as well approximate heading as course here,
+                // in lieu of any other source
+                if (airspeed.hasHeadingStatusFlag()) {
+                    a.setHeading(airspeed.getHeading());
+                    a.setCourse(airspeed.getHeading());
+                }
 
-                case ADSB_VELOCITY:
-                    VelocityOverGroundMsg veloc = (VelocityOverGroundMsg) msg;
+                if (airspeed.hasVerticalRateInfo()) {
+                    a.setVerticalRate(airspeed.getVerticalRate());
+                }
+                break;
 
-                    if (veloc.hasVelocityInfo()) {
-                        a.setSpeed(veloc.getVelocity());
-                    }
+            case ADSB_VELOCITY:
+                VelocityOverGroundMsg veloc = (VelocityOverGroundMsg) msg;
 
-                    // Might as well approximate heading as course here,
-                    // in lieu of any other source
-                    if (veloc.hasVelocityInfo()) {
-                        a.setHeading(veloc.getHeading());
-                        a.setCourse(veloc.getHeading());
-                    }
+                if (veloc.hasVelocityInfo()) {
+                    a.setSpeed(veloc.getVelocity());
+                }
 
-                    if (veloc.hasVerticalRateInfo()) {
-                        a.setVerticalRate(Double.valueOf(veloc.getVerticalRate()));
-                    }
-                    break;
+                // Might as well approximate heading as course here,
+                // in lieu of any other source
+                if (veloc.hasVelocityInfo()) {
+                    a.setHeading(veloc.getHeading());
+                    a.setCourse(veloc.getHeading());
+                }
 
-                case ADSB_IDENTIFICATION:
-                    IdentificationMsg ident = (IdentificationMsg) msg;
+                if (veloc.hasVerticalRateInfo()) {
+                    a.setVerticalRate(veloc.getVerticalRate());
+                }
+                break;
 
-                    a.setCallsign(new String(ident.getIdentity()));
-                    a.setCategory(getICAOCategoryFromIdentMsg(ident));
-                    break;
+            case ADSB_IDENTIFICATION:
+                IdentificationMsg ident = (IdentificationMsg) msg;
 
-                case SHORT_ACAS:
-                    ShortACAS acas = (ShortACAS) msg;
-                    if (acas.getAltitude() != null) {
-                        a.setAltitude(acas.getAltitude().doubleValue());
-                        a.setOnGround(!acas.isAirborne());
-                    }
-                    break;
+                a.setCallsign(new String(ident.getIdentity()));
+                a.setCategory(getICAOCategoryFromIdentMsg(ident));
+                break;
 
-                case ALTITUDE_REPLY:
-                    AltitudeReply alti = (AltitudeReply) msg;
-                    if (alti.getAltitude() != null) {
-                        a.setAltitude(alti.getAltitude().doubleValue());
-                        a.setOnGround(alti.isOnGround());
-                    }
-                    break;
-
-                case IDENTIFY_REPLY:
-                    IdentifyReply identify = (IdentifyReply) msg;
-                    a.setSquawk(Integer.parseInt(identify.getIdentity()));
-                    break;
-
-                case LONG_ACAS:
-                    LongACAS long_acas = (LongACAS) msg;
-                    if (long_acas.getAltitude() != null) {
-                        a.setAltitude(long_acas.getAltitude().doubleValue());
-                        a.setOnGround(!long_acas.isAirborne());
-                    }
-                    break;
+            case SHORT_ACAS:
+                ShortACAS acas = (ShortACAS) msg;
+                if (acas.getAltitude() != null) {
+                    a.setAltitude(acas.getAltitude().doubleValue());
+                    a.setOnGround(!acas.isAirborne());
+                }
+                break;
 
-                case COMM_B_ALTITUDE_REPLY:
-                    CommBAltitudeReply commBaltitude = (CommBAltitudeReply) msg;
-                    if (commBaltitude.getAltitude() != null) {
-                        a.setAltitude(commBaltitude.getAltitude().doubleValue());
-                        a.setOnGround(commBaltitude.isOnGround());
-                    }
-                    // libadsb doesn't handle the Comm-B message contents yet apart from
-                    // the header value covered above, so we must implement our own
-                    // handling for this.
-                    handleCommBMessage(msg, a);
-                    break;
-
-                case COMM_B_IDENTIFY_REPLY:
-                    CommBIdentifyReply commBidentify = (CommBIdentifyReply) msg;
-                    a.setSquawk(Integer.parseInt(commBidentify.getIdentity()));
-                    // libadsb doesn't handle the Comm-B message contents yet apart from
-                    // the header value covered above, so we must implement our own
-                    // handling for this.
-                    handleCommBMessage(msg, a);
-                    break;
-
-                case MODES_REPLY:
-                case EXTENDED_SQUITTER:
-                    // Technically ADS-B messages are a variety of Extended Squitter
-                    // message, which is a type of Mode-S reply. However, we only get
-                    // here if the message hasn't been understood to be one of the
-                    // other message types. Therefore there's no data we need to parse
-                    // from this.
-                    break;
-
-                case COMM_D_ELM:
-                case ALL_CALL_REPLY:
-                case ADSB_EMERGENCY:
-                case ADSB_STATUS_V0:
-                case ADSB_AIRBORN_STATUS_V1:
-                case ADSB_AIRBORN_STATUS_V2:
-                case ADSB_SURFACE_STATUS_V1:
-                case ADSB_SURFACE_STATUS_V2:
-                case ADSB_TCAS:
-                case ADSB_TARGET_STATE_AND_STATUS:
-                case MILITARY_EXTENDED_SQUITTER:
-                    // Plane/Sailing doesn't need to know about this yet
-                    // Useful things in future that can be extracted from some of these packets
-                    // include:
-                    // * True vs Mag north correction
-                    // * Airspeed vs Ground speed correction
-                    // * Barometric vs ground based altitude correction
-                    // * Autopilot, alt hold, VNAV/LNAV and approach flags
-                    break;
-                default:
-                    // Type not applicable for this downlink format
-            }
-            a.updateMetadataTime();
+            case ALTITUDE_REPLY:
+                AltitudeReply alti = (AltitudeReply) msg;
+                if (alti.getAltitude() != null) {
+                    a.setAltitude(alti.getAltitude().doubleValue());
+                    a.setOnGround(alti.isOnGround());
+                }
+                break;
+
+            case IDENTIFY_REPLY:
+                IdentifyReply identify = (IdentifyReply) msg;
+                a.setSquawk(Integer.parseInt(identify.getIdentity()));
+                break;
+
+            case LONG_ACAS:
+                LongACAS long_acas = (LongACAS) msg;
+                if (long_acas.getAltitude() != null) {
+                    a.setAltitude(long_acas.getAltitude().doubleValue());
+                    a.setOnGround(!long_acas.isAirborne());
+                }
+                break;
 
-        } catch (Exception ex) {
-            LOGGER.warn("Receiver {} encountered an exception handling a Mode S packet", name, ex);
+            case COMM_B_ALTITUDE_REPLY:
+                CommBAltitudeReply commBaltitude = (CommBAltitudeReply) msg;
+                if (commBaltitude.getAltitude() != null) {
+                    a.setAltitude(commBaltitude.getAltitude().doubleValue());
+                    a.setOnGround(commBaltitude.isOnGround());
+                }
+                // libadsb doesn't handle the Comm-B message contents yet apart from
+                // the header value covered above, so we must implement our own
+                // handling for this.
+                handleCommBMessage(msg, a);
+                break;
+
+            case COMM_B_IDENTIFY_REPLY:
+                CommBIdentifyReply commBidentify = (CommBIdentifyReply) msg;
+                a.setSquawk(Integer.parseInt(commBidentify.getIdentity()));
+                // libadsb doesn't handle the Comm-B message contents yet apart from
+                // the header value covered above, so we must implement our own
+                // handling for this.
+                handleCommBMessage(msg, a);
+                break;
+
+            case MODES_REPLY:
+            case EXTENDED_SQUITTER:
+                // Technically ADS-B messages are a variety of Extended Squitter
+                // message, which is a type of Mode-S reply. However, we only get
+                // here if the message hasn't been understood to be one of the
+                // other message types. Therefore there's no data we need to parse
+                // from this.
+                break;
+
+            case COMM_D_ELM:
+            case ALL_CALL_REPLY:
+            case ADSB_EMERGENCY:
+            case ADSB_STATUS_V0:
+            case ADSB_AIRBORN_STATUS_V1:
+            case ADSB_AIRBORN_STATUS_V2:
+            case ADSB_SURFACE_STATUS_V1:
+            case ADSB_SURFACE_STATUS_V2:
+            case ADSB_TCAS:
+            case ADSB_TARGET_STATE_AND_STATUS:
+            case MILITARY_EXTENDED_SQUITTER:
+                // Plane/Sailing doesn't need to know about this yet
+                // Useful things in future that can be extracted from some of these packets
+                // include:
+                // * True vs Mag north correction
+                // * Airspeed vs Ground speed correction
+                // * Barometric vs ground based altitude correction
+                // * Autopilot, alt hold, VNAV/LNAV and approach flags
+                break;
+            default:
+                // Type not applicable for this downlink format
         }
+        a.updateMetadataTime(time);
     }
 
     /**
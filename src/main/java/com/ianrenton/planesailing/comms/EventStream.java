@@ -0,0 +1,263 @@
+package com.ianrenton.planesailing.comms;
+
+import com.ianrenton.planesailing.app.Application;
+import com.ianrenton.planesailing.app.DroppedTrack;
+import com.ianrenton.planesailing.app.TrackTable;
+import com.sun.net.httpserver.HttpExchange;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Pushes track changes to web clients as a Server-Sent Events stream, as an
+ * alternative to them polling the "update" API call.
+ * <p>
+ * At a regular interval, the changes made to the track table since the last
+ * interval are encoded once, in the same form as a delta "update" call, and the
+ * result is queued for every connected client. Each client has its own thread
+ * writing to it, and a bounded queue, so a slow client can't hold up the others.
+ * A client that falls so far behind that its queue fills is disconnected, and can
+ * reconnect and catch up using the sequence number of the last event it got. The
+ * number of clients is limited, since each has a thread of its own, and clients
+ * beyond the limit are turned away.
+ * <p>
+ * Events are:
+ * <ul>
+ *     <li>"update", whose data is a delta update, and whose ID is its sequence number</li>
+ *     <li>"keepalive", sent when nothing has changed for a while, so that the client
+ *     and any proxies in between know the connection is still alive</li>
+ *     <li>"resync", telling the client the server can no longer tell what has changed
+ *     since the sequence number it has, so it needs to load everything again using
+ *     the "first" call</li>
+ * </ul>
+ */
+public class EventStream {
+    private static final Application APP = Application.getInstance();
+    private static final Logger LOGGER = LogManager.getLogger(EventStream.class);
+    private static final byte[] RESYNC_EVENT = "event: resync\ndata: {}\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final long interval = Application.CONFIG.getLong("comms.web-server.stream.interval");
+    private final long keepaliveInterval = Application.CONFIG.getLong("comms.web-server.stream.keepalive-interval");
+    private final int clientQueueSize = Application.CONFIG.getInt("comms.web-server.stream.client-queue-size");
+    private final int maxClients = Application.CONFIG.getInt("comms.web-server.stream.max-clients");
+    private final List<StreamClient> clients = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService broadcastExecutor;
+    private ExecutorService clientExecutor;
+    private long lastSequence;
+    private long lastEventTime;
+
+    /**
+     * Start sending events to clients.
+     */
+    public synchronized void start() {
+        if (broadcastExecutor == null) {
+            lastSequence = APP.getTrackTable().getSequence();
+            lastEventTime = System.currentTimeMillis();
+            clientExecutor = Executors.newCachedThreadPool(new BasicThreadFactory.Builder().namingPattern("Event Stream Client Thread %d").daemon(true).build());
+            broadcastExecutor = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder().namingPattern("Event Stream Broadcast Thread").daemon(true).build());
+            broadcastExecutor.scheduleWithFixedDelay(this::broadcast, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Disconnect all clients and stop internal threads.
+     */
+    public synchronized void stop() {
+        if (broadcastExecutor != null) {
+            broadcastExecutor.shutdownNow();
+            for (StreamClient c : clients) {
+                c.close();
+            }
+            clientExecutor.shutdownNow();
+            broadcastExecutor = null;
+        }
+    }
+
+    /**
+     * Get the number of clients connected to the stream.
+     */
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Start streaming to a client, unless the maximum number of clients are already
+     * connected. If the client is accepted, the response headers are sent, and the
+     * exchange is kept open until the client disconnects or is disconnected.
+     * Otherwise, nothing is sent, so the caller can send an error response.
+     *
+     * @param t     The client's exchange, with any headers other than the status
+     *              already set
+     * @param since Sequence number the client has data up to, from a "first" call or
+     *              the last event it got. If given, the client is first sent what
+     *              it has missed since then. If null, the client only gets changes
+     *              from now on.
+     * @return false if the client was turned away because there are too many.
+     */
+    public boolean addClient(HttpExchange t, Long since) throws IOException {
+        if (broadcastExecutor == null) {
+            t.close();
+            return true;
+        }
+        // Add the client before working out what it has missed, so that nothing
+        // changed in between can be missed. Anything sent twice as a result is
+        // harmless, as the catch-up is encoded later and so is never older.
+        StreamClient c = new StreamClient(t);
+        synchronized (clients) {
+            if (clients.size() >= maxClients) {
+                return false;
+            }
+            clients.add(c);
+        }
+        try {
+            t.sendResponseHeaders(200, 0);
+        } catch (IOException ex) {
+            clients.remove(c);
+            throw ex;
+        }
+        if (since != null) {
+            TrackTable tt = APP.getTrackTable();
+            long sequence = tt.getSequence();
+            List<DroppedTrack> dropped = (since <= sequence) ? tt.getDroppedSince(since) : null;
+            c.offer((dropped != null) ? encodeUpdate(sequence, since, dropped) : RESYNC_EVENT);
+        }
+        clientExecutor.execute(c);
+        return true;
+    }
+
+    /**
+     * Send the changes since the last broadcast to all clients. If there are none,
+     * send a keepalive event instead if one is due.
+     */
+    private void broadcast() {
+        try {
+            TrackTable tt = APP.getTrackTable();
+            long sequence = tt.getSequence();
+            if (clients.isEmpty() || sequence == lastSequence) {
+                if (!clients.isEmpty() && System.currentTimeMillis() - lastEventTime >= keepaliveInterval) {
+                    send(("event: keepalive\ndata: {\"time\":" + System.currentTimeMillis() + "}\n\n").getBytes(StandardCharsets.UTF_8));
+                }
+                lastSequence = sequence;
+                return;
+            }
+
+            List<DroppedTrack> dropped = tt.getDroppedSince(lastSequence);
+            send((dropped != null) ? encodeUpdate(sequence, lastSequence, dropped) : RESYNC_EVENT);
+            lastSequence = sequence;
+        } catch (Exception ex) {
+            LOGGER.error("Caught exception when broadcasting to event stream clients, continuing...", ex);
+        }
+    }
+
+    private void send(byte[] event) {
+        for (StreamClient c : clients) {
+            c.offer(event);
+        }
+        lastEventTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Encode an "update" event containing the changes between two sequence numbers.
+     */
+    private static byte[] encodeUpdate(long sequence, long since, List<DroppedTrack> dropped) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(("id: " + sequence + "\nevent: update\ndata: ").getBytes(StandardCharsets.UTF_8));
+        WebServer.writeDeltaJSON(out, sequence, since, dropped);
+        out.write('\n');
+        out.write('\n');
+        return out.toByteArray();
+    }
+
+    /**
+     * A connected client, with its queue of events waiting to be written to it.
+     */
+    private class StreamClient implements Runnable {
+        private final HttpExchange exchange;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(clientQueueSize);
+        private volatile boolean closed = false;
+        private volatile Thread writer;
+
+        StreamClient(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        /**
+         * Queue an event for the client, disconnecting it if its queue is full.
+         */
+        void offer(byte[] event) {
+            if (!closed && !queue.offer(event)) {
+                LOGGER.info("Event stream client {} is not keeping up, disconnecting it.", exchange.getRemoteAddress());
+                close();
+            }
+        }
+
+        /**
+         * Write events to the client until it disconnects or is disconnected.
+         */
+        @Override
+        public void run() {
+            writer = Thread.currentThread();
+            try {
+                // Closed before this thread got going
+                if (closed) {
+                    return;
+                }
+                OutputStream out = exchange.getResponseBody();
+                while (!closed) {
+                    byte[] event = queue.take();
+                    if (closed) {
+                        break;
+                    }
+                    out.write(event);
+                    // Write anything else that has built up before flushing
+                    while ((event = queue.poll()) != null) {
+                        out.write(event);
+                    }
+                    out.flush();
+                }
+            } catch (IOException ex) {
+                // Client has disconnected, or has been disconnected while being written to
+            } catch (InterruptedException ex) {
+                // Client has been disconnected. Stay interrupted, so that closing the
+                // exchange below doesn't wait to write to a client that isn't reading.
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+                // Clear any interrupt from close() before the thread goes back to the
+                // pool, and make sure none can arrive afterwards
+                synchronized (this) {
+                    closed = true;
+                    writer = null;
+                    Thread.interrupted();
+                }
+                // Only stop counting the client once its thread and connection are done with
+                clients.remove(this);
+            }
+        }
+
+        /**
+         * Stop sending to the client. Its thread is interrupted, which wakes it up if
+         * it is waiting for an event, and if it is stuck writing to a client that
+         * isn't reading, aborts the write and closes the connection. The thread then
+         * closes the exchange and removes the client. The exchange isn't closed
+         * here, as that writes to the client too, and could block the caller.
+         */
+        synchronized void close() {
+            if (!closed) {
+                closed = true;
+                queue.clear();
+                Thread t = writer;
+                if (t != null) {
+                    t.interrupt();
+                }
+            }
+        }
+    }
+}
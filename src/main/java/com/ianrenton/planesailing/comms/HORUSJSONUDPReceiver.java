@@ -70,44 +70,40 @@ public class HORUSJSONUDPReceiver extends Client {
         try {
             String callsign = o.getString("callsign");
 
-            // If this is a new track, add it to the track table
-            if (!trackTable.containsKey(callsign)) {
-                Radiosonde newTrack = new Radiosonde(callsign);
-                trackTable.put(callsign, newTrack);
-            }
-
-            // Extract the data and update the track
-            Radiosonde r = (Radiosonde) trackTable.get(callsign);
-            if (o.has("latitude") && o.has("longitude")) {
-                r.addPosition(o.getDouble("latitude"), o.getDouble("longitude"));
-            }
-            if (o.has("altitude")) {
-                r.setAltitude(o.getDouble("altitude"));
-            }
-            if (o.has("speed")) {
-                double speedKPH = o.getDouble("speed");
-                if (speedKPH != -1) {
-                    r.setSpeed(speedKPH * 0.54); // KPH to knots
+            // Extract the data and update the track, creating it if it is new
+            long time = System.currentTimeMillis();
+            trackTable.update(callsign, Radiosonde::new, r -> {
+                if (o.has("latitude") && o.has("longitude")) {
+                    r.addPosition(o.getDouble("latitude"), o.getDouble("longitude"), time);
                 }
-            }
-            if (o.has("heading")) {
-                double heading = o.getDouble("heading");
-                if (heading != -1) {
-                    r.setHeading(heading);
+                if (o.has("altitude")) {
+                    r.setAltitude(o.getDouble("altitude"));
                 }
-            }
-            if (o.has("temp")) {
-                double tempC = o.getDouble("temp");
-                if (tempC > -272) {
-                    r.setTemperature(tempC);
+                if (o.has("speed")) {
+                    double speedKPH = o.getDouble("speed");
+                    if (speedKPH != -1) {
+                        r.setSpeed(speedKPH * 0.54); // KPH to knots
+                    }
                 }
-            }
-            if (o.has("freq")) {
-                r.setFrequencyString(o.getString("freq"));
-            }
-            if (o.has("model")) {
-                r.setModel(o.getString("model"));
-            }
+                if (o.has("heading")) {
+                    double heading = o.getDouble("heading");
+                    if (heading != -1) {
+                        r.setHeading(heading);
+                    }
+                }
+                if (o.has("temp")) {
+                    double tempC = o.getDouble("temp");
+                    if (tempC > -272) {
+                        r.setTemperature(tempC);
+                    }
+                }
+                if (o.has("freq")) {
+                    r.setFrequencyString(o.getString("freq"));
+                }
+                if (o.has("model")) {
+                    r.setModel(o.getString("model"));
+                }
+            });
 
         } catch (Exception ex) {
             LOGGER.error("Exception handling HORUS data, catching exception so handling can continue.", ex);
@@ -0,0 +1,70 @@
+package com.ianrenton.planesailing.comms;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a response to an output stream through a fixed-size buffer, so that the
+ * many small pieces a response is made of, such as each track's cached JSON, reach
+ * the stream in large blocks. Delta "update" API calls are written this way
+ * straight to the client, while they are being put together, rather than being
+ * built up in memory first. The full "first" and "update" calls are the same for
+ * every client, so are instead written once into the response cache and shared.
+ * The buffer belongs to the thread, and is reused for every response it writes.
+ */
+public class JSONStreamWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private final OutputStream out;
+    private final byte[] buffer = BUFFER.get();
+    private int count = 0;
+
+    public JSONStreamWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Write some bytes, which should already be UTF-8 encoded.
+     */
+    public void write(byte[] b) throws IOException {
+        if (b.length > buffer.length - count) {
+            flush();
+            if (b.length > buffer.length) {
+                // Too big to be worth buffering, write it straight through
+                out.write(b);
+                return;
+            }
+        }
+        System.arraycopy(b, 0, buffer, count, b.length);
+        count += b.length;
+    }
+
+    public void write(String s) throws IOException {
+        write(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write a single ASCII character.
+     */
+    public void write(char c) throws IOException {
+        if (count == buffer.length) {
+            flush();
+        }
+        buffer[count++] = (byte) c;
+    }
+
+    /**
+     * Write out anything that is buffered. This must be called once the response is
+     * complete.
+     */
+    public void flush() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        out.flush();
+    }
+}
@@ -67,72 +67,65 @@ public class MeshtasticNodeQuerier extends Client {
             for (String id : ids) {
                 JSONObject nodeData = o.getJSONObject(id);
 
-                // If this is a new track, add it to the track table
-                if (!trackTable.containsKey(id)) {
-                    MeshtasticNode newTrack = new MeshtasticNode(id);
-                    trackTable.put(id, newTrack);
-                }
-
-                // Extract the data and update the track
-                MeshtasticNode n = (MeshtasticNode) trackTable.get(id);
-
                 // Meshtastic data isn't reported live from a receiver, we are
                 // querying a device that may have history. If we are looking
                 // at a node last heard longer ago than the timeout, skip it -
                 // only handle data from nodes whose data is new enough.
                 if (nodeData.has("lastHeard") && System.currentTimeMillis() -
                         (nodeData.getLong("lastHeard") * 1000L) < MeshtasticNode.DROP_MESHTASTIC_TRACK_TIME) {
-                    
-                    if (nodeData.has("snr")) {
-                        n.setSnr(nodeData.getDouble("snr"));
-                    }
-                    
-                    if (nodeData.has("user")) {
-                        JSONObject userData = nodeData.getJSONObject("user");
-                        if (userData.has("hwModel")) {
-                            n.setHardware(userData.getString("hwModel"));
+                    // Extract the data and update the track, creating it if it is new
+                    trackTable.update(id, MeshtasticNode::new, n -> {
+                        if (nodeData.has("snr")) {
+                            n.setSnr(nodeData.getDouble("snr"));
                         }
-                        if (userData.has("shortName")) {
-                            n.setShortName(userData.getString("shortName"));
-                        }
-                        if (userData.has("longName")) {
-                            n.setLongName(userData.getString("longName"));
-                        }
-                    }
                     
-                    if (nodeData.has("deviceMetrics")) {
-                        JSONObject deviceData = nodeData.getJSONObject("deviceMetrics");
-                        if (deviceData.has("channelUtilization")) {
-                            n.setChannelUtil(deviceData.getDouble("channelUtilization"));
-                        }
-                        if (deviceData.has("airUtilTx")) {
-                            n.setAirUtilTx(deviceData.getDouble("airUtilTx"));
-                        }
-                        if (deviceData.has("batteryLevel")) {
-                            n.setBatteryLevel(deviceData.getDouble("batteryLevel"));
-                        }
-                        if (deviceData.has("voltage")) {
-                            n.setVoltage(deviceData.getDouble("voltage"));
+                        if (nodeData.has("user")) {
+                            JSONObject userData = nodeData.getJSONObject("user");
+                            if (userData.has("hwModel")) {
+                                n.setHardware(userData.getString("hwModel"));
+                            }
+                            if (userData.has("shortName")) {
+                                n.setShortName(userData.getString("shortName"));
+                            }
+                            if (userData.has("longName")) {
+                                n.setLongName(userData.getString("longName"));
+                            }
                         }
-                    }
                     
-                    if (nodeData.has("position")) {
-                        JSONObject positionData = nodeData.getJSONObject("position");
-                        if (positionData.has("latitude") && positionData.has("longitude")) {
-                            double lat = positionData.getDouble("latitude");
-                            double lon = positionData.getDouble("longitude");
-                            long time = nodeData.getLong("lastHeard");
-                            if (positionData.has("time")) {
-                                time = positionData.getLong("time");
+                        if (nodeData.has("deviceMetrics")) {
+                            JSONObject deviceData = nodeData.getJSONObject("deviceMetrics");
+                            if (deviceData.has("channelUtilization")) {
+                                n.setChannelUtil(deviceData.getDouble("channelUtilization"));
+                            }
+                            if (deviceData.has("airUtilTx")) {
+                                n.setAirUtilTx(deviceData.getDouble("airUtilTx"));
+                            }
+                            if (deviceData.has("batteryLevel")) {
+                                n.setBatteryLevel(deviceData.getDouble("batteryLevel"));
+                            }
+                            if (deviceData.has("voltage")) {
+                                n.setVoltage(deviceData.getDouble("voltage"));
                             }
-                            n.addPosition(lat, lon, time * 1000L);
                         }
-                        if (positionData.has("altitude")) {
-                            n.setAltitude(positionData.getDouble("altitude") * 3.28); // Metres to feet
+                    
+                        if (nodeData.has("position")) {
+                            JSONObject positionData = nodeData.getJSONObject("position");
+                            if (positionData.has("latitude") && positionData.has("longitude")) {
+                                double lat = positionData.getDouble("latitude");
+                                double lon = positionData.getDouble("longitude");
+                                long time = nodeData.getLong("lastHeard");
+                                if (positionData.has("time")) {
+                                    time = positionData.getLong("time");
+                                }
+                                n.addPosition(lat, lon, time * 1000L);
+                            }
+                            if (positionData.has("altitude")) {
+                                n.setAltitude(positionData.getDouble("altitude") * 3.28); // Metres to feet
+                            }
                         }
-                    }
 
-                    n.updateMetadataTime(nodeData.getLong("lastHeard") * 1000L);
+                        n.updateMetadataTime(nodeData.getLong("lastHeard") * 1000L);
+                    });
                     
                 } else {
                     LOGGER.debug("Rejecting node " + id + " data as 'last heard' unknown or too long ago");
@@ -62,77 +62,73 @@ public class SBSTCPClient extends TCPClient {
             String[] fields = m.split(",");
             String icaoHex = fields[4];
 
-            // If this is a new track, add it to the track table
-            if (!trackTable.containsKey(icaoHex)) {
-                trackTable.put(icaoHex, new Aircraft(icaoHex));
-            }
-
-            // Extract the data and update the track
-            Aircraft a = (Aircraft) trackTable.get(icaoHex);
-
-            if (fields[0].equals("MSG")) {
-                if (fields.length > 10) {
-                    String callsign = fields[10].trim();
-                    if (!callsign.isEmpty()) {
-                        a.setCallsign(callsign);
+            // Extract the data and update the track, creating it if it is new
+            long time = System.currentTimeMillis();
+            trackTable.update(icaoHex, Aircraft::new, a -> {
+                if (fields[0].equals("MSG")) {
+                    if (fields.length > 10) {
+                        String callsign = fields[10].trim();
+                        if (!callsign.isEmpty()) {
+                            a.setCallsign(callsign);
+                        }
                     }
-                }
 
-                if (fields.length > 11) {
-                    String altitude = fields[11].trim();
-                    if (!altitude.isEmpty()) {
-                        a.setAltitude(Double.valueOf(altitude));
+                    if (fields.length > 11) {
+                        String altitude = fields[11].trim();
+                        if (!altitude.isEmpty()) {
+                            a.setAltitude(Double.parseDouble(altitude));
+                        }
                     }
-                }
 
-                if (fields.length > 12) {
-                    String speed = fields[12].trim();
-                    if (!speed.isEmpty()) {
-                        a.setSpeed(Double.valueOf(speed));
+                    if (fields.length > 12) {
+                        String speed = fields[12].trim();
+                        if (!speed.isEmpty()) {
+                            a.setSpeed(Double.parseDouble(speed));
+                        }
                     }
-                }
 
-                if (fields.length > 13) {
-                    String course = fields[13].trim();
-                    if (!course.isEmpty()) {
-                        a.setCourse(Double.valueOf(course));
-                        a.setHeading(Double.valueOf(course)); // SBS will never give us a separate mag heading so just
-                        // use
-                        // course as heading
+                    if (fields.length > 13) {
+                        String course = fields[13].trim();
+                        if (!course.isEmpty()) {
+                            a.setCourse(Double.parseDouble(course));
+                            a.setHeading(Double.parseDouble(course)); // SBS will never give us a separate mag heading so just
+                            // use
+                            // course as heading
+                        }
                     }
-                }
 
-                if (fields.length > 15) {
-                    String latitude = fields[14].trim();
-                    String longitude = fields[15].trim();
-                    if (!latitude.isEmpty() && !longitude.isEmpty()) {
-                        a.addPosition(Double.parseDouble(latitude), Double.parseDouble(longitude));
+                    if (fields.length > 15) {
+                        String latitude = fields[14].trim();
+                        String longitude = fields[15].trim();
+                        if (!latitude.isEmpty() && !longitude.isEmpty()) {
+                            a.addPosition(Double.parseDouble(latitude), Double.parseDouble(longitude), time);
+                        }
                     }
-                }
 
-                if (fields.length > 16) {
-                    String verticalRate = fields[16].trim();
-                    if (!verticalRate.isEmpty()) {
-                        a.setVerticalRate(Double.valueOf(verticalRate));
+                    if (fields.length > 16) {
+                        String verticalRate = fields[16].trim();
+                        if (!verticalRate.isEmpty()) {
+                            a.setVerticalRate(Double.parseDouble(verticalRate));
+                        }
                     }
-                }
 
-                if (fields.length > 17) {
-                    String squawk = fields[17].trim();
-                    if (!squawk.isEmpty()) {
-                        a.setSquawk(Integer.parseInt(squawk));
+                    if (fields.length > 17) {
+                        String squawk = fields[17].trim();
+                        if (!squawk.isEmpty()) {
+                            a.setSquawk(Integer.parseInt(squawk));
+                        }
                     }
-                }
 
-                if (fields.length > 21) {
-                    String isOnGround = fields[21].trim();
-                    if (!isOnGround.isEmpty()) {
-                        a.setOnGround(!isOnGround.equals("0"));
+                    if (fields.length > 21) {
+                        String isOnGround = fields[21].trim();
+                        if (!isOnGround.isEmpty()) {
+                            a.setOnGround(!isOnGround.equals("0"));
+                        }
                     }
-                }
 
-                a.updateMetadataTime();
-            }
+                    a.updateMetadataTime(time);
+                }
+            });
         } catch (Exception ex) {
             getLogger().warn("Receiver {} encountered an exception handling line {}", name, m, ex);
         }
@@ -0,0 +1,130 @@
+package com.ianrenton.planesailing.comms;
+
+import com.ianrenton.planesailing.app.BoundingBox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Grid-based index of subscribers by the area they are viewing, so that when a
+ * track changes, the subscribers that might want to know can be found from its
+ * position without checking every subscriber. This is the inverse of the track
+ * table's SpatialIndex, which finds tracks in an area.
+ * <p>
+ * Each subscriber is added to every cell its area overlaps. Subscribers viewing a
+ * very large area, or with no area at all, would fill too many cells, so they are
+ * kept on a separate list and offered every track instead.
+ *
+ * @param <S> Type of subscriber
+ */
+public class ViewportIndex<S> {
+
+    /**
+     * Size of a grid cell, in degrees. Coarser than the track spatial index, since
+     * viewports are much larger than the distance a track moves between updates.
+     */
+    private static final double CELL_SIZE_DEGREES = 1.0;
+    private static final int LAT_CELLS = (int) Math.ceil(180.0 / CELL_SIZE_DEGREES);
+    private static final int LON_CELLS = (int) Math.ceil(360.0 / CELL_SIZE_DEGREES);
+    /**
+     * Maximum number of cells a subscriber's area can cover before it is put on the
+     * wide list instead.
+     */
+    private static final int MAX_CELLS_PER_SUBSCRIBER = 400;
+
+    private final Map<Long, Set<S>> cells = new ConcurrentHashMap<>();
+    private final Set<S> wide = ConcurrentHashMap.newKeySet();
+    private final Map<S, BoundingBox> areas = new HashMap<>();
+
+    /**
+     * Add a subscriber viewing the given area, or move it if it is already in the
+     * index.
+     *
+     * @param area Area being viewed, or null for the whole world
+     */
+    public synchronized void put(S subscriber, BoundingBox area) {
+        remove(subscriber);
+        areas.put(subscriber, area);
+        if (area == null || cellCount(area) > MAX_CELLS_PER_SUBSCRIBER) {
+            wide.add(subscriber);
+        } else {
+            forEachCell(area, key -> cells.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(subscriber));
+        }
+    }
+
+    /**
+     * Remove a subscriber from the index.
+     */
+    public synchronized void remove(S subscriber) {
+        if (!areas.containsKey(subscriber)) {
+            return;
+        }
+        BoundingBox area = areas.remove(subscriber);
+        if (!wide.remove(subscriber)) {
+            forEachCell(area, key -> cells.computeIfPresent(key, (k, s) -> {
+                s.remove(subscriber);
+                return s.isEmpty() ? null : s;
+            }));
+        }
+    }
+
+    /**
+     * Call the consumer for every subscriber whose area might contain the given
+     * point. Subscribers are only included by cell, so the caller still needs to
+     * check the point is actually in the subscriber's area.
+     */
+    public void forEachCandidate(double lat, double lon, Consumer<S> consumer) {
+        Set<S> cell = cells.get(cellKey(latCell(lat), lonCell(lon)));
+        if (cell != null) {
+            cell.forEach(consumer);
+        }
+        wide.forEach(consumer);
+    }
+
+    /**
+     * Call the consumer for every subscriber with no area, i.e. those that want
+     * tracks wherever they are, even with no known position.
+     */
+    public void forEachUnbounded(Consumer<S> consumer) {
+        for (S s : wide) {
+            if (areas.get(s) == null) {
+                consumer.accept(s);
+            }
+        }
+    }
+
+    private static long cellCount(BoundingBox area) {
+        return (long) (latCell(area.maxLat()) - latCell(area.minLat()) + 1) * lonCellCount(area);
+    }
+
+    private static int lonCellCount(BoundingBox area) {
+        int minLonCell = lonCell(area.minLon());
+        int maxLonCell = lonCell(area.maxLon());
+        return (area.minLon() > area.maxLon()) ? (LON_CELLS - minLonCell) + maxLonCell + 1 : maxLonCell - minLonCell + 1;
+    }
+
+    private static void forEachCell(BoundingBox area, Consumer<Long> consumer) {
+        int minLonCell = lonCell(area.minLon());
+        int lonCellCount = lonCellCount(area);
+        for (int latCell = latCell(area.minLat()); latCell <= latCell(area.maxLat()); latCell++) {
+            for (int i = 0; i < lonCellCount; i++) {
+                consumer.accept(cellKey(latCell, (minLonCell + i) % LON_CELLS));
+            }
+        }
+    }
+
+    private static long cellKey(int latCell, int lonCell) {
+        return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+    }
+
+    private static int latCell(double lat) {
+        return Math.min(LAT_CELLS - 1, Math.max(0, (int) Math.floor((lat + 90.0) / CELL_SIZE_DEGREES)));
+    }
+
+    private static int lonCell(double lon) {
+        return Math.min(LON_CELLS - 1, Math.max(0, (int) Math.floor((lon + 180.0) / CELL_SIZE_DEGREES)));
+    }
+}
@@ -1,29 +1,36 @@
 package com.ianrenton.planesailing.comms;
 
 import com.ianrenton.planesailing.app.Application;
+import com.ianrenton.planesailing.app.BoundingBox;
+import com.ianrenton.planesailing.app.DroppedTrack;
 import com.ianrenton.planesailing.app.TrackTable;
 import com.ianrenton.planesailing.data.Track;
 import com.ianrenton.planesailing.data.TrackType;
+import com.ianrenton.planesailing.store.HistoricalTrack;
 import com.ianrenton.planesailing.utils.PrometheusMetricGenerator;
 import com.sun.management.OperatingSystemMXBean;
 import com.sun.net.httpserver.*;
 import com.typesafe.config.ConfigValue;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
@@ -44,11 +51,19 @@ public class WebServer {
     private static final long CLIENT_REQUEST_RATE_MILLIS = 10000;
 
     private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(Application.CONFIG.getInt("comms.web-server.threads"),
+            new BasicThreadFactory.Builder().namingPattern("Web Server Thread %d").build());
+    private final EventStream eventStream = new EventStream();
+    private final WebSocketServer webSocketServer = Application.CONFIG.getBoolean("comms.web-server.websocket.enabled")
+            ? new WebSocketServer(Application.CONFIG.getInt("comms.web-server.websocket.port")) : null;
     private final int localPort;
     private final boolean readableJSON = Application.CONFIG.getBoolean("comms.web-server.api-readable-json");
+    private final long maxHistoryQueryHours = Application.CONFIG.getLong("track-table.archive.max-query-hours");
+    private final APIResponseCache responseCache = new APIResponseCache(Application.CONFIG.getLong("comms.web-server.response-cache-max-age"));
     private boolean online;
-    private long lastReceivedTime;
-    private int requestsServed = 0;
+    // Both written by every request handling thread
+    private volatile long lastReceivedTime;
+    private final AtomicLong requestsServed = new AtomicLong();
 
     /**
      * Create the web server
@@ -65,22 +80,35 @@ public class WebServer {
         server.createContext("/api/update", new CallHandler(Call.UPDATE));
         server.createContext("/api/telemetry", new CallHandler(Call.TELEMETRY));
         server.createContext("/api/config", new CallHandler(Call.CONFIG));
+        server.createContext("/api/history", new CallHandler(Call.HISTORY));
+        server.createContext("/api/stream", new CallHandler(Call.STREAM));
         server.createContext("/metrics", new CallHandler(Call.METRICS));
 
         // For everything else, serve static content to deliver the web interface
         server.createContext("/", SimpleFileServer.createFileHandler(Path.of(new File("static/").getCanonicalPath())));
 
-        server.setExecutor(null);
+        // Handle requests on a pool of threads, so that a slow client or call doesn't hold
+        // up the others, and clients making the same call can share one response
+        server.setExecutor(executor);
     }
 
     public void run() {
         server.start();
+        eventStream.start();
+        if (webSocketServer != null) {
+            webSocketServer.start();
+        }
         online = true;
         LOGGER.info("Started web server on port {}.", localPort);
     }
 
     public void stop() {
+        eventStream.stop();
+        if (webSocketServer != null) {
+            webSocketServer.stop();
+        }
         server.stop(0);
+        executor.shutdown();
         online = false;
     }
 
@@ -94,19 +122,55 @@ public class WebServer {
         @Override
         public void handle(HttpExchange t) {
             lastReceivedTime = System.currentTimeMillis();
-            String response = "";
+            byte[] response = null; // Left null for calls that are cached or streamed
+            APIResponseCache.Response cached = null; // Set for calls that are cached
             String contentType = "application/json";
+            int status = 200;
+            Long since = null;
+
+            // The event stream is kept open after this returns, so is handled separately
+            if (call == Call.STREAM && t.getRequestMethod().equalsIgnoreCase("GET")) {
+                openStream(t);
+                return;
+            }
 
             try (t) {
                 switch (call) {
-                    case FIRST -> response = getFirstCallJSON();
-                    case UPDATE -> response = getUpdateCallJSON();
-                    case TELEMETRY -> response = getTelemetryCallJSON();
-                    case CONFIG -> response = getConfigCallJSON();
+                    case FIRST -> cached = responseCache.get("first", WebServer.this::writeFirstCallJSON);
+                    case UPDATE -> {
+                        try {
+                            since = parseSince(t.getRequestURI().getRawQuery());
+                            // Only the full response is the same for every client. Deltas depend on
+                            // each client's "since", so are streamed below instead.
+                            if (since == null) {
+                                cached = responseCache.get("update", out -> writeUpdateCallJSON(out, null));
+                            }
+                        } catch (IllegalArgumentException ex) {
+                            status = 400;
+                            response = toBytes(new JSONObject(Map.of("error", ex.getMessage())).toString());
+                        }
+                    }
+                    case TELEMETRY -> response = toBytes(getTelemetryCallJSON());
+                    case CONFIG -> response = toBytes(getConfigCallJSON());
+                    case HISTORY -> {
+                        try {
+                            response = toBytes(getHistoryCallJSON(t.getRequestURI().getRawQuery()));
+                        } catch (IllegalArgumentException ex) {
+                            status = 400;
+                            response = toBytes(new JSONObject(Map.of("error", ex.getMessage())).toString());
+                        } catch (IOException ex) {
+                            LOGGER.error("Could not read the track archive", ex);
+                            status = 500;
+                            response = toBytes(new JSONObject(Map.of("error", "Could not read the track archive")).toString());
+                        }
+                    }
                     case METRICS -> {
-                        response = getMetricsForPrometheus();
+                        response = toBytes(getMetricsForPrometheus());
                         contentType = "text/plain";
                     }
+                    case STREAM -> {
+                        // GET was handled above, only other methods get here
+                    }
                 }
 
                 final Headers headers = t.getResponseHeaders();
@@ -115,9 +179,23 @@ public class WebServer {
                 switch (requestMethod) {
                     case "GET" -> {
                         headers.set("Content-Type", String.format(contentType + "; charset=%s", "UTF8"));
-                        final byte[] rawResponseBody = response.getBytes(StandardCharsets.UTF_8);
-                        t.sendResponseHeaders(200, rawResponseBody.length);
-                        t.getResponseBody().write(rawResponseBody);
+                        if (cached != null) {
+                            headers.set("Vary", "Accept-Encoding");
+                            if (acceptsGzip(t)) {
+                                headers.set("Content-Encoding", "gzip");
+                                response = cached.gzip();
+                            } else {
+                                response = cached.identity();
+                            }
+                        }
+                        if (response != null) {
+                            t.sendResponseHeaders(status, response.length);
+                            t.getResponseBody().write(response);
+                        } else {
+                            // Length of zero means the response is sent with chunked transfer encoding
+                            t.sendResponseHeaders(status, 0);
+                            writeUpdateCallJSON(t.getResponseBody(), since);
+                        }
                     }
                     case "OPTIONS" -> {
                         headers.set("Allow", "GET, OPTIONS");
@@ -130,7 +208,7 @@ public class WebServer {
                         t.sendResponseHeaders(405, -1);
                     }
                 }
-                requestsServed++;
+                requestsServed.incrementAndGet();
             } catch (Exception ex) {
                 LOGGER.error("Exception responding to web request", ex);
             }
@@ -138,44 +216,286 @@ public class WebServer {
     }
 
     /**
-     * Returns JSON corresponding to the "first" API call of the server, which
+     * Start sending the event stream to a client. The sequence number the client has
+     * data up to is taken from the Last-Event-ID header, which browsers send when
+     * reconnecting a stream, or failing that from the "since" parameter.
+     */
+    private void openStream(HttpExchange t) {
+        try {
+            Long since;
+            String lastEventID = t.getRequestHeaders().getFirst("Last-Event-ID");
+            try {
+                since = (lastEventID != null) ? Long.valueOf(lastEventID) : parseSince(t.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException ex) {
+                sendStreamError(t, 400, ex.getMessage());
+                return;
+            }
+
+            final Headers headers = t.getResponseHeaders();
+            headers.add("Access-Control-Allow-Origin", "*");
+            headers.set("Content-Type", "text/event-stream; charset=UTF8");
+            headers.set("Cache-Control", "no-cache");
+            if (!eventStream.addClient(t, since)) {
+                headers.set("Retry-After", "60");
+                sendStreamError(t, 503, "Too many clients connected to the event stream");
+                return;
+            }
+            requestsServed.incrementAndGet();
+        } catch (Exception ex) {
+            LOGGER.error("Exception opening event stream", ex);
+            t.close();
+        }
+    }
+
+    /**
+     * Send an error response instead of opening the event stream.
+     */
+    private static void sendStreamError(HttpExchange t, int status, String message) throws IOException {
+        byte[] response = toBytes(new JSONObject(Map.of("error", message)).toString());
+        t.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        t.getResponseHeaders().set("Content-Type", "application/json; charset=UTF8");
+        t.sendResponseHeaders(status, response.length);
+        t.getResponseBody().write(response);
+        t.close();
+    }
+
+    /**
+     * Return true if the client has said it accepts gzip-compressed responses.
+     */
+    private static boolean acceptsGzip(HttpExchange t) {
+        for (String header : t.getRequestHeaders().getOrDefault("Accept-Encoding", List.of())) {
+            for (String coding : header.split(",")) {
+                String[] parts = coding.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                    // Accepted unless given a quality of zero
+                    return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+                }
+            }
+        }
+        return false;
+    }
+
+    private static byte[] toBytes(String response) {
+        return response.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes JSON corresponding to the "first" API call of the server, which
      * includes all tracks (including base station, airports and seaports), and the
      * complete position history for all tracks that have it, so that the client can
      * populate both the full current picture and the snail trail for tracks. It
      * also includes the server's current time, so that clients can determine the
-     * age of tracks correctly, and the server version number.
+     * age of tracks correctly, the server version number, and the track table
+     * sequence number to pass as "since" in the next "update" call.
+     * <p>
+     * This is written a track at a time from each track's cached JSON, so that only
+     * tracks that have changed since the last call need encoding. If readable JSON
+     * has been requested in config, the response is encoded afresh instead. The
+     * result is then shared between clients through the response cache.
      */
-    public String getFirstCallJSON() {
+    public void writeFirstCallJSON(OutputStream out) throws IOException {
+        long sequence = APP.getTrackTable().getSequence();
+        if (!readableJSON) {
+            writeTrackJSON(out, "{\"time\":" + System.currentTimeMillis()
+                    + ",\"version\":" + JSONObject.quote(Application.getSoftwareVersion())
+                    + ",\"sequence\":" + sequence + ",\"tracks\":{", t -> true, Track::getFirstCallJSON, "}}");
+            return;
+        }
+
         Map<String, Object> map = new HashMap<>();
         map.put("time", System.currentTimeMillis());
         map.put("version", Application.getSoftwareVersion());
+        map.put("sequence", sequence);
 
         Map<String, Map<String, Object>> tracks = new HashMap<>();
         for (Track t : APP.getTrackTable().values()) {
             tracks.put(t.getID(), t.getFirstCallData());
         }
         map.put("tracks", tracks);
-
-        JSONObject o = new JSONObject(map);
-        return o.toString(readableJSON ? 2 : 0);
+        writeReadableJSON(out, new JSONObject(map));
     }
 
     /**
-     * Returns JSON corresponding to the "update" API call of the server, which is
+     * Writes JSON corresponding to the "update" API call of the server, which is
      * designed to update a picture previously populated by the "first" call. To
      * save bandwidth, no position history is sent - the client is expected to
-     * append the reported position to its own position history store. This call
-     * also omits the base station, airports and seaports that can't change. It also
+     * append the reported position to its own position history store. It also
      * includes the server's current time, so that clients can determine the age of
-     * tracks correctly.
+     * tracks correctly, and the track table sequence number to pass as "since" in
+     * the next call. Written in the same way as the "first" call.
+     * <p>
+     * If "since" is given, only the tracks that have changed since that sequence
+     * number are sent, along with a "dropped" list of the IDs of tracks that have
+     * been dropped since. If the server can't tell what has been dropped since then
+     * (because the client is too far behind, or the sequence number is from before
+     * the server was restarted), every track is sent instead, as if "since" had not
+     * been given. The "full" flag tells the client which it has got, and so whether
+     * it should delete any tracks that were not sent.
+     *
+     * @param since Sequence number from the client's previous call, or null to send
+     *              every track
      */
-    public String getUpdateCallJSON() {
+    public void writeUpdateCallJSON(OutputStream out, Long since) throws IOException {
+        TrackTable tt = APP.getTrackTable();
+        // Take the sequence number first, so any change made while this is being
+        // written is sent again next time, rather than missed
+        long sequence = tt.getSequence();
+        List<DroppedTrack> dropped = (since != null && since <= sequence) ? tt.getDroppedSince(since) : null;
+        boolean full = (dropped == null);
+        Predicate<Track> include = full ? t -> true : t -> t.getChangeSequence() > since;
+
+        if (!readableJSON) {
+            if (full) {
+                writeTrackJSON(out, "{\"time\":" + System.currentTimeMillis() + ",\"sequence\":" + sequence
+                        + ",\"full\":true,\"tracks\":{", include, WebServer::getLatestUpdateCallJSON, "}}");
+            } else {
+                writeDeltaJSON(out, sequence, since, dropped);
+            }
+            return;
+        }
+
         Map<String, Object> map = new HashMap<>();
         map.put("time", System.currentTimeMillis());
+        map.put("sequence", sequence);
+        map.put("full", full);
 
         Map<String, Map<String, Object>> tracks = new HashMap<>();
+        for (Track t : tt.values()) {
+            if (include.test(t)) {
+                tracks.put(t.getID(), t.getUpdateCallData());
+            }
+        }
+        map.put("tracks", tracks);
+        if (!full) {
+            map.put("dropped", dropped.stream().map(DroppedTrack::id).toList());
+        }
+        writeReadableJSON(out, new JSONObject(map));
+    }
+
+    /**
+     * Write an "update" call response containing only the tracks that have changed
+     * since a sequence number, and the IDs of those that have been dropped since.
+     * Always compact, so it can also be sent as a single line of an event stream.
+     *
+     * @param sequence Current sequence number, which must have been taken before
+     *                 the dropped tracks were got
+     * @param since    Sequence number to send changes since
+     * @param dropped  Tracks dropped since then
+     * @return The number of tracks written
+     */
+    static int writeDeltaJSON(OutputStream out, long sequence, long since, List<DroppedTrack> dropped) throws IOException {
+        String footer = "},\"dropped\":["
+                + dropped.stream().map(d -> JSONObject.quote(d.id())).collect(Collectors.joining(",")) + "]}";
+        return writeTrackJSON(out, "{\"time\":" + System.currentTimeMillis() + ",\"sequence\":" + sequence
+                        + ",\"full\":false,\"tracks\":{", t -> t.getChangeSequence() > since,
+                WebServer::getLatestUpdateCallJSON, footer);
+    }
+
+    /**
+     * Get a track's JSON for the "update" call, making sure it reflects the track's
+     * latest change. A track marks its change before its update has finished and
+     * its new state has been published, and if the old state were sent here, the
+     * client would never be sent the change, because its next "since" would
+     * already be past it. Publishing waits for the update to finish.
+     */
+    static byte[] getLatestUpdateCallJSON(Track t) {
+        if (t.getState().sequence() < t.getChangeSequence()) {
+            t.publishState();
+        }
+        return t.getUpdateCallJSON();
+    }
+
+    /**
+     * Parse the "since" parameter of an "update" call, if there is one.
+     *
+     * @throws IllegalArgumentException if it is not a valid sequence number
+     */
+    private static Long parseSince(String query) {
+        Map<String, String> params = parseQuery(query);
+        if (!params.containsKey("since")) {
+            return null;
+        }
+        try {
+            return Long.parseLong(params.get("since"));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("since must be a sequence number from a previous call");
+        }
+    }
+
+    /**
+     * Write a response made up of a header, the cached JSON of the tracks in the
+     * track table that should be included, separated by commas, and a footer which
+     * must close the tracks object and the whole response.
+     *
+     * @return The number of tracks written
+     */
+    private static int writeTrackJSON(OutputStream out, String header, Predicate<Track> include,
+                                       Function<Track, byte[]> trackJSON, String footer) throws IOException {
+        JSONStreamWriter w = new JSONStreamWriter(out);
+        w.write(header);
+        int count = 0;
         for (Track t : APP.getTrackTable().values()) {
-            tracks.put(t.getID(), t.getUpdateCallData());
+            if (include.test(t)) {
+                if (count > 0) {
+                    w.write(',');
+                }
+                w.write(trackJSON.apply(t));
+                count++;
+            }
+        }
+        w.write(footer);
+        w.flush();
+        return count;
+    }
+
+    private static void writeReadableJSON(OutputStream out, JSONObject o) throws IOException {
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        o.write(w, 2, 0);
+        w.flush();
+    }
+
+    /**
+     * Returns JSON corresponding to the "history" API call of the server, which
+     * provides all tracks and their trails within a past time window, and
+     * optionally within a bounding box. The window can be given either as "from"
+     * and "to" times, or as an "asof" time, in which case the result is laid out
+     * like the "first" API call and shows the picture as it was at that time, with
+     * an hour of trail (or back to "from" if that is also given). Times are UTC
+     * milliseconds since epoch, and the bounding box is given as
+     * "bbox=minLat,minLon,maxLat,maxLon".
+     *
+     * @throws IllegalArgumentException if the query is not valid
+     * @throws IOException              if the track archive could not be read
+     */
+    public String getHistoryCallJSON(String query) throws IOException {
+        Map<String, String> params = parseQuery(query);
+        long to;
+        long from;
+        if (params.containsKey("asof")) {
+            to = parseTime(params, "asof");
+            from = params.containsKey("from") ? parseTime(params, "from") : to - 60 * 60 * 1000;
+        } else if (params.containsKey("from") && params.containsKey("to")) {
+            from = parseTime(params, "from");
+            to = parseTime(params, "to");
+        } else {
+            throw new IllegalArgumentException("Either asof, or from and to, must be provided");
+        }
+        if (to < from) {
+            throw new IllegalArgumentException("The end of the time window must not be before the start");
+        }
+        if (to - from > maxHistoryQueryHours * 60 * 60 * 1000) {
+            throw new IllegalArgumentException("The time window must be no longer than " + maxHistoryQueryHours + " hours");
+        }
+        BoundingBox area = params.containsKey("bbox") ? parseBoundingBox(params.get("bbox")) : null;
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("time", System.currentTimeMillis());
+        map.put("from", from);
+        map.put("to", to);
+
+        Map<String, Map<String, Object>> tracks = new HashMap<>();
+        for (HistoricalTrack h : APP.getTrackTable().getHistory(from, to, area).values()) {
+            tracks.put(h.getID(), h.getCallData());
         }
         map.put("tracks", tracks);
 
@@ -183,6 +503,47 @@ public class WebServer {
         return o.toString(readableJSON ? 2 : 0);
     }
 
+    /**
+     * Parse the query string of a request into a map of parameters.
+     */
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int split = param.indexOf('=');
+                if (split > 0) {
+                    params.put(URLDecoder.decode(param.substring(0, split), StandardCharsets.UTF_8),
+                            URLDecoder.decode(param.substring(split + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return params;
+    }
+
+    private static long parseTime(Map<String, String> params, String name) {
+        try {
+            return Long.parseLong(params.get(name));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(name + " must be a time in UTC milliseconds since epoch");
+        }
+    }
+
+    private static BoundingBox parseBoundingBox(String bbox) {
+        String[] parts = bbox.split(",");
+        try {
+            if (parts.length == 4) {
+                BoundingBox b = new BoundingBox(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
+                        Double.parseDouble(parts[2]), Double.parseDouble(parts[3]));
+                if (b.minLat() <= b.maxLat()) {
+                    return b;
+                }
+            }
+        } catch (NumberFormatException ex) {
+            // Fall through to exception below
+        }
+        throw new IllegalArgumentException("bbox must be given as minLat,minLon,maxLat,maxLon");
+    }
+
     /**
      * Get a map of some useful server telemetry
      */
@@ -225,7 +586,11 @@ public class WebServer {
         return PrometheusMetricGenerator.generate("plane_sailing_uptime", "Uptime of the server in seconds",
                 "counter", (System.currentTimeMillis() - Application.START_TIME) / 1000.0)
                 + PrometheusMetricGenerator.generate("plane_sailing_requests_served", "Number of HTTP requests served by the Plane/Sailing server since start",
-                "counter", requestsServed)
+                "counter", requestsServed.get())
+                + PrometheusMetricGenerator.generate("plane_sailing_stream_clients", "Number of clients connected to the event stream",
+                "gauge", eventStream.getClientCount())
+                + PrometheusMetricGenerator.generate("plane_sailing_websocket_clients", "Number of clients connected to the WebSocket server",
+                "gauge", getWebSocketClientCount())
                 + PrometheusMetricGenerator.generate("plane_sailing_adsb_inputs_available", "How many ADSB receivers are configured and connected?",
                 "gauge", countADSBReceviersConnected())
                 + PrometheusMetricGenerator.generate("plane_sailing_mlat_inputs_available", "How many MLAT receivers are configured and connected?",
@@ -253,31 +618,31 @@ public class WebServer {
                 + PrometheusMetricGenerator.generate("plane_sailing_track_count", "Number of tracks of all kinds in the system",
                 "gauge", tt.size())
                 + PrometheusMetricGenerator.generate("plane_sailing_aircraft_count", "Number of aircraft tracks in the system",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.AIRCRAFT).count())
+                "gauge", tt.countTracksOfType(TrackType.AIRCRAFT))
                 + PrometheusMetricGenerator.generate("plane_sailing_ship_count", "Number of ship tracks in the system",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.SHIP).count())
+                "gauge", tt.countTracksOfType(TrackType.SHIP))
                 + PrometheusMetricGenerator.generate("plane_sailing_ais_shore_station_count", "Number of AIS shore station tracks in the system",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.AIS_SHORE_STATION).count())
+                "gauge", tt.countTracksOfType(TrackType.AIS_SHORE_STATION))
                 + PrometheusMetricGenerator.generate("plane_sailing_aton_count", "Number of AtoN tracks in the system",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.AIS_ATON).count())
+                "gauge", tt.countTracksOfType(TrackType.AIS_ATON))
                 + PrometheusMetricGenerator.generate("plane_sailing_aprs_mobile_count", "Number of mobile APRS tracks in the system",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.APRS_MOBILE).count())
+                "gauge", tt.countTracksOfType(TrackType.APRS_MOBILE))
                 + PrometheusMetricGenerator.generate("plane_sailing_aprs_base_count", "Number of APRS base station tracks in the system",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.APRS_BASE_STATION).count())
+                "gauge", tt.countTracksOfType(TrackType.APRS_BASE_STATION))
                 + PrometheusMetricGenerator.generate("plane_sailing_radiosonde_count", "Number of radiosondes in the system",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.RADIOSONDE).count())
+                "gauge", tt.countTracksOfType(TrackType.RADIOSONDE))
                 + PrometheusMetricGenerator.generate("plane_sailing_aircraft_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked aircraft",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.AIRCRAFT).mapToDouble(tt::getDistanceFromBaseStationOrZero).map(d -> d * 0.000539957).max().orElse(0.0))
+                "gauge", tt.getFurthestDistanceNmi(TrackType.AIRCRAFT))
                 + PrometheusMetricGenerator.generate("plane_sailing_ship_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked ship",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.SHIP).mapToDouble(tt::getDistanceFromBaseStationOrZero).map(d -> d * TrackTable.METRES_TO_NMI).max().orElse(0.0))
+                "gauge", tt.getFurthestDistanceNmi(TrackType.SHIP))
                 + PrometheusMetricGenerator.generate("plane_sailing_ais_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked AIS contact",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.SHIP || t.getTrackType() == TrackType.AIS_SHORE_STATION || t.getTrackType() == TrackType.AIS_ATON).mapToDouble(tt::getDistanceFromBaseStationOrZero).map(d -> d * 0.000539957).max().orElse(0.0))
+                "gauge", tt.getFurthestDistanceNmi(TrackType.SHIP, TrackType.AIS_SHORE_STATION, TrackType.AIS_ATON))
                 + PrometheusMetricGenerator.generate("plane_sailing_aprs_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked APRS contact",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.APRS_MOBILE || t.getTrackType() == TrackType.APRS_BASE_STATION).mapToDouble(tt::getDistanceFromBaseStationOrZero).map(d -> d * 0.000539957).max().orElse(0.0))
+                "gauge", tt.getFurthestDistanceNmi(TrackType.APRS_MOBILE, TrackType.APRS_BASE_STATION))
                 + PrometheusMetricGenerator.generate("plane_sailing_radiosonde_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked radiosonde",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.RADIOSONDE).mapToDouble(tt::getDistanceFromBaseStationOrZero).map(d -> d * 0.000539957).max().orElse(0.0))
+                "gauge", tt.getFurthestDistanceNmi(TrackType.RADIOSONDE))
                 + PrometheusMetricGenerator.generate("plane_sailing_meshtastic_node_furthest_distance", "Distance in nautical miles from the base station to the furthest tracked Meshtastic node",
-                "gauge", tt.values().stream().filter(t -> t.getTrackType() == TrackType.MESHTASTIC_NODE).mapToDouble(tt::getDistanceFromBaseStationOrZero).map(d -> d * 0.000539957).max().orElse(0.0));
+                "gauge", tt.getFurthestDistanceNmi(TrackType.MESHTASTIC_NODE));
     }
 
     /**
@@ -344,12 +709,13 @@ public class WebServer {
     }
 
     private enum Call {
-        FIRST, UPDATE, TELEMETRY, CONFIG, METRICS
+        FIRST, UPDATE, TELEMETRY, CONFIG, HISTORY, STREAM, METRICS
     }
 
     public ConnectionStatus getStatus() {
         if (online) {
-            if (System.currentTimeMillis() - lastReceivedTime <= CLIENT_REQUEST_RATE_MILLIS * 2) {
+            if (System.currentTimeMillis() - lastReceivedTime <= CLIENT_REQUEST_RATE_MILLIS * 2
+                    || eventStream.getClientCount() > 0 || getWebSocketClientCount() > 0) {
                 return ConnectionStatus.ACTIVE;
             } else {
                 return ConnectionStatus.WAITING;
@@ -359,6 +725,10 @@ public class WebServer {
         }
     }
 
+    private int getWebSocketClientCount() {
+        return (webSocketServer != null) ? webSocketServer.getClientCount() : 0;
+    }
+
     private Double getTemp() {
         Process proc;
         try {
@@ -0,0 +1,917 @@
+package com.ianrenton.planesailing.comms;
+
+import com.ianrenton.planesailing.app.Application;
+import com.ianrenton.planesailing.app.BoundingBox;
+import com.ianrenton.planesailing.app.DroppedTrack;
+import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.data.Track;
+import com.ianrenton.planesailing.data.TrackState;
+import com.ianrenton.planesailing.data.TrackType;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Pushes track changes to clients over WebSocket connections, with each client
+ * only being sent the tracks in the area it is looking at, and of the types it
+ * is interested in. This is meant for clients such as mobile apps, that only show
+ * a small part of the picture and shouldn't have to receive and parse the rest.
+ * <p>
+ * The JDK's HTTP server can't hand over a connection to another protocol, so this
+ * listens on a port of its own, and implements just enough of RFC 6455 to send
+ * and receive JSON messages. The only path it serves is "/api/ws".
+ * <p>
+ * Once connected, a client sends a message of the form
+ * <pre>{"type":"subscribe","bbox":[minLat,minLon,maxLat,maxLon],"zoom":12,"types":["SHIP","AIS_ATON"]}</pre>
+ * where all fields other than "type" are optional, and can send it again whenever
+ * its view changes. The server replies with a "snapshot" message, in the same form
+ * as an "update" API call, containing every matching track. From then on, at a
+ * regular interval, it sends "update" messages containing the matching tracks
+ * that have changed, and a "dropped" list of the IDs of tracks the client was
+ * sent before but should now delete, either because they have been dropped or
+ * because they no longer match. Nothing is sent for an interval in which nothing
+ * the client is interested in has changed. A snapshot replaces everything the
+ * client had, and one is also sent if the server loses track of what has been
+ * dropped. Invalid messages get an "error" message in reply.
+ * <p>
+ * The clients that might be interested in a changed track are found from its
+ * position using a ViewportIndex, so the cost of each interval depends on how
+ * many tracks have changed and how many clients are looking at them, not on how
+ * many clients are connected. Snapshots are built on threads of their own, so a
+ * client changing its view doesn't hold up everyone else's updates.
+ * <p>
+ * Each client has two threads, one reading from it and one writing to it, so the
+ * number of connections is limited, and connections beyond the limit are turned
+ * away. A client must complete its handshake within a time limit, and messages
+ * from clients are limited in size.
+ */
+public class WebSocketServer {
+    private static final Application APP = Application.getInstance();
+    private static final Logger LOGGER = LogManager.getLogger(WebSocketServer.class);
+    private static final String PATH = "/api/ws";
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String CONFIG_PATH = "comms.web-server.websocket";
+    private static final double[] MIN_ZOOM_BY_TYPE = loadMinZooms();
+    /**
+     * Time a client has to send its whole opening handshake, in milliseconds.
+     */
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+    private static final int MAX_HANDSHAKE_BYTES = 8192;
+    private static final int MAX_HANDSHAKE_HEADERS = 100;
+    /**
+     * Maximum size of a message from a client, including all its fragments.
+     * Clients only send small "subscribe" messages.
+     */
+    private static final int MAX_MESSAGE_BYTES = 65536;
+    /**
+     * Number of threads building snapshots for clients.
+     */
+    private static final int SNAPSHOT_THREADS = 2;
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+    private static final int CLOSE_PROTOCOL_ERROR = 1002;
+    private static final int CLOSE_UNSUPPORTED_DATA = 1003;
+    private static final int CLOSE_MESSAGE_TOO_BIG = 1009;
+    private static final byte[] PING_FRAME = frame(OP_PING, new byte[0]);
+
+    private final int localPort;
+    private final long interval = Application.CONFIG.getLong(CONFIG_PATH + ".interval");
+    private final long pingInterval = Application.CONFIG.getLong(CONFIG_PATH + ".ping-interval");
+    private final int clientQueueSize = Application.CONFIG.getInt(CONFIG_PATH + ".client-queue-size");
+    private final int maxClients = Application.CONFIG.getInt(CONFIG_PATH + ".max-clients");
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    // Connections accepted and not yet closed, including those still handshaking
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final ViewportIndex<Connection> viewportIndex = new ViewportIndex<>();
+    // Which connections have each track, so they can be told when they should
+    // delete it. Only used from the broadcast thread.
+    private final Map<String, Set<Connection>> holders = new HashMap<>();
+    private ServerSocket serverSocket;
+    private ScheduledExecutorService broadcastExecutor;
+    private ExecutorService connectionExecutor;
+    private ExecutorService snapshotExecutor;
+    private long lastSequence;
+    private long lastPingTime;
+
+    /**
+     * Create the WebSocket server
+     *
+     * @param localPort Port to listen on.
+     */
+    public WebSocketServer(int localPort) {
+        this.localPort = localPort;
+    }
+
+    /**
+     * Start accepting connections and sending them changes.
+     */
+    public synchronized void start() {
+        if (broadcastExecutor == null) {
+            try {
+                serverSocket = new ServerSocket(localPort);
+            } catch (IOException ex) {
+                LOGGER.error("Could not start WebSocket server on port {}", localPort, ex);
+                return;
+            }
+            lastSequence = APP.getTrackTable().getSequence();
+            lastPingTime = System.currentTimeMillis();
+            connectionExecutor = Executors.newCachedThreadPool(new BasicThreadFactory.Builder().namingPattern("WebSocket Connection Thread %d").daemon(true).build());
+            snapshotExecutor = Executors.newFixedThreadPool(SNAPSHOT_THREADS, new BasicThreadFactory.Builder().namingPattern("WebSocket Snapshot Thread %d").daemon(true).build());
+            broadcastExecutor = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder().namingPattern("WebSocket Broadcast Thread").daemon(true).build());
+            broadcastExecutor.scheduleWithFixedDelay(this::broadcast, interval, interval, TimeUnit.MILLISECONDS);
+            ServerSocket ss = serverSocket;
+            connectionExecutor.execute(() -> acceptConnections(ss));
+            LOGGER.info("Started WebSocket server on port {}.", localPort);
+        }
+    }
+
+    /**
+     * Disconnect all clients and stop internal threads.
+     */
+    public synchronized void stop() {
+        if (broadcastExecutor != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException ex) {
+                // Closing anyway
+            }
+            broadcastExecutor.shutdownNow();
+            for (Connection c : connections) {
+                c.close();
+            }
+            connectionExecutor.shutdownNow();
+            snapshotExecutor.shutdownNow();
+            broadcastExecutor = null;
+        }
+    }
+
+    /**
+     * Get the number of clients connected.
+     */
+    public int getClientCount() {
+        return connections.size();
+    }
+
+    private void acceptConnections(ServerSocket ss) {
+        while (!ss.isClosed()) {
+            try {
+                Socket socket = ss.accept();
+                if (openConnections.incrementAndGet() > maxClients) {
+                    openConnections.decrementAndGet();
+                    reject(socket);
+                    continue;
+                }
+                Connection c = new Connection(socket);
+                try {
+                    connectionExecutor.execute(c::read);
+                } catch (RejectedExecutionException ex) {
+                    c.close();
+                    throw ex;
+                }
+            } catch (IOException | RejectedExecutionException ex) {
+                if (!ss.isClosed()) {
+                    LOGGER.error("Caught exception when accepting WebSocket connection, continuing...", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Turn away a connection because there are already too many. This is done
+     * without reading the client's handshake, so that it doesn't need a thread.
+     */
+    private static void reject(Socket socket) {
+        try (socket) {
+            LOGGER.info("Too many WebSocket clients connected, turning away {}.", socket.getRemoteSocketAddress());
+            socket.getOutputStream().write("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 60\r\nConnection: close\r\nContent-Length: 0\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException ex) {
+            // Client has gone away anyway
+        }
+    }
+
+    /**
+     * Send each client the changes it is interested in since the last broadcast,
+     * and ping clients if it is time to.
+     */
+    private void broadcast() {
+        try {
+            TrackTable tt = APP.getTrackTable();
+            long sequence = tt.getSequence();
+            if (sequence != lastSequence && !connections.isEmpty()) {
+                List<DroppedTrack> dropped = tt.getDroppedSince(lastSequence);
+                if (dropped != null) {
+                    sendChanges(tt, lastSequence, sequence, dropped);
+                } else {
+                    // Can't tell what has been dropped, so start everyone again
+                    for (Connection c : connections) {
+                        if (c.subscription != null) {
+                            requestSnapshot(c, c.subscription);
+                        }
+                    }
+                }
+            }
+            lastSequence = sequence;
+
+            if (System.currentTimeMillis() - lastPingTime >= pingInterval) {
+                for (Connection c : connections) {
+                    c.offer(PING_FRAME);
+                }
+                lastPingTime = System.currentTimeMillis();
+            }
+        } catch (Exception ex) {
+            LOGGER.error("Caught exception when broadcasting to WebSocket clients, continuing...", ex);
+        }
+    }
+
+    /**
+     * Work out which clients need to know about each track that has changed or been
+     * dropped, and send each of them one "update" message.
+     */
+    private void sendChanges(TrackTable tt, long since, long sequence, List<DroppedTrack> dropped) throws IOException {
+        Map<Connection, Update> updates = new HashMap<>();
+
+        // Dropped tracks first, in case a track with the same ID has been created
+        // since, so that the client deletes the old one before getting the new one
+        for (DroppedTrack d : dropped) {
+            Set<Connection> previous = holders.remove(d.id());
+            if (previous != null) {
+                for (Connection c : previous) {
+                    c.held.remove(d.id());
+                    updates.computeIfAbsent(c, k -> new Update()).dropped.add(d.id());
+                }
+            }
+        }
+
+        for (Track t : tt.values()) {
+            if (t.getChangeSequence() <= since) {
+                continue;
+            }
+            byte[] json = WebServer.getLatestUpdateCallJSON(t);
+            TrackState s = t.getState();
+            Set<Connection> current = new HashSet<>();
+            if (s.position() != null) {
+                viewportIndex.forEachCandidate(s.position().latitude(), s.position().longitude(), c -> {
+                    if (c.wants(s)) {
+                        current.add(c);
+                    }
+                });
+            } else {
+                viewportIndex.forEachUnbounded(c -> {
+                    if (c.wants(s)) {
+                        current.add(c);
+                    }
+                });
+            }
+
+            for (Connection c : current) {
+                c.held.add(s.id());
+                updates.computeIfAbsent(c, k -> new Update()).tracks.add(json);
+            }
+            // Tell clients that had the track but no longer want it to delete it
+            Set<Connection> previous = holders.get(s.id());
+            if (previous != null) {
+                for (Connection c : previous) {
+                    if (!current.contains(c)) {
+                        c.held.remove(s.id());
+                        updates.computeIfAbsent(c, k -> new Update()).dropped.add(s.id());
+                    }
+                }
+            }
+            if (current.isEmpty()) {
+                holders.remove(s.id());
+            } else {
+                holders.put(s.id(), current);
+            }
+        }
+
+        for (Map.Entry<Connection, Update> e : updates.entrySet()) {
+            e.getKey().offer(encodeMessage("update", sequence, e.getValue().tracks, e.getValue().dropped));
+        }
+    }
+
+    /**
+     * Send a client every track it is interested in, replacing whatever it had, and
+     * change its subscription. The snapshot is built on a snapshot thread, and then
+     * handed to the broadcast thread, so that it can't get mixed up with an update
+     * being sent. If the client asks for another snapshot before this one has been
+     * built, this one is abandoned.
+     */
+    private void requestSnapshot(Connection c, Subscription sub) {
+        int request = c.snapshotRequests.incrementAndGet();
+        try {
+            snapshotExecutor.execute(() -> {
+                if (c.closed || request != c.snapshotRequests.get()) {
+                    return;
+                }
+                try {
+                    Snapshot snapshot = buildSnapshot(sub);
+                    broadcastExecutor.execute(() -> {
+                        try {
+                            installSnapshot(c, request, snapshot);
+                        } catch (Exception ex) {
+                            LOGGER.error("Caught exception when sending WebSocket snapshot, continuing...", ex);
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    // Server is stopping
+                } catch (Exception ex) {
+                    LOGGER.error("Caught exception when building WebSocket snapshot, continuing...", ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // Server is stopping
+        }
+    }
+
+    /**
+     * Find every track matching a subscription, and get its JSON.
+     */
+    private static Snapshot buildSnapshot(Subscription sub) {
+        TrackTable tt = APP.getTrackTable();
+        // Taken before looking at any tracks, so that anything changed after this
+        // is caught up on when the snapshot is installed
+        long sequence = tt.getSequence();
+        Collection<Track> candidates = (sub.bbox() != null)
+                ? tt.query(sub.bbox().minLat(), sub.bbox().minLon(), sub.bbox().maxLat(), sub.bbox().maxLon(), sub.types())
+                : tt.values();
+        List<String> ids = new ArrayList<>();
+        List<byte[]> tracks = new ArrayList<>();
+        for (Track t : candidates) {
+            byte[] json = WebServer.getLatestUpdateCallJSON(t);
+            TrackState s = t.getState();
+            if (sub.matches(s)) {
+                ids.add(s.id());
+                tracks.add(json);
+            }
+        }
+        return new Snapshot(sub, sequence, ids, tracks);
+    }
+
+    /**
+     * Switch a client to a snapshot's subscription and send it the snapshot, then
+     * send it an update with anything that has changed since the snapshot was
+     * built. Called on the broadcast thread.
+     */
+    private void installSnapshot(Connection c, int request, Snapshot snapshot) throws IOException {
+        if (c.closed || request != c.snapshotRequests.get()) {
+            return;
+        }
+        TrackTable tt = APP.getTrackTable();
+        List<DroppedTrack> dropped = tt.getDroppedSince(snapshot.sequence());
+        if (dropped == null) {
+            // Too much has been dropped since the snapshot was built to catch up, so
+            // build it again
+            requestSnapshot(c, snapshot.subscription());
+            return;
+        }
+
+        release(c);
+        c.subscription = snapshot.subscription();
+        viewportIndex.put(c, snapshot.subscription().bbox());
+        for (String id : snapshot.ids()) {
+            c.held.add(id);
+            holders.computeIfAbsent(id, k -> new HashSet<>()).add(c);
+        }
+        c.offer(encodeMessage("snapshot", snapshot.sequence(), snapshot.tracks(), null));
+
+        // Changes up to the last broadcast have already been sent to other clients,
+        // so this client needs them separately. Later ones come with the next broadcast.
+        if (snapshot.sequence() >= lastSequence) {
+            return;
+        }
+        Update update = new Update();
+        for (DroppedTrack d : dropped) {
+            if (d.sequence() <= lastSequence && c.held.remove(d.id())) {
+                removeHolder(d.id(), c);
+                update.dropped.add(d.id());
+            }
+        }
+        for (Track t : tt.values()) {
+            long changeSequence = t.getChangeSequence();
+            if (changeSequence <= snapshot.sequence() || changeSequence > lastSequence) {
+                continue;
+            }
+            byte[] json = WebServer.getLatestUpdateCallJSON(t);
+            TrackState s = t.getState();
+            if (c.wants(s)) {
+                c.held.add(s.id());
+                holders.computeIfAbsent(s.id(), k -> new HashSet<>()).add(c);
+                update.tracks.add(json);
+            } else if (c.held.remove(s.id())) {
+                removeHolder(s.id(), c);
+                update.dropped.add(s.id());
+            }
+        }
+        if (!update.tracks.isEmpty() || !update.dropped.isEmpty()) {
+            c.offer(encodeMessage("update", lastSequence, update.tracks, update.dropped));
+        }
+    }
+
+    /**
+     * Forget which tracks a client has.
+     */
+    private void release(Connection c) {
+        for (String id : c.held) {
+            removeHolder(id, c);
+        }
+        c.held.clear();
+    }
+
+    private void removeHolder(String id, Connection c) {
+        Set<Connection> h = holders.get(id);
+        if (h != null) {
+            h.remove(c);
+            if (h.isEmpty()) {
+                holders.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Encode a "snapshot" or "update" message as a text frame.
+     *
+     * @param dropped IDs of tracks to delete, or null to leave out the list
+     */
+    private static byte[] encodeMessage(String type, long sequence, List<byte[]> tracks, Collection<String> dropped) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JSONStreamWriter w = new JSONStreamWriter(out);
+        w.write("{\"type\":\"" + type + "\",\"time\":" + System.currentTimeMillis() + ",\"sequence\":" + sequence + ",\"tracks\":{");
+        for (int i = 0; i < tracks.size(); i++) {
+            if (i > 0) {
+                w.write(',');
+            }
+            w.write(tracks.get(i));
+        }
+        w.write('}');
+        if (dropped != null) {
+            w.write(",\"dropped\":[" + dropped.stream().map(JSONObject::quote).collect(Collectors.joining(",")) + "]");
+        }
+        w.write('}');
+        w.flush();
+        return frame(OP_TEXT, out.toByteArray());
+    }
+
+    private static byte[] encodeError(String message) {
+        return frame(OP_TEXT, new JSONObject(Map.of("type", "error", "message", message)).toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] encodeClose(int code) {
+        return frame(OP_CLOSE, new byte[]{(byte) (code >> 8), (byte) code});
+    }
+
+    /**
+     * Encode a single, unmasked frame, as sent by a server.
+     */
+    private static byte[] frame(int opcode, byte[] payload) {
+        int headerLength = (payload.length < 126) ? 2 : (payload.length <= 0xFFFF) ? 4 : 10;
+        byte[] f = new byte[headerLength + payload.length];
+        f[0] = (byte) (0x80 | opcode);
+        if (payload.length < 126) {
+            f[1] = (byte) payload.length;
+        } else if (payload.length <= 0xFFFF) {
+            f[1] = 126;
+            f[2] = (byte) (payload.length >> 8);
+            f[3] = (byte) payload.length;
+        } else {
+            f[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                f[2 + i] = (byte) ((long) payload.length >> (56 - 8 * i));
+            }
+        }
+        System.arraycopy(payload, 0, f, headerLength, payload.length);
+        return f;
+    }
+
+    private static double[] loadMinZooms() {
+        double[] minZooms = new double[TrackType.values().length];
+        for (TrackType type : TrackType.values()) {
+            String path = CONFIG_PATH + ".min-zoom." + type.name();
+            if (Application.CONFIG.hasPath(path)) {
+                minZooms[type.ordinal()] = Application.CONFIG.getDouble(path);
+            }
+        }
+        return minZooms;
+    }
+
+    /**
+     * What a client is interested in.
+     *
+     * @param bbox  Area the client is looking at, or null for everywhere, including
+     *              tracks with no position
+     * @param types Types of track the client wants, already narrowed down to those
+     *              shown at its zoom level
+     */
+    private record Subscription(BoundingBox bbox, Set<TrackType> types) {
+
+        /**
+         * Parse a "subscribe" message.
+         *
+         * @throws IllegalArgumentException if the message is not valid
+         */
+        static Subscription parse(JSONObject o) {
+            BoundingBox bbox = null;
+            if (o.has("bbox")) {
+                JSONArray a = o.getJSONArray("bbox");
+                if (a.length() != 4) {
+                    throw new IllegalArgumentException("bbox must be [minLat,minLon,maxLat,maxLon]");
+                }
+                bbox = new BoundingBox(a.getDouble(0), a.getDouble(1), a.getDouble(2), a.getDouble(3));
+                if (bbox.minLat() < -90 || bbox.maxLat() > 90 || bbox.minLat() > bbox.maxLat()
+                        || bbox.minLon() < -180 || bbox.minLon() > 180 || bbox.maxLon() < -180 || bbox.maxLon() > 180) {
+                    throw new IllegalArgumentException("bbox is not a valid bounding box");
+                }
+            }
+
+            Set<TrackType> types = EnumSet.allOf(TrackType.class);
+            if (o.has("types")) {
+                types.clear();
+                JSONArray a = o.getJSONArray("types");
+                for (int i = 0; i < a.length(); i++) {
+                    try {
+                        types.add(TrackType.valueOf(a.getString(i)));
+                    } catch (IllegalArgumentException ex) {
+                        throw new IllegalArgumentException("Unknown track type " + a.getString(i));
+                    }
+                }
+            }
+
+            if (o.has("zoom")) {
+                double zoom = o.getDouble("zoom");
+                types.removeIf(t -> zoom < MIN_ZOOM_BY_TYPE[t.ordinal()]);
+            }
+            return new Subscription(bbox, types);
+        }
+
+        boolean matches(TrackState s) {
+            if (!types.contains(s.trackType())) {
+                return false;
+            }
+            return bbox == null || (s.position() != null && bbox.contains(s.position().latitude(), s.position().longitude()));
+        }
+    }
+
+    /**
+     * Tracks matching a subscription, found by a snapshot thread.
+     *
+     * @param sequence Track table sequence number before the tracks were looked at
+     * @param ids      IDs of the matching tracks
+     * @param tracks   JSON of the matching tracks, in the same order
+     */
+    private record Snapshot(Subscription subscription, long sequence, List<String> ids, List<byte[]> tracks) {
+    }
+
+    /**
+     * Tracks and dropped IDs to send a client in one "update" message.
+     */
+    private static class Update {
+        final List<byte[]> tracks = new ArrayList<>();
+        final List<String> dropped = new ArrayList<>();
+    }
+
+    /**
+     * A connected client. Each has a thread reading messages from it, and another
+     * writing the frames in its queue to it, so that a slow client can't hold up
+     * the others. A client that falls so far behind that its queue fills is
+     * disconnected.
+     */
+    private class Connection {
+        private final Socket socket;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(clientQueueSize);
+        // Incremented for each snapshot asked for, so that one superseded before it
+        // is sent can be abandoned
+        private final AtomicInteger snapshotRequests = new AtomicInteger();
+        private volatile boolean closed = false;
+        // Only used from the broadcast thread
+        private Subscription subscription;
+        private final Set<String> held = new HashSet<>();
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        boolean wants(TrackState s) {
+            return !closed && subscription != null && subscription.matches(s);
+        }
+
+        /**
+         * Queue a frame for the client, disconnecting it if its queue is full.
+         */
+        void offer(byte[] frame) {
+            if (!closed && !queue.offer(frame)) {
+                LOGGER.info("WebSocket client {} is not keeping up, disconnecting it.", socket.getRemoteSocketAddress());
+                close();
+            }
+        }
+
+        /**
+         * Queue a close frame. The connection is closed once it has been written.
+         */
+        void closeWith(int code) {
+            offer(encodeClose(code));
+        }
+
+        /**
+         * Carry out the opening handshake, then read messages from the client until
+         * it disconnects or is disconnected.
+         */
+        void read() {
+            boolean closing = false;
+            try {
+                // No single read can wait longer than the whole handshake is allowed
+                // to take, and the deadline stops a client trickling it in slowly
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MILLIS;
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                if (!handshake(in, socket.getOutputStream(), deadline)) {
+                    return;
+                }
+                // Clients answer pings, so one that has gone quiet for a few ping
+                // intervals has gone away
+                socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, pingInterval * 3));
+                connections.add(this);
+                connectionExecutor.execute(this::write);
+                closing = readMessages(in);
+            } catch (IOException | RejectedExecutionException ex) {
+                // Client has disconnected
+            } finally {
+                if (!closing) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Read the client's opening handshake and reply to it.
+         *
+         * @return true if the connection has been upgraded to a WebSocket
+         */
+        private boolean handshake(InputStream in, OutputStream out, long deadline) throws IOException {
+            String[] requestLine = readLine(in, deadline).split(" ");
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while (!(line = readLine(in, deadline)).isEmpty()) {
+                if (headers.size() >= MAX_HANDSHAKE_HEADERS) {
+                    throw new IOException("Too many handshake headers");
+                }
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+                }
+            }
+
+            String status = null;
+            if (requestLine.length != 3 || !requestLine[0].equals("GET")) {
+                status = "400 Bad Request";
+            } else if (!requestLine[1].split("\\?")[0].equals(PATH)) {
+                status = "404 Not Found";
+            } else if (!headers.getOrDefault("upgrade", "").equalsIgnoreCase("websocket")
+                    || !headers.containsKey("sec-websocket-key")) {
+                status = "400 Bad Request";
+            } else if (!headers.getOrDefault("sec-websocket-version", "").equals("13")) {
+                status = "426 Upgrade Required\r\nSec-WebSocket-Version: 13";
+            }
+            if (status != null) {
+                out.write(("HTTP/1.1 " + status + "\r\nConnection: close\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                return false;
+            }
+
+            out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: "
+                    + acceptKey(headers.get("sec-websocket-key")) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            return true;
+        }
+
+        /**
+         * Read frames from the client and handle the messages they make up.
+         *
+         * @return true if a close frame has been queued, and the connection will be
+         * closed once it has been written
+         */
+        private boolean readMessages(InputStream in) throws IOException {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            int messageOpcode = -1;
+            while (!closed) {
+                int b0 = in.read();
+                if (b0 < 0) {
+                    return false;
+                }
+                int b1 = readByte(in);
+                boolean fin = (b0 & 0x80) != 0;
+                int opcode = b0 & 0x0F;
+                long length = b1 & 0x7F;
+                if (length == 126) {
+                    length = ((long) readByte(in) << 8) | readByte(in);
+                } else if (length == 127) {
+                    length = 0;
+                    for (int i = 0; i < 8; i++) {
+                        length = (length << 8) | readByte(in);
+                    }
+                }
+                // Clients must mask their frames, and control frames must be short
+                // and unfragmented
+                if ((b1 & 0x80) == 0 || (opcode >= OP_CLOSE && (length > 125 || !fin))) {
+                    closeWith(CLOSE_PROTOCOL_ERROR);
+                    return true;
+                }
+                // Check the length the client claims before reading or allocating
+                // anything for the payload. A 64-bit length with the top bit set
+                // comes out negative.
+                if (length < 0 || length > MAX_MESSAGE_BYTES - message.size()) {
+                    closeWith(CLOSE_MESSAGE_TOO_BIG);
+                    return true;
+                }
+                byte[] mask = readFully(in, 4);
+                byte[] payload = readFully(in, (int) length);
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i % 4];
+                }
+
+                switch (opcode) {
+                    case OP_CONTINUATION, OP_TEXT, OP_BINARY -> {
+                        if ((opcode == OP_CONTINUATION) != (messageOpcode >= 0)) {
+                            closeWith(CLOSE_PROTOCOL_ERROR);
+                            return true;
+                        }
+                        if (opcode != OP_CONTINUATION) {
+                            messageOpcode = opcode;
+                        }
+                        message.write(payload);
+                        if (fin) {
+                            if (messageOpcode != OP_TEXT) {
+                                closeWith(CLOSE_UNSUPPORTED_DATA);
+                                return true;
+                            }
+                            handleMessage(message.toString(StandardCharsets.UTF_8));
+                            message.reset();
+                            messageOpcode = -1;
+                        }
+                    }
+                    case OP_CLOSE -> {
+                        // Echo the client's status code back
+                        offer(frame(OP_CLOSE, Arrays.copyOf(payload, Math.min(payload.length, 2))));
+                        return true;
+                    }
+                    case OP_PING -> offer(frame(OP_PONG, payload));
+                    case OP_PONG -> {
+                        // Only needed to keep the read timeout from expiring
+                    }
+                    default -> {
+                        closeWith(CLOSE_PROTOCOL_ERROR);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Handle a message from the client.
+         */
+        private void handleMessage(String text) {
+            try {
+                JSONObject o = new JSONObject(text);
+                if (!o.optString("type").equals("subscribe")) {
+                    throw new IllegalArgumentException("Unknown message type " + o.optString("type"));
+                }
+                requestSnapshot(this, Subscription.parse(o));
+            } catch (JSONException | IllegalArgumentException ex) {
+                offer(encodeError(Objects.requireNonNullElse(ex.getMessage(), "Invalid message")));
+            }
+        }
+
+        /**
+         * Write frames to the client until it disconnects or is disconnected.
+         */
+        void write() {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                while (!closed) {
+                    byte[] frame = queue.take();
+                    if (closed) {
+                        break;
+                    }
+                    // Write anything else that has built up before flushing
+                    do {
+                        if (frame.length == 0) {
+                            return;
+                        }
+                        out.write(frame);
+                        if ((frame[0] & 0x0F) == OP_CLOSE) {
+                            out.flush();
+                            return;
+                        }
+                    } while ((frame = queue.poll()) != null);
+                    out.flush();
+                }
+            } catch (IOException ex) {
+                // Client has disconnected
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Disconnect the client. Closing the socket also wakes up its threads if
+         * they are stuck reading from or writing to a client that has gone away.
+         */
+        synchronized void close() {
+            if (!closed) {
+                closed = true;
+                openConnections.decrementAndGet();
+                connections.remove(this);
+                viewportIndex.remove(this);
+                queue.clear();
+                queue.offer(new byte[0]);
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    // Closing anyway
+                }
+                ScheduledExecutorService executor = broadcastExecutor;
+                if (executor != null) {
+                    try {
+                        executor.execute(() -> release(this));
+                    } catch (RejectedExecutionException ex) {
+                        // Server is stopping
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the Sec-WebSocket-Accept header for a client's Sec-WebSocket-Key.
+     */
+    private static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-1 is not available", ex);
+        }
+    }
+
+    /**
+     * Read a line of the opening handshake, without its line ending.
+     *
+     * @param deadline Time by which the whole handshake must have been read
+     */
+    private static String readLine(InputStream in, long deadline) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new SocketTimeoutException("Handshake took too long");
+            }
+            if (sb.length() >= MAX_HANDSHAKE_BYTES) {
+                throw new IOException("Handshake line too long");
+            }
+            if (b != '\r') {
+                sb.append((char) b);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] b = in.readNBytes(length);
+        if (b.length != length) {
+            throw new EOFException();
+        }
+        return b;
+    }
+}
@@ -1,12 +1,15 @@
 package com.ianrenton.planesailing.data;
 
 import com.ianrenton.planesailing.app.Application;
+import com.ianrenton.planesailing.store.TrackRecord;
+import com.ianrenton.planesailing.store.TrackRecordWriter;
 import com.ianrenton.planesailing.utils.DataMaps;
 import dk.tbsalling.aismessages.ais.messages.types.NavigationStatus;
 import dk.tbsalling.aismessages.ais.messages.types.ShipType;
 
 import java.io.Serial;
 import java.util.Map.Entry;
+import java.util.Objects;
 
 public class AISTrack extends Track {
     @Serial
@@ -19,6 +22,16 @@ public class AISTrack extends Track {
     private static final Long DROP_AIS_BASE_STATION_TIME = Application.CONFIG.getLong("timing.drop-ais-base-station-after");
     public static final Long MAX_AIS_RANGE = Application.CONFIG.getLong("ranges.expected-ais-range");
 
+    // Track data store field tags. These must never be reused for a different field.
+    private static final int FIELD_NAME = 32;
+    private static final int FIELD_SHIP_TYPE = 33;
+    private static final int FIELD_SHIP_TYPE_DESCRIPTION = 34;
+    private static final int FIELD_SHORE_STATION = 35;
+    private static final int FIELD_ATON = 36;
+    private static final int FIELD_NAV_STATUS = 37;
+    private static final int FIELD_NAV_STATUS_DESCRIPTION = 38;
+    private static final int FIELD_DESTINATION = 39;
+
     private final int mmsi;
     private String name;
     private ShipType shipType = ShipType.NotAvailable;
@@ -67,7 +80,10 @@ public class AISTrack extends Track {
     }
 
     public void setName(String name) {
-        this.name = name;
+        if (!Objects.equals(this.name, name)) {
+            this.name = name;
+            markChanged();
+        }
     }
 
     public ShipType getShipType() {
@@ -80,6 +96,7 @@ public class AISTrack extends Track {
 
     public void setShipType(ShipType shipType) {
         if (shipType != null) {
+            boolean changed = shipType != this.shipType;
             this.shipType = shipType;
 
             // Set the right symbol for the ship type if known
@@ -97,6 +114,9 @@ public class AISTrack extends Track {
                     break;
                 }
             }
+            if (changed) {
+                markChanged();
+            }
         }
     }
 
@@ -105,7 +125,10 @@ public class AISTrack extends Track {
     }
 
     public void setShoreStation(boolean shoreStation) {
-        this.shoreStation = shoreStation;
+        if (this.shoreStation != shoreStation) {
+            this.shoreStation = shoreStation;
+            markChanged();
+        }
         if (shoreStation) {
             setSymbolCode(SHORE_STATION_SYMBOL);
         }
@@ -116,7 +139,10 @@ public class AISTrack extends Track {
     }
 
     public void setAtoN(boolean aton) {
-        this.aton = aton;
+        if (this.aton != aton) {
+            this.aton = aton;
+            markChanged();
+        }
     }
 
     public NavigationStatus getNavStatus() {
@@ -124,6 +150,7 @@ public class AISTrack extends Track {
     }
 
     public void setNavStatus(NavigationStatus navStatus) {
+        boolean changed = navStatus != this.navStatus;
         this.navStatus = navStatus;
 
         // Set the right description for the nav status if known
@@ -133,6 +160,9 @@ public class AISTrack extends Track {
                 break;
             }
         }
+        if (changed) {
+            markChanged();
+        }
     }
 
     public String getDestination() {
@@ -140,18 +170,22 @@ public class AISTrack extends Track {
     }
 
     public void setDestination(String destination) {
-        this.destination = destination;
+        if (!Objects.equals(this.destination, destination)) {
+            this.destination = destination;
+            markChanged();
+        }
     }
 
-    public boolean shouldDrop() {
+    @Override
+    public long getDropTime() {
         if (positionHistory.isEmpty()) {
-            return getTimeSinceLastUpdate() > DROP_SHIP_TRACK_WITH_NO_POS_TIME;
+            return saturatedAdd(getLastUpdateTime(), DROP_SHIP_TRACK_WITH_NO_POS_TIME);
         } else if (fixed) {
-            return getTimeSinceLastUpdate() > DROP_AIS_BASE_STATION_TIME;
+            return saturatedAdd(getLastUpdateTime(), DROP_AIS_BASE_STATION_TIME);
         } else if (getSpeed() == null || getSpeed() < 1.0) {
-            return getTimeSinceLastUpdate() > DROP_STATIC_SHIP_TRACK_TIME;
+            return saturatedAdd(getLastUpdateTime(), DROP_STATIC_SHIP_TRACK_TIME);
         } else {
-            return getTimeSinceLastUpdate() > DROP_MOVING_SHIP_TRACK_TIME;
+            return saturatedAdd(getLastUpdateTime(), DROP_MOVING_SHIP_TRACK_TIME);
         }
     }
 
@@ -193,4 +227,38 @@ public class AISTrack extends Track {
             return "";
         }
     }
+
+    @Override
+    public void writeFields(TrackRecordWriter w) {
+        super.writeFields(w);
+        w.writeString(FIELD_NAME, name);
+        w.writeEnum(FIELD_SHIP_TYPE, shipType);
+        w.writeString(FIELD_SHIP_TYPE_DESCRIPTION, shipTypeDescription);
+        w.writeBoolean(FIELD_SHORE_STATION, shoreStation);
+        w.writeBoolean(FIELD_ATON, aton);
+        w.writeEnum(FIELD_NAV_STATUS, navStatus);
+        w.writeString(FIELD_NAV_STATUS_DESCRIPTION, navStatusDescription);
+        w.writeString(FIELD_DESTINATION, destination);
+    }
+
+    @Override
+    public void readFields(TrackRecord r) {
+        super.readFields(r);
+        if (r.has(FIELD_NAME)) {
+            name = r.getString(FIELD_NAME);
+        }
+        shipType = r.getEnum(FIELD_SHIP_TYPE, ShipType.class, shipType);
+        if (r.has(FIELD_SHIP_TYPE_DESCRIPTION)) {
+            shipTypeDescription = r.getString(FIELD_SHIP_TYPE_DESCRIPTION);
+        }
+        shoreStation = r.getBoolean(FIELD_SHORE_STATION, shoreStation);
+        aton = r.getBoolean(FIELD_ATON, aton);
+        navStatus = r.getEnum(FIELD_NAV_STATUS, NavigationStatus.class, navStatus);
+        if (r.has(FIELD_NAV_STATUS_DESCRIPTION)) {
+            navStatusDescription = r.getString(FIELD_NAV_STATUS_DESCRIPTION);
+        }
+        if (r.has(FIELD_DESTINATION)) {
+            destination = r.getString(FIELD_DESTINATION);
+        }
+    }
 }
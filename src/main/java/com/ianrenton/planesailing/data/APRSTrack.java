@@ -1,10 +1,13 @@
 package com.ianrenton.planesailing.data;
 
 import com.ianrenton.planesailing.app.Application;
+import com.ianrenton.planesailing.store.TrackRecord;
+import com.ianrenton.planesailing.store.TrackRecordWriter;
 import com.ianrenton.planesailing.utils.DataMaps;
 
 import java.io.Serial;
 import java.util.Map.Entry;
+import java.util.Objects;
 
 public class APRSTrack extends Track {
     @Serial
@@ -15,6 +18,12 @@ public class APRSTrack extends Track {
     private static final Long DROP_APRS_TRACK_WITH_NO_POS_TIME = Application.CONFIG.getLong("timing.drop-aprs-track-no-position-after");
     private static final Long DROP_APRS_BASE_STATION_TIME = Application.CONFIG.getLong("timing.drop-aprs-base-station-after");
 
+    // Track data store field tags. These must never be reused for a different field.
+    private static final int FIELD_PACKET_DEST_CALL = 32;
+    private static final int FIELD_PACKET_ROUTE = 33;
+    private static final int FIELD_COMMENT = 34;
+    private static final int FIELD_SSID = 35;
+
     private String packetDestCall = null;
     private String packetRoute = null;
     private String comment = null;
@@ -32,7 +41,10 @@ public class APRSTrack extends Track {
     }
 
     public void setPacketDestCall(String packetDestCall) {
-        this.packetDestCall = packetDestCall;
+        if (!Objects.equals(this.packetDestCall, packetDestCall)) {
+            this.packetDestCall = packetDestCall;
+            markChanged();
+        }
     }
 
     public String getPacketRoute() {
@@ -40,7 +52,10 @@ public class APRSTrack extends Track {
     }
 
     public void setPacketRoute(String packetRoute) {
-        this.packetRoute = packetRoute;
+        if (!Objects.equals(this.packetRoute, packetRoute)) {
+            this.packetRoute = packetRoute;
+            markChanged();
+        }
     }
 
     public String getComment() {
@@ -48,7 +63,10 @@ public class APRSTrack extends Track {
     }
 
     public void setComment(String comment) {
-        this.comment = comment;
+        if (!Objects.equals(this.comment, comment)) {
+            this.comment = comment;
+            markChanged();
+        }
     }
 
     public String getSSID() {
@@ -60,7 +78,10 @@ public class APRSTrack extends Track {
             ssid = "0";
         }
 
-        this.ssid = ssid;
+        if (!Objects.equals(this.ssid, ssid)) {
+            this.ssid = ssid;
+            markChanged();
+        }
 
         // Set the right symbol for the SSID if known
         for (Entry<String, String> e : DataMaps.APRS_SSID_TO_SYMBOL.entrySet()) {
@@ -73,13 +94,13 @@ public class APRSTrack extends Track {
         // SSIDs 0, 10 & 13 represent fixed stations, unless a course/speed
         // are known, in which case it must be mobile but the owner hasn't
         // set the SSID properly.
-        boolean tmpFixed = (ssid.equals("0") || ssid.equals("10") || ssid.equals("13")) && course == null && speed == null;
+        boolean tmpFixed = (ssid.equals("0") || ssid.equals("10") || ssid.equals("13")) && !has(HAS_COURSE) && !has(HAS_SPEED);
         setFixed(tmpFixed);
         setTrackType(tmpFixed ? TrackType.APRS_BASE_STATION : TrackType.APRS_MOBILE);
     }
 
     @Override
-    public void setCourse(Double course) {
+    public void setCourse(double course) {
         super.setCourse(course);
         // Got a valid course, this is not a fixed track no matter what the SSID says
         setFixed(false);
@@ -87,7 +108,7 @@ public class APRSTrack extends Track {
     }
 
     @Override
-    public void setSpeed(Double speed) {
+    public void setSpeed(double speed) {
         super.setSpeed(speed);
         // Got a valid speed, this is not a fixed track no matter what the SSID says
         setFixed(false);
@@ -95,15 +116,15 @@ public class APRSTrack extends Track {
     }
 
     @Override
-    public boolean shouldDrop() {
+    public long getDropTime() {
         if (positionHistory.isEmpty()) {
-            return getTimeSinceLastUpdate() > DROP_APRS_TRACK_WITH_NO_POS_TIME;
+            return saturatedAdd(getLastUpdateTime(), DROP_APRS_TRACK_WITH_NO_POS_TIME);
         } else if (fixed) {
-            return getTimeSinceLastUpdate() > DROP_APRS_BASE_STATION_TIME;
+            return saturatedAdd(getLastUpdateTime(), DROP_APRS_BASE_STATION_TIME);
         } else if (getSpeed() == null || getSpeed() < 1.0) {
-            return getTimeSinceLastUpdate() > DROP_STATIC_APRS_TRACK_TIME;
+            return saturatedAdd(getLastUpdateTime(), DROP_STATIC_APRS_TRACK_TIME);
         } else {
-            return getTimeSinceLastUpdate() > DROP_MOVING_APRS_TRACK_TIME;
+            return saturatedAdd(getLastUpdateTime(), DROP_MOVING_APRS_TRACK_TIME);
         }
     }
 
@@ -125,4 +146,30 @@ public class APRSTrack extends Track {
     public String getDisplayInfo2() {
         return ((packetDestCall != null && !packetDestCall.isEmpty()) ? (">" + packetDestCall) : "") + ((packetRoute != null && !packetRoute.isEmpty()) ? ("," + packetRoute) : "");
     }
+
+    @Override
+    public void writeFields(TrackRecordWriter w) {
+        super.writeFields(w);
+        w.writeString(FIELD_PACKET_DEST_CALL, packetDestCall);
+        w.writeString(FIELD_PACKET_ROUTE, packetRoute);
+        w.writeString(FIELD_COMMENT, comment);
+        w.writeString(FIELD_SSID, ssid);
+    }
+
+    @Override
+    public void readFields(TrackRecord r) {
+        super.readFields(r);
+        if (r.has(FIELD_PACKET_DEST_CALL)) {
+            packetDestCall = r.getString(FIELD_PACKET_DEST_CALL);
+        }
+        if (r.has(FIELD_PACKET_ROUTE)) {
+            packetRoute = r.getString(FIELD_PACKET_ROUTE);
+        }
+        if (r.has(FIELD_COMMENT)) {
+            comment = r.getString(FIELD_COMMENT);
+        }
+        if (r.has(FIELD_SSID)) {
+            ssid = r.getString(FIELD_SSID);
+        }
+    }
 }
@@ -1,10 +1,17 @@
 package com.ianrenton.planesailing.data;
 
 import com.ianrenton.planesailing.app.Application;
+import com.ianrenton.planesailing.store.TrackRecord;
+import com.ianrenton.planesailing.store.TrackRecordWriter;
 import com.ianrenton.planesailing.utils.DataMaps;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serial;
 import java.util.Map.Entry;
+import java.util.Objects;
 
 public class Aircraft extends Track {
     @Serial
@@ -14,9 +21,39 @@ public class Aircraft extends Track {
     private static final Long DROP_AIR_TRACK_TIME = Application.CONFIG.getLong("timing.drop-air-track-after");
     private static final Long DROP_AIR_TRACK_WITH_NO_POS_TIME = Application.CONFIG.getLong("timing.drop-air-track-no-position-after");
     public static final Long MAX_AIRCRAFT_RANGE = Application.CONFIG.getLong("ranges.expected-aircraft-range");
-
+    /**
+     * Value of icao24 for an aircraft whose ID is not a valid ICAO 24-bit hex address
+     * (e.g. TIS-B tracks reported by Dump1090 with a "~" prefix).
+     */
+    public static final int NO_ICAO24 = -1;
+
+    // Track data store field tags. These must never be reused for a different field.
+    private static final int FIELD_ON_GROUND = 32;
+    private static final int FIELD_SQUAWK = 33;
+    private static final int FIELD_CATEGORY = 34;
+    private static final int FIELD_CATEGORY_DESCRIPTION = 35;
+    private static final int FIELD_REGISTRATION = 36;
+    private static final int FIELD_AIRCRAFT_TYPE_SHORT = 37;
+    private static final int FIELD_AIRCRAFT_TYPE_LONG = 38;
+    private static final int FIELD_OPERATOR = 39;
+    private static final int FIELD_SYMBOL_SET_BY = 40;
+    private static final int HAS_SQUAWK = FIRST_SUBCLASS_BIT;
+    // Fields as saved using Java serialization by older versions, see Track
+    @Serial
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("onGround", boolean.class),
+            new ObjectStreamField("squawk", Integer.class),
+            new ObjectStreamField("category", String.class),
+            new ObjectStreamField("categoryDescription", String.class),
+            new ObjectStreamField("registration", String.class),
+            new ObjectStreamField("aircraftTypeShort", String.class),
+            new ObjectStreamField("aircraftTypeLong", String.class),
+            new ObjectStreamField("operator", String.class),
+            new ObjectStreamField("symbolSetBy", SymbolSetBy.class)};
+
+    private final int icao24;
     private boolean onGround;
-    private Integer squawk;
+    private int squawk;
     private String category; // e.g. "A1" = light
     private String categoryDescription; // e.g. "Light"
     private String registration; // aka Tail Number
@@ -33,6 +70,7 @@ public class Aircraft extends Track {
 
     public Aircraft(String id) {
         super(id);
+        icao24 = parseICAO24(id);
         setTrackType(TrackType.AIRCRAFT);
         setSymbolCode(DEFAULT_AIRCRAFT_SYMBOL);
         positionHistory.setHistoryLength(60 * 60 * 1000); // 1 hour
@@ -73,8 +111,34 @@ public class Aircraft extends Track {
         }
     }
 
+    /**
+     * Parse an ICAO 24-bit address from its hex string form, returning NO_ICAO24 if
+     * it is not valid.
+     */
+    private static int parseICAO24(String hex) {
+        if (hex.isEmpty() || hex.length() > 6) {
+            return NO_ICAO24;
+        }
+        try {
+            return Integer.parseInt(hex, 16);
+        } catch (NumberFormatException ex) {
+            return NO_ICAO24;
+        }
+    }
+
+    /**
+     * Get the ICAO 24-bit address of the aircraft, or NO_ICAO24 if the ID is not a
+     * valid ICAO address.
+     */
+    public int getICAO24() {
+        return icao24;
+    }
+
+    /**
+     * Get the squawk code. May be null if the squawk is unknown.
+     */
     public Integer getSquawk() {
-        return squawk;
+        return has(HAS_SQUAWK) ? squawk : null;
     }
 
     /**
@@ -86,7 +150,7 @@ public class Aircraft extends Track {
      * being dead reckoned well beyond the runway.
      */
     public boolean isOnGround() {
-        return onGround || (altitude != null && altitude <= 100) || (altitude != null && verticalRate != null && altitude <= 500 && verticalRate < -2.0);
+        return onGround || (has(HAS_ALTITUDE) && altitude <= 100) || (has(HAS_ALTITUDE | HAS_VERTICAL_RATE) && altitude <= 500 && verticalRate < -2.0);
     }
 
     @Override
@@ -112,11 +176,18 @@ public class Aircraft extends Track {
     }
 
     public void setOnGround(boolean onGround) {
-        this.onGround = onGround;
+        if (this.onGround != onGround) {
+            this.onGround = onGround;
+            markChanged();
+        }
     }
 
     public void setSquawk(int squawk) {
-        this.squawk = squawk;
+        if (!has(HAS_SQUAWK) || this.squawk != squawk) {
+            this.squawk = squawk;
+            present |= HAS_SQUAWK;
+            markChanged();
+        }
     }
 
     /**
@@ -134,6 +205,7 @@ public class Aircraft extends Track {
     }
 
     public void setCategory(String category) {
+        boolean changed = !Objects.equals(this.category, category);
         this.category = category;
 
         // Set the right description for the category if known
@@ -153,6 +225,9 @@ public class Aircraft extends Track {
                 }
             }
         }
+        if (changed) {
+            markChanged();
+        }
     }
 
     /**
@@ -184,16 +259,20 @@ public class Aircraft extends Track {
     }
 
     public void setOperator(String operator) {
-        this.operator = operator;
+        if (!Objects.equals(this.operator, operator)) {
+            this.operator = operator;
+            markChanged();
+        }
     }
 
-    public boolean shouldDrop() {
+    @Override
+    public long getDropTime() {
         if (isOnGround()) {
-            return getTimeSinceLastUpdate() > DROP_AIR_TRACK_AT_ZERO_ALT_TIME;
+            return saturatedAdd(getLastUpdateTime(), DROP_AIR_TRACK_AT_ZERO_ALT_TIME);
         } else if (positionHistory.isEmpty()) {
-            return getTimeSinceLastUpdate() > DROP_AIR_TRACK_WITH_NO_POS_TIME;
+            return saturatedAdd(getLastUpdateTime(), DROP_AIR_TRACK_WITH_NO_POS_TIME);
         } else {
-            return getTimeSinceLastUpdate() > DROP_AIR_TRACK_TIME;
+            return saturatedAdd(getLastUpdateTime(), DROP_AIR_TRACK_TIME);
         }
     }
 
@@ -215,9 +294,9 @@ public class Aircraft extends Track {
      */
     public String getDisplayAltitude() {
         String ret = "";
-        if (altitude != null) {
+        if (has(HAS_ALTITUDE)) {
             ret += "FL" + Math.round(altitude / 100.0);
-            if (verticalRate != null) {
+            if (has(HAS_VERTICAL_RATE)) {
                 if (verticalRate > 2) {
                     ret += " + ";
                 } else if (verticalRate < -2) {
@@ -250,7 +329,87 @@ public class Aircraft extends Track {
 
     @Override
     public String getDisplayInfo2() {
-        return (squawk != null) ? String.format("SQUAWK: %04d", squawk) : "";
+        return has(HAS_SQUAWK) ? String.format("SQUAWK: %04d", squawk) : "";
+    }
+
+    @Override
+    public void writeFields(TrackRecordWriter w) {
+        super.writeFields(w);
+        w.writeBoolean(FIELD_ON_GROUND, onGround);
+        w.writeInt(FIELD_SQUAWK, getSquawk());
+        w.writeString(FIELD_CATEGORY, category);
+        w.writeString(FIELD_CATEGORY_DESCRIPTION, categoryDescription);
+        w.writeString(FIELD_REGISTRATION, registration);
+        w.writeString(FIELD_AIRCRAFT_TYPE_SHORT, aircraftTypeShort);
+        w.writeString(FIELD_AIRCRAFT_TYPE_LONG, aircraftTypeLong);
+        w.writeString(FIELD_OPERATOR, operator);
+        w.writeEnum(FIELD_SYMBOL_SET_BY, symbolSetBy);
+    }
+
+    @Override
+    public void readFields(TrackRecord r) {
+        super.readFields(r);
+        onGround = r.getBoolean(FIELD_ON_GROUND, onGround);
+        Integer squawkCode = r.getInt(FIELD_SQUAWK);
+        if (squawkCode != null) {
+            setSquawk(squawkCode);
+        }
+        if (r.has(FIELD_CATEGORY)) {
+            category = r.getString(FIELD_CATEGORY);
+        }
+        if (r.has(FIELD_CATEGORY_DESCRIPTION)) {
+            categoryDescription = r.getString(FIELD_CATEGORY_DESCRIPTION);
+        }
+        if (r.has(FIELD_REGISTRATION)) {
+            registration = r.getString(FIELD_REGISTRATION);
+        }
+        if (r.has(FIELD_AIRCRAFT_TYPE_SHORT)) {
+            aircraftTypeShort = r.getString(FIELD_AIRCRAFT_TYPE_SHORT);
+        }
+        if (r.has(FIELD_AIRCRAFT_TYPE_LONG)) {
+            aircraftTypeLong = r.getString(FIELD_AIRCRAFT_TYPE_LONG);
+        }
+        if (r.has(FIELD_OPERATOR)) {
+            operator = r.getString(FIELD_OPERATOR);
+        }
+        symbolSetBy = r.getEnum(FIELD_SYMBOL_SET_BY, SymbolSetBy.class, symbolSetBy);
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField f = out.putFields();
+        f.put("onGround", onGround);
+        f.put("squawk", getSquawk());
+        f.put("category", category);
+        f.put("categoryDescription", categoryDescription);
+        f.put("registration", registration);
+        f.put("aircraftTypeShort", aircraftTypeShort);
+        f.put("aircraftTypeLong", aircraftTypeLong);
+        f.put("operator", operator);
+        f.put("symbolSetBy", symbolSetBy);
+        out.writeFields();
+    }
+
+    /**
+     * Read an aircraft saved using Java serialization. Its ICAO 24-bit address is
+     * worked out when Track.readResolve() replaces it with a newly constructed copy.
+     */
+    @Serial
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField f = in.readFields();
+        onGround = f.get("onGround", false);
+        Integer squawkCode = (Integer) f.get("squawk", null);
+        if (squawkCode != null) {
+            squawk = squawkCode;
+            present |= HAS_SQUAWK;
+        }
+        category = (String) f.get("category", null);
+        categoryDescription = (String) f.get("categoryDescription", null);
+        registration = (String) f.get("registration", null);
+        aircraftTypeShort = (String) f.get("aircraftTypeShort", null);
+        aircraftTypeLong = (String) f.get("aircraftTypeLong", null);
+        operator = (String) f.get("operator", null);
+        symbolSetBy = (SymbolSetBy) f.get("symbolSetBy", SymbolSetBy.DEFAULT);
     }
 
     private enum SymbolSetBy {
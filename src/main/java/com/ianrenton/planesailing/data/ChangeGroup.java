@@ -0,0 +1,33 @@
+package com.ianrenton.planesailing.data;
+
+/**
+ * Groups of track fields that can change together, so that consumers of track
+ * change events can tell roughly what has changed without comparing every field.
+ */
+public enum ChangeGroup {
+    /**
+     * The track's position or position history.
+     */
+    POSITION,
+    /**
+     * Altitude, vertical rate, course, heading or speed.
+     */
+    KINEMATICS,
+    /**
+     * Any other descriptive data, e.g. callsign, type, symbol or name.
+     */
+    METADATA,
+    /**
+     * Only the time the track was last heard from.
+     */
+    UPDATE_TIME;
+
+    private final int bit = 1 << ordinal();
+
+    /**
+     * Get this group as a single bit, so that a set of groups can be held in an int.
+     */
+    public int bit() {
+        return bit;
+    }
+}
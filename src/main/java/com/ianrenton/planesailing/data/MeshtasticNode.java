@@ -1,8 +1,15 @@
 package com.ianrenton.planesailing.data;
 
 import com.ianrenton.planesailing.app.Application;
+import com.ianrenton.planesailing.store.TrackRecord;
+import com.ianrenton.planesailing.store.TrackRecordWriter;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serial;
+import java.util.Objects;
 
 public class MeshtasticNode extends Track {
     @Serial
@@ -10,14 +17,40 @@ public class MeshtasticNode extends Track {
     private static final String DEFAULT_SYMBOL = "SUGPUUSR----";
     public static final Long DROP_MESHTASTIC_TRACK_TIME = Application.CONFIG.getLong("timing.drop-meshtastic-after");
     
+    // Track data store field tags. These must never be reused for a different field.
+    private static final int FIELD_SHORT_NAME = 32;
+    private static final int FIELD_LONG_NAME = 33;
+    private static final int FIELD_HARDWARE = 34;
+    private static final int FIELD_CHANNEL_UTIL = 35;
+    private static final int FIELD_AIR_UTIL_TX = 36;
+    private static final int FIELD_BATTERY_LEVEL = 37;
+    private static final int FIELD_VOLTAGE = 38;
+    private static final int FIELD_SNR = 39;
+    private static final int HAS_CHANNEL_UTIL = FIRST_SUBCLASS_BIT;
+    private static final int HAS_AIR_UTIL_TX = FIRST_SUBCLASS_BIT << 1;
+    private static final int HAS_BATTERY_LEVEL = FIRST_SUBCLASS_BIT << 2;
+    private static final int HAS_VOLTAGE = FIRST_SUBCLASS_BIT << 3;
+    private static final int HAS_SNR = FIRST_SUBCLASS_BIT << 4;
+    // Fields as saved using Java serialization by older versions, see Track
+    @Serial
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("shortName", String.class),
+            new ObjectStreamField("longName", String.class),
+            new ObjectStreamField("hardware", String.class),
+            new ObjectStreamField("channelUtil", Double.class),
+            new ObjectStreamField("airUtilTx", Double.class),
+            new ObjectStreamField("batteryLevel", Double.class),
+            new ObjectStreamField("voltage", Double.class),
+            new ObjectStreamField("snr", Double.class)};
+
     private String shortName = "";
     private String longName = "";
     private String hardware = "";
-    private Double channelUtil;
-    private Double airUtilTx;
-    private Double batteryLevel;
-    private Double voltage;
-    private Double snr;
+    private double channelUtil;
+    private double airUtilTx;
+    private double batteryLevel;
+    private double voltage;
+    private double snr;
 
     public MeshtasticNode(String id) {
         super(id);
@@ -37,7 +70,10 @@ public class MeshtasticNode extends Track {
      * @param shortName the shortName to set
      */
     public void setShortName(String shortName) {
-        this.shortName = shortName;
+        if (!Objects.equals(this.shortName, shortName)) {
+            this.shortName = shortName;
+            markChanged();
+        }
     }
 
     /**
@@ -51,7 +87,10 @@ public class MeshtasticNode extends Track {
      * @param longName the longName to set
      */
     public void setLongName(String longName) {
-        this.longName = longName;
+        if (!Objects.equals(this.longName, longName)) {
+            this.longName = longName;
+            markChanged();
+        }
     }
 
     /**
@@ -65,82 +104,105 @@ public class MeshtasticNode extends Track {
      * @param hardware the hardware to set
      */
     public void setHardware(String hardware) {
-        this.hardware = hardware;
+        if (!Objects.equals(this.hardware, hardware)) {
+            this.hardware = hardware;
+            markChanged();
+        }
     }
 
     /**
      * @return the channelUtil
      */
     public Double getChannelUtil() {
-        return channelUtil;
+        return has(HAS_CHANNEL_UTIL) ? channelUtil : null;
     }
 
     /**
      * @param channelUtil the channelUtil to set
      */
     public void setChannelUtil(double channelUtil) {
-        this.channelUtil = channelUtil;
+        if (!has(HAS_CHANNEL_UTIL) || Double.compare(this.channelUtil, channelUtil) != 0) {
+            this.channelUtil = channelUtil;
+            present |= HAS_CHANNEL_UTIL;
+            markChanged();
+        }
     }
 
     /**
      * @return the airUtilTx
      */
     public Double getAirUtilTx() {
-        return airUtilTx;
+        return has(HAS_AIR_UTIL_TX) ? airUtilTx : null;
     }
 
     /**
      * @param airUtilTx the airUtilTx to set
      */
     public void setAirUtilTx(double airUtilTx) {
-        this.airUtilTx = airUtilTx;
+        if (!has(HAS_AIR_UTIL_TX) || Double.compare(this.airUtilTx, airUtilTx) != 0) {
+            this.airUtilTx = airUtilTx;
+            present |= HAS_AIR_UTIL_TX;
+            markChanged();
+        }
     }
 
     /**
      * @return the batteryLevel
      */
     public Double getBatteryLevel() {
-        return batteryLevel;
+        return has(HAS_BATTERY_LEVEL) ? batteryLevel : null;
     }
 
     /**
      * @param batteryLevel the batteryLevel to set
      */
     public void setBatteryLevel(double batteryLevel) {
-        this.batteryLevel = batteryLevel;
+        if (!has(HAS_BATTERY_LEVEL) || Double.compare(this.batteryLevel, batteryLevel) != 0) {
+            this.batteryLevel = batteryLevel;
+            present |= HAS_BATTERY_LEVEL;
+            markChanged();
+        }
     }
 
     /**
      * @return the voltage
      */
     public Double getVoltage() {
-        return voltage;
+        return has(HAS_VOLTAGE) ? voltage : null;
     }
 
     /**
      * @param voltage the voltage to set
      */
     public void setVoltage(double voltage) {
-        this.voltage = voltage;
+        if (!has(HAS_VOLTAGE) || Double.compare(this.voltage, voltage) != 0) {
+            this.voltage = voltage;
+            present |= HAS_VOLTAGE;
+            markChanged();
+        }
     }
 
     /**
      * @return the snr
      */
     public Double getSnr() {
-        return snr;
+        return has(HAS_SNR) ? snr : null;
     }
 
     /**
      * @param snr the snr to set
      */
     public void setSnr(double snr) {
-        this.snr = snr;
+        if (!has(HAS_SNR) || Double.compare(this.snr, snr) != 0) {
+            this.snr = snr;
+            present |= HAS_SNR;
+            markChanged();
+        }
     }
 
     @Override
-    public boolean shouldDrop() {
-        return getTimeSinceLastUpdate() > DROP_MESHTASTIC_TRACK_TIME;
+    public long getDropTime() {
+        return saturatedAdd(getLastUpdateTime(), DROP_MESHTASTIC_TRACK_TIME);
     }
 
     @Override
@@ -165,10 +227,10 @@ public class MeshtasticNode extends Track {
         if (!hardware.isBlank()) {
             sb.append(hardware);
         }
-        if (batteryLevel != null) {
+        if (has(HAS_BATTERY_LEVEL)) {
             sb.append(String.format(" Batt: %.0f%%", batteryLevel));
         }
-        if (voltage != null) {
+        if (has(HAS_VOLTAGE)) {
             sb.append(String.format(" %.2fV", voltage));
         }
         return sb.toString();
@@ -177,15 +239,89 @@ public class MeshtasticNode extends Track {
     @Override
     public String getDisplayInfo2() {
         StringBuilder sb = new StringBuilder();
-        if (snr != null) {
+        if (has(HAS_SNR)) {
             sb.append(String.format("SNR: %.1fdB", snr));
         }
-        if (channelUtil != null) {
+        if (has(HAS_CHANNEL_UTIL)) {
             sb.append(String.format(" ChUtil: %.1f%%", channelUtil));
         }
-        if (airUtilTx != null) {
+        if (has(HAS_AIR_UTIL_TX)) {
             sb.append(String.format(" AirTx: %.1f%%", airUtilTx));
         }
         return sb.toString();
     }
+
+    @Override
+    public void writeFields(TrackRecordWriter w) {
+        super.writeFields(w);
+        w.writeString(FIELD_SHORT_NAME, shortName);
+        w.writeString(FIELD_LONG_NAME, longName);
+        w.writeString(FIELD_HARDWARE, hardware);
+        w.writeDouble(FIELD_CHANNEL_UTIL, getChannelUtil());
+        w.writeDouble(FIELD_AIR_UTIL_TX, getAirUtilTx());
+        w.writeDouble(FIELD_BATTERY_LEVEL, getBatteryLevel());
+        w.writeDouble(FIELD_VOLTAGE, getVoltage());
+        w.writeDouble(FIELD_SNR, getSnr());
+    }
+
+    @Override
+    public void readFields(TrackRecord r) {
+        super.readFields(r);
+        if (r.has(FIELD_SHORT_NAME)) {
+            shortName = r.getString(FIELD_SHORT_NAME);
+        }
+        if (r.has(FIELD_LONG_NAME)) {
+            longName = r.getString(FIELD_LONG_NAME);
+        }
+        if (r.has(FIELD_HARDWARE)) {
+            hardware = r.getString(FIELD_HARDWARE);
+        }
+        Double channelUtilValue = r.getDouble(FIELD_CHANNEL_UTIL);
+        if (channelUtilValue != null) {
+            setChannelUtil(channelUtilValue);
+        }
+        Double airUtilTxValue = r.getDouble(FIELD_AIR_UTIL_TX);
+        if (airUtilTxValue != null) {
+            setAirUtilTx(airUtilTxValue);
+        }
+        Double batteryLevelValue = r.getDouble(FIELD_BATTERY_LEVEL);
+        if (batteryLevelValue != null) {
+            setBatteryLevel(batteryLevelValue);
+        }
+        Double voltageValue = r.getDouble(FIELD_VOLTAGE);
+        if (voltageValue != null) {
+            setVoltage(voltageValue);
+        }
+        Double snrValue = r.getDouble(FIELD_SNR);
+        if (snrValue != null) {
+            setSnr(snrValue);
+        }
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField f = out.putFields();
+        f.put("shortName", shortName);
+        f.put("longName", longName);
+        f.put("hardware", hardware);
+        f.put("channelUtil", getChannelUtil());
+        f.put("airUtilTx", getAirUtilTx());
+        f.put("batteryLevel", getBatteryLevel());
+        f.put("voltage", getVoltage());
+        f.put("snr", getSnr());
+        out.writeFields();
+    }
+
+    @Serial
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField f = in.readFields();
+        shortName = (String) f.get("shortName", "");
+        longName = (String) f.get("longName", "");
+        hardware = (String) f.get("hardware", "");
+        channelUtil = readSerializedDouble(f, "channelUtil", HAS_CHANNEL_UTIL);
+        airUtilTx = readSerializedDouble(f, "airUtilTx", HAS_AIR_UTIL_TX);
+        batteryLevel = readSerializedDouble(f, "batteryLevel", HAS_BATTERY_LEVEL);
+        voltage = readSerializedDouble(f, "voltage", HAS_VOLTAGE);
+        snr = readSerializedDouble(f, "snr", HAS_SNR);
+    }
 }
@@ -1,16 +1,69 @@
 package com.ianrenton.planesailing.data;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
 import java.io.Serial;
 import java.io.Serializable;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Position history for a track.
+ * <p>
+ * Positions are stored as parallel arrays of latitude, longitude and time, used as
+ * a sliding window: new positions are appended at the tail, and culling just moves
+ * the head forward past the old ones. When the tail reaches the end of the arrays,
+ * the live positions are copied into new arrays with room to grow, so appending
+ * takes constant time on average and culling takes time proportional to the
+ * number of positions culled.
+ * <p>
+ * Each change publishes a new immutable view of the arrays, and a slot is never
+ * reused once a position has been written to it, so readers can take a snapshot
+ * of the history by reading the current view, without locking and without copying
+ * anything. Iterating the history iterates such a snapshot. The one exception is
+ * the time of the latest position, which is updated when the same position is
+ * reported again. Each view carries its own copy of that time, so updating it
+ * publishes a new view, and views already handed out are unaffected. Changes are
+ * synchronized, although in practice they are made while holding the track's lock
+ * anyway.
+ * <p>
+ * As well as culling history older than the history length, culling applies the
+ * history's PositionHistoryPolicy, thinning out older points and keeping the number
+ * of points within budget.
  */
-public class PositionHistory extends CopyOnWriteArrayList<TimestampedPosition> implements Serializable {
+public class PositionHistory extends AbstractList<TimestampedPosition> implements RandomAccess, Serializable {
     @Serial
     private static final long serialVersionUID = 1L;
+    /**
+     * Minimum interval between culls. Culling as soon as each point ages out would
+     * mean a track with continuous history needing maintenance every few seconds,
+     * so let a little extra history build up between culls instead.
+     */
+    private static final long CULL_INTERVAL = 5 * 60 * 1000;
+    private static final int MIN_CAPACITY = 16;
+
+    private static final double EARTH_RADIUS_METRES = 6371000.0;
+    /**
+     * A history may grow past its point budget by up to this fraction of it before
+     * a cull is needed, so that a busy track at its budget isn't culled on every
+     * maintenance tick.
+     */
+    private static final int BUDGET_SLACK_FRACTION = 8;
+    /**
+     * Number of histories read since the last call to takeLegacyDiscardCount() whose
+     * positions had to be thrown away because they were saved by an older version.
+     */
+    private static final AtomicInteger LEGACY_DISCARD_COUNT = new AtomicInteger();
+
     private long historyLength = Long.MAX_VALUE;
+    private transient volatile Buffer buffer = Buffer.EMPTY;
+    private transient volatile PositionHistoryPolicy policy = PositionHistoryPolicy.UNLIMITED;
+    // Time up to which each of the policy's tiers has been applied, so that points
+    // already thinned out at a tier aren't looked at again until they reach the next
+    private transient volatile long[] decimatedTo = new long[0];
 
     /**
      * Create a position history.
@@ -27,44 +80,449 @@ public class PositionHistory extends CopyOnWriteArrayList<TimestampedPosition> i
     }
 
     /**
-     * Add a position, or if the position is unchanged, remove the previous position
-     * before adding this one with the updated timestamp. This avoids having massive
-     * position histories for fixed objects.
+     * Set the policy for thinning out older history. This takes effect at the next
+     * cull.
      */
-    public boolean add(TimestampedPosition p) {
-        if (!isEmpty()) {
-            TimestampedPosition lastP = get(size() - 1);
-            if (lastP.latitude() == p.latitude() && lastP.longitude() == p.longitude()) {
-                remove(size() - 1);
+    public synchronized void setPolicy(PositionHistoryPolicy policy) {
+        if (policy != this.policy) {
+            this.policy = policy;
+            long[] d = new long[policy.tiers().size()];
+            Arrays.fill(d, Long.MIN_VALUE);
+            decimatedTo = d;
+        }
+    }
+
+    public PositionHistoryPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Add a position, or if the position is unchanged, update the timestamp of the
+     * previous position instead. This avoids having massive position histories for
+     * fixed objects.
+     */
+    @Override
+    public synchronized boolean add(TimestampedPosition p) {
+        Buffer b = buffer;
+        if (b.end > b.head) {
+            int last = b.end - 1;
+            if (b.latitudes[last] == p.latitude() && b.longitudes[last] == p.longitude()) {
+                buffer = new Buffer(b.latitudes, b.longitudes, b.times, b.head, b.end, p.time());
+                return true;
             }
         }
-        return super.add(p);
+        b = ensureCapacity(b.seal(), 1);
+        b.write(b.end, p);
+        buffer = new Buffer(b.latitudes, b.longitudes, b.times, b.head, b.end + 1, p.time());
+        return true;
+    }
+
+    /**
+     * Add all the given positions in order. Unlike add(), unchanged positions are
+     * not merged.
+     */
+    @Override
+    public synchronized boolean addAll(Collection<? extends TimestampedPosition> c) {
+        Object[] positions = c.toArray();
+        if (positions.length == 0) {
+            return false;
+        }
+        Buffer b = ensureCapacity(buffer.seal(), positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            b.write(b.end + i, (TimestampedPosition) positions[i]);
+        }
+        buffer = new Buffer(b.latitudes, b.longitudes, b.times, b.head, b.end + positions.length,
+                ((TimestampedPosition) positions[positions.length - 1]).time());
+        return true;
+    }
+
+    @Override
+    public TimestampedPosition get(int index) {
+        Buffer b = buffer;
+        Objects.checkIndex(index, b.size());
+        return b.get(index);
+    }
+
+    @Override
+    public int size() {
+        return buffer.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return buffer.size() == 0;
+    }
+
+    /**
+     * Iterate a snapshot of the history, which is not affected by any changes made
+     * while iterating.
+     */
+    @Override
+    public Iterator<TimestampedPosition> iterator() {
+        return snapshot().iterator();
+    }
+
+    @Override
+    public Object[] toArray() {
+        return snapshot().toArray();
+    }
+
+    /**
+     * Get an immutable snapshot of the history as it is now. This doesn't lock or
+     * copy the history.
+     */
+    public List<TimestampedPosition> snapshot() {
+        return new Snapshot(buffer);
+    }
+
+    @Override
+    public synchronized void clear() {
+        buffer = Buffer.EMPTY;
     }
 
     /**
      * Get the most recent entry, or null if the history is empty.
      */
     public TimestampedPosition getLatest() {
-        if (!isEmpty()) {
-            return get(size() - 1);
-        }
-        return null;
+        Buffer b = buffer;
+        return (b.size() > 0) ? b.get(b.size() - 1) : null;
+    }
+
+    /**
+     * Get the oldest entry, or null if the history is empty.
+     */
+    public TimestampedPosition getOldest() {
+        Buffer b = buffer;
+        return (b.size() > 0) ? b.get(0) : null;
     }
 
     /**
      * Cull history older than historyLength.
+     *
+     * @return The positions that were culled.
+     */
+    public List<TimestampedPosition> cull() {
+        return cull(System.currentTimeMillis());
+    }
+
+    /**
+     * Cull history that is older than historyLength at the given time, then thin
+     * out older history and enforce the point budget according to the policy.
+     * Positions are culled by age from the oldest end, so a position that was added
+     * out of order is kept until all those before it have been culled too.
+     *
+     * @return The positions that were culled, oldest first.
+     */
+    public synchronized List<TimestampedPosition> cull(long now) {
+        long threshold = now - historyLength;
+        Buffer b = buffer;
+        int head = b.head;
+        while (head < b.end && b.time(head) < threshold) {
+            head++;
+        }
+
+        // Work out which of the remaining positions to drop under the policy
+        PositionHistoryPolicy p = policy;
+        boolean[] drop = null;
+        int dropCount = 0;
+        if (!p.tiers().isEmpty()) {
+            drop = new boolean[b.end - head];
+            long[] d = decimatedTo;
+            dropCount = decimate(b, head, now, p, d, drop);
+            for (int i = 0; i < d.length; i++) {
+                d[i] = now - p.tiers().get(i).after();
+            }
+        }
+        int overBudget = (b.end - head - dropCount) - p.pointBudget();
+        if (overBudget > 0) {
+            if (drop == null) {
+                // Nothing else to drop, so the oldest can just be culled
+                head += overBudget;
+            } else {
+                for (int i = 0; i < drop.length && overBudget > 0; i++) {
+                    if (!drop[i]) {
+                        drop[i] = true;
+                        dropCount++;
+                        overBudget--;
+                    }
+                }
+            }
+        }
+
+        if (head == b.head && dropCount == 0) {
+            return Collections.emptyList();
+        }
+        List<TimestampedPosition> culled = new ArrayList<>(new Snapshot(b).subList(0, head - b.head));
+        if (dropCount == 0) {
+            setHead(b, head);
+        } else {
+            // Positions are being removed from the middle, so copy the rest into new
+            // arrays, as the existing ones may be being read
+            int size = b.end - head - dropCount;
+            int capacity = Math.max(MIN_CAPACITY, size * 2);
+            double[] latitudes = new double[capacity];
+            double[] longitudes = new double[capacity];
+            long[] times = new long[capacity];
+            int k = 0;
+            for (int i = 0; i < drop.length; i++) {
+                int slot = head + i;
+                if (drop[i]) {
+                    culled.add(b.get(slot - b.head));
+                } else {
+                    latitudes[k] = b.latitudes[slot];
+                    longitudes[k] = b.longitudes[slot];
+                    times[k++] = b.time(slot);
+                }
+            }
+            buffer = new Buffer(latitudes, longitudes, times, 0, size, (size > 0) ? times[size - 1] : 0);
+        }
+        return culled;
+    }
+
+    /**
+     * Mark the positions to drop from slot "from" onwards under the policy's
+     * decimation tiers. Positions that have already been through the tier that now
+     * applies to them are skipped, and just counted as kept.
+     *
+     * @param decimatedTo Time up to which each tier has already been applied
+     * @return The number of positions marked.
+     */
+    private static int decimate(Buffer b, int from, long now, PositionHistoryPolicy p, long[] decimatedTo, boolean[] drop) {
+        // Everything up to the oldest of the times has been through every tier it
+        // ever will, so start just before the first position after that
+        long done = Long.MAX_VALUE;
+        for (long d : decimatedTo) {
+            done = Math.min(done, d);
+        }
+        int start = from;
+        while (start < b.end && b.time(start) <= done) {
+            start++;
+        }
+        int count = 0;
+        int lastKept = (start > from) ? start - 1 : -1;
+        for (int slot = start; slot < b.end; slot++) {
+            long time = b.time(slot);
+            int tierIndex = p.tierIndexFor(now - time);
+            if (tierIndex < 0) {
+                // This and everything after it is recent enough to keep in full
+                break;
+            }
+            PositionHistoryPolicy.Tier tier = p.tiers().get(tierIndex);
+            if (time <= decimatedTo[tierIndex]) {
+                // Already thinned out at this tier
+                lastKept = slot;
+            } else if (lastKept >= 0 && time - b.time(lastKept) < tier.interval()
+                    && (tier.distance() <= 0 || distance(b, lastKept, slot) < tier.distance())) {
+                drop[slot - from] = true;
+                count++;
+            } else {
+                lastKept = slot;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Approximate distance in metres between the positions in two slots, which is
+     * accurate enough over the short distances between consecutive points.
      */
-    public void cull() {
-        long threshold = System.currentTimeMillis() - historyLength;
-        removeIf(e -> e.time() < threshold);
+    private static double distance(Buffer b, int slot1, int slot2) {
+        double dLat = Math.toRadians(b.latitudes[slot2] - b.latitudes[slot1]);
+        double dLon = Math.toRadians(b.longitudes[slot2] - b.longitudes[slot1])
+                * Math.cos(Math.toRadians((b.latitudes[slot1] + b.latitudes[slot2]) / 2.0));
+        return Math.sqrt(dLat * dLat + dLon * dLon) * EARTH_RADIUS_METRES;
+    }
+
+    /**
+     * Get the time, in UTC millis since epoch, at which this history will next
+     * need culling, or Long.MAX_VALUE if it never will. This includes thinning out
+     * older history and enforcing the point budget.
+     */
+    public long getNextCullTime() {
+        Buffer b = buffer;
+        if (b.size() == 0) {
+            return Long.MAX_VALUE;
+        }
+        PositionHistoryPolicy p = policy;
+        if (b.size() > (long) p.pointBudget() + p.pointBudget() / BUDGET_SLACK_FRACTION) {
+            return 0;
+        }
+        long oldestTime = b.get(0).time();
+        long next = Long.MAX_VALUE;
+        if (historyLength < Long.MAX_VALUE - oldestTime - CULL_INTERVAL) {
+            next = oldestTime + historyLength + CULL_INTERVAL;
+        }
+        // Each tier needs applying again once positions newer than those it has
+        // already been applied to reach its age
+        long latestTime = b.get(b.size() - 1).time();
+        long[] d = decimatedTo;
+        for (int i = 0; i < d.length && i < p.tiers().size(); i++) {
+            if (latestTime > d[i]) {
+                long start = Math.max(d[i], oldestTime);
+                next = Math.min(next, start + p.tiers().get(i).after() + CULL_INTERVAL);
+            }
+        }
+        return next;
     }
 
     /**
      * Keep only the latest position and remove any older ones.
      */
-    public void keepOnlyLatest() {
-        if (size() > 1) {
-            subList(0, size() - 1).clear();
+    public synchronized void keepOnlyLatest() {
+        Buffer b = buffer;
+        if (b.size() > 1) {
+            setHead(b, b.end - 1);
+        }
+    }
+
+    /**
+     * Move the head of the history forward, releasing the arrays for smaller ones if
+     * they are now mostly empty.
+     */
+    private void setHead(Buffer b, int head) {
+        int size = b.end - head;
+        if (b.capacity() > MIN_CAPACITY && size <= b.capacity() / 4) {
+            buffer = b.copy(head, Math.max(MIN_CAPACITY, size * 2));
+        } else {
+            buffer = new Buffer(b.latitudes, b.longitudes, b.times, head, b.end, b.latestTime);
+        }
+    }
+
+    /**
+     * Return a buffer with room to append the given number of positions, which is
+     * either the given one, or a copy of its live positions in new arrays.
+     */
+    private static Buffer ensureCapacity(Buffer b, int extra) {
+        if (b.end + extra <= b.capacity()) {
+            return b;
+        }
+        return b.copy(b.head, Math.max(MIN_CAPACITY, (b.size() + extra) * 2));
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        Buffer b = buffer;
+        out.writeInt(b.size());
+        for (int i = 0; i < b.size(); i++) {
+            TimestampedPosition p = b.get(i);
+            out.writeDouble(p.latitude());
+            out.writeDouble(p.longitude());
+            out.writeLong(p.time());
+        }
+    }
+
+    /**
+     * Get the number of histories read since this was last called whose positions
+     * were lost because they were saved by an older version, and reset the count.
+     */
+    public static int takeLegacyDiscardCount() {
+        return LEGACY_DISCARD_COUNT.getAndSet(0);
+    }
+
+    @Serial
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        buffer = Buffer.EMPTY;
+        policy = PositionHistoryPolicy.UNLIMITED;
+        decimatedTo = new long[0];
+        List<TimestampedPosition> positions = new ArrayList<>();
+        try {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                positions.add(new TimestampedPosition(in.readDouble(), in.readDouble(), in.readLong()));
+            }
+        } catch (OptionalDataException | EOFException ex) {
+            // Saved by an older version, when this was a CopyOnWriteArrayList. Its
+            // positions were stored as part of that class so can't be recovered.
+            // Count it so whoever is loading can warn about the lost trails.
+            LEGACY_DISCARD_COUNT.incrementAndGet();
+        }
+        addAll(positions);
+    }
+
+    /**
+     * Immutable view of the history: the positions in slots head (inclusive) to end
+     * (exclusive) of the arrays. The arrays are shared with other views, but only
+     * ever written beyond the end of every view published so far, apart from the
+     * time of the latest position. Views take that from latestTime instead of the
+     * array, so its slot in the array can be written once the position is no longer
+     * the latest.
+     */
+    private record Buffer(double[] latitudes, double[] longitudes, long[] times, int head, int end, long latestTime) {
+        private static final Buffer EMPTY = new Buffer(new double[0], new double[0], new long[0], 0, 0, 0);
+
+        int size() {
+            return end - head;
+        }
+
+        int capacity() {
+            return times.length;
+        }
+
+        TimestampedPosition get(int index) {
+            int slot = head + index;
+            return new TimestampedPosition(latitudes[slot], longitudes[slot], time(slot));
+        }
+
+        long time(int slot) {
+            return (slot == end - 1) ? latestTime : times[slot];
+        }
+
+        /**
+         * Write the latest time into the array, ready for positions to be appended
+         * after it. No view published so far reads that slot of the array, since it
+         * is the latest position of every view that includes it.
+         */
+        Buffer seal() {
+            if (end > head) {
+                times[end - 1] = latestTime;
+            }
+            return this;
+        }
+
+        void write(int slot, TimestampedPosition p) {
+            latitudes[slot] = p.latitude();
+            longitudes[slot] = p.longitude();
+            times[slot] = p.time();
+        }
+
+        /**
+         * Copy the positions from the given slot onwards into new arrays.
+         */
+        Buffer copy(int from, int capacity) {
+            int size = end - from;
+            double[] newLatitudes = new double[capacity];
+            double[] newLongitudes = new double[capacity];
+            long[] newTimes = new long[capacity];
+            System.arraycopy(latitudes, from, newLatitudes, 0, size);
+            System.arraycopy(longitudes, from, newLongitudes, 0, size);
+            for (int i = 0; i < size; i++) {
+                newTimes[i] = time(from + i);
+            }
+            return new Buffer(newLatitudes, newLongitudes, newTimes, 0, size, latestTime);
+        }
+    }
+
+    /**
+     * Read-only list over a view of the history.
+     */
+    private static class Snapshot extends AbstractList<TimestampedPosition> implements RandomAccess {
+        private final Buffer buffer;
+
+        Snapshot(Buffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public TimestampedPosition get(int index) {
+            Objects.checkIndex(index, buffer.size());
+            return buffer.get(index);
+        }
+
+        @Override
+        public int size() {
+            return buffer.size();
         }
     }
 }
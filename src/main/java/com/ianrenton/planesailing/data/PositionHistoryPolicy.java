@@ -0,0 +1,91 @@
+package com.ianrenton.planesailing.data;
+
+import com.ianrenton.planesailing.app.Application;
+import com.typesafe.config.Config;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * How much detail a track's position history keeps as it ages. Recent history is
+ * kept in full, while older history is thinned out in tiers, each of which keeps
+ * fewer points than the last. On top of that, the number of points is kept within
+ * a budget, with the oldest going first. (The history may grow past the budget by
+ * up to an eighth between culls.)
+ * <p>
+ * Policies are set per track type in application.conf.
+ *
+ * @param pointBudget Maximum number of points to keep
+ * @param tiers       Decimation tiers, youngest first
+ */
+public record PositionHistoryPolicy(int pointBudget, List<Tier> tiers) {
+
+    /**
+     * Policy that keeps every point.
+     */
+    public static final PositionHistoryPolicy UNLIMITED = new PositionHistoryPolicy(Integer.MAX_VALUE, List.of());
+
+    private static final String CONFIG_PATH = "track-table.position-history";
+    private static final PositionHistoryPolicy[] POLICY_BY_TYPE = loadPolicies();
+
+    /**
+     * One tier of decimation. Once a point is older than "after", it is removed if
+     * it is both less than "interval" after the previous point kept, and less than
+     * "distance" from it. This keeps at most one point per interval for slow
+     * movers, while tracks that are moving quickly keep enough points to show
+     * their shape.
+     *
+     * @param after    Age at which points enter this tier, in milliseconds
+     * @param interval Minimum interval between points, in milliseconds
+     * @param distance Distance in metres beyond which a point is kept regardless of
+     *                 the interval, or zero to decimate by time alone
+     */
+    public record Tier(long after, long interval, double distance) {
+    }
+
+    /**
+     * Get the policy for a type of track. Types with no policy configured keep
+     * every point.
+     */
+    public static PositionHistoryPolicy forType(TrackType type) {
+        return (type != null) ? POLICY_BY_TYPE[type.ordinal()] : UNLIMITED;
+    }
+
+    /**
+     * Get the index of the tier that applies to a point of the given age, or -1 if
+     * it is too young to be decimated.
+     */
+    public int tierIndexFor(long age) {
+        int index = -1;
+        for (int i = 0; i < tiers.size(); i++) {
+            if (age >= tiers.get(i).after()) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    private static PositionHistoryPolicy[] loadPolicies() {
+        PositionHistoryPolicy[] policies = new PositionHistoryPolicy[TrackType.values().length];
+        for (TrackType type : TrackType.values()) {
+            String path = CONFIG_PATH + "." + type.name();
+            if (Application.CONFIG.hasPath(path)) {
+                Config c = Application.CONFIG.getConfig(path);
+                int budget = c.hasPath("point-budget") ? c.getInt("point-budget") : Integer.MAX_VALUE;
+                List<Tier> tiers = new ArrayList<>();
+                if (c.hasPath("tiers")) {
+                    for (Config t : c.getConfigList("tiers")) {
+                        tiers.add(new Tier(t.getLong("after"), t.getLong("interval"),
+                                t.hasPath("distance") ? t.getDouble("distance") : 0));
+                    }
+                }
+                tiers.sort(Comparator.comparingLong(Tier::after));
+                policies[type.ordinal()] = new PositionHistoryPolicy(budget, List.copyOf(tiers));
+            } else {
+                policies[type.ordinal()] = UNLIMITED;
+            }
+        }
+        return policies;
+    }
+}
@@ -1,8 +1,15 @@
 package com.ianrenton.planesailing.data;
 
 import com.ianrenton.planesailing.app.Application;
+import com.ianrenton.planesailing.store.TrackRecord;
+import com.ianrenton.planesailing.store.TrackRecordWriter;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serial;
+import java.util.Objects;
 
 public class Radiosonde extends Track {
     @Serial
@@ -11,9 +18,21 @@ public class Radiosonde extends Track {
     private static final Long DROP_RADIOSONDE_TRACK_TIME = Application.CONFIG.getLong("timing.drop-radiosonde-after");
     public static final Long MAX_RADIOSONDE_RANGE = Application.CONFIG.getLong("ranges.expected-radiosonde-range");
     
+    // Track data store field tags. These must never be reused for a different field.
+    private static final int FIELD_FREQUENCY = 32;
+    private static final int FIELD_MODEL = 33;
+    private static final int FIELD_TEMPERATURE = 34;
+    private static final int HAS_TEMPERATURE = FIRST_SUBCLASS_BIT;
+    // Fields as saved using Java serialization by older versions, see Track
+    @Serial
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("frequencyString", String.class),
+            new ObjectStreamField("model", String.class),
+            new ObjectStreamField("temperature", Double.class)};
+
     private String frequencyString = "";
     private String model = "";
-    private Double temperature = null;
+    private double temperature;
 
     public Radiosonde(String callsign) {
         super(callsign);
@@ -34,7 +53,10 @@ public class Radiosonde extends Track {
      * @param frequencyString the frequencyString to set
      */
     public void setFrequencyString(String frequencyString) {
-        this.frequencyString = frequencyString;
+        if (!Objects.equals(this.frequencyString, frequencyString)) {
+            this.frequencyString = frequencyString;
+            markChanged();
+        }
     }
 
     /**
@@ -48,25 +70,44 @@ public class Radiosonde extends Track {
      * @param model the model to set
      */
     public void setModel(String model) {
-        this.model = model;
+        if (!Objects.equals(this.model, model)) {
+            this.model = model;
+            markChanged();
+        }
     }
 
     /**
      * @return the temperature
      */
     public Double getTemperature() {
-        return temperature;
+        return has(HAS_TEMPERATURE) ? temperature : null;
     }
 
     /**
      * @param temperature the temperature to set
      */
+    public void setTemperature(double temperature) {
+        if (!has(HAS_TEMPERATURE) || Double.compare(this.temperature, temperature) != 0) {
+            this.temperature = temperature;
+            present |= HAS_TEMPERATURE;
+            markChanged();
+        }
+    }
+
+    /**
+     * @param temperature the temperature to set, or null to clear it
+     */
     public void setTemperature(Double temperature) {
-        this.temperature = temperature;
+        if (temperature != null) {
+            setTemperature(temperature.doubleValue());
+        } else {
+            clear(HAS_TEMPERATURE, ChangeGroup.METADATA);
+        }
     }
 
-    public boolean shouldDrop() {
-        return getTimeSinceLastUpdate() > DROP_RADIOSONDE_TRACK_TIME;
+    @Override
+    public long getDropTime() {
+        return saturatedAdd(getLastUpdateTime(), DROP_RADIOSONDE_TRACK_TIME);
     }
 
     @Override
@@ -86,6 +127,45 @@ public class Radiosonde extends Track {
 
     @Override
     public String getDisplayInfo2() {
-        return (temperature != null) ? "Temp: " + temperature.toString() + "C" : "";
+        return has(HAS_TEMPERATURE) ? "Temp: " + temperature + "C" : "";
+    }
+
+    @Override
+    public void writeFields(TrackRecordWriter w) {
+        super.writeFields(w);
+        w.writeString(FIELD_FREQUENCY, frequencyString);
+        w.writeString(FIELD_MODEL, model);
+        w.writeDouble(FIELD_TEMPERATURE, getTemperature());
+    }
+
+    @Override
+    public void readFields(TrackRecord r) {
+        super.readFields(r);
+        if (r.has(FIELD_FREQUENCY)) {
+            frequencyString = r.getString(FIELD_FREQUENCY);
+        }
+        if (r.has(FIELD_MODEL)) {
+            model = r.getString(FIELD_MODEL);
+        }
+        if (r.has(FIELD_TEMPERATURE)) {
+            setTemperature(r.getDouble(FIELD_TEMPERATURE));
+        }
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField f = out.putFields();
+        f.put("frequencyString", frequencyString);
+        f.put("model", model);
+        f.put("temperature", getTemperature());
+        out.writeFields();
+    }
+
+    @Serial
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField f = in.readFields();
+        frequencyString = (String) f.get("frequencyString", "");
+        model = (String) f.get("model", "");
+        temperature = readSerializedDouble(f, "temperature", HAS_TEMPERATURE);
     }
 }
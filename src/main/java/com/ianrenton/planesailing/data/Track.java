@@ -1,18 +1,84 @@
 package com.ianrenton.planesailing.data;
 
 import com.ianrenton.planesailing.app.Application;
+import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.store.TrackDataStore;
+import com.ianrenton.planesailing.store.TrackRecord;
+import com.ianrenton.planesailing.store.TrackRecordWriter;
+import com.ianrenton.planesailing.utils.TrailSimplifier;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serial;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 public abstract class Track implements Serializable {
+    /**
+     * Value of gridCell for a track that is not in the track table's spatial index.
+     */
+    public static final long NO_GRID_CELL = Long.MIN_VALUE;
+    /**
+     * Value of scheduledMaintenanceTime for a track that is not in the track table's
+     * expiry queue.
+     */
+    public static final long NOT_SCHEDULED = Long.MAX_VALUE;
     @Serial
     private static final long serialVersionUID = 1L;
+    /**
+     * Fields as they were saved using Java serialization by older versions, when the
+     * numeric fields were null if unknown. Tracks are now saved in the track data
+     * store instead, but a track table saved by an older version can still be loaded,
+     * so the old form is kept and converted to and from by readObject() and
+     * writeObject().
+     */
+    @Serial
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("id", String.class),
+            new ObjectStreamField("callsign", String.class),
+            new ObjectStreamField("trackType", TrackType.class),
+            new ObjectStreamField("symbolCode", String.class),
+            new ObjectStreamField("positionHistory", PositionHistory.class),
+            new ObjectStreamField("altitude", Double.class),
+            new ObjectStreamField("verticalRate", Double.class),
+            new ObjectStreamField("course", Double.class),
+            new ObjectStreamField("heading", Double.class),
+            new ObjectStreamField("speed", Double.class),
+            new ObjectStreamField("metaDataTime", Long.class),
+            new ObjectStreamField("fixed", boolean.class),
+            new ObjectStreamField("createdByConfig", boolean.class)};
     private static final Application APP = Application.getInstance();
     private static final Logger LOGGER = LogManager.getLogger(Track.class);
+    private static final AtomicLongFieldUpdater<Track> CHANGE_SEQUENCE = AtomicLongFieldUpdater.newUpdater(Track.class, "changeSequence");
+    // Track data store field tags. These must never be reused for a different field. Subclasses use tags from 32 up.
+    private static final int FIELD_CALLSIGN = 1;
+    private static final int FIELD_TRACK_TYPE = 2;
+    private static final int FIELD_SYMBOL_CODE = 3;
+    private static final int FIELD_POSITION_HISTORY = 4;
+    private static final int FIELD_ALTITUDE = 5;
+    private static final int FIELD_VERTICAL_RATE = 6;
+    private static final int FIELD_COURSE = 7;
+    private static final int FIELD_HEADING = 8;
+    private static final int FIELD_SPEED = 9;
+    private static final int FIELD_METADATA_TIME = 10;
+    private static final int FIELD_FIXED = 11;
+    private static final int FIELD_CREATED_BY_CONFIG = 12;
+    // Bits of the "present" mask. Track uses the low 16 bits, subclasses may use the rest.
+    protected static final int HAS_ALTITUDE = 1;
+    protected static final int HAS_VERTICAL_RATE = 1 << 1;
+    protected static final int HAS_COURSE = 1 << 2;
+    protected static final int HAS_HEADING = 1 << 3;
+    protected static final int HAS_SPEED = 1 << 4;
+    protected static final int FIRST_SUBCLASS_BIT = 1 << 16;
+    private static final AtomicIntegerFieldUpdater<Track> PENDING_CHANGES = AtomicIntegerFieldUpdater.newUpdater(Track.class, "pendingChanges");
 
     protected final String id; // unique ID. ICAO Hex is used for aircraft, MMSI for ships, callsign for APRS
     // tracks and radiosondes, "!" hex code for Meshtastic. These are all sufficiently different that each track should be
@@ -21,14 +87,29 @@ public abstract class Track implements Serializable {
     protected TrackType trackType;
     protected String symbolCode;
     protected final PositionHistory positionHistory = new PositionHistory();
-    protected Double altitude; // feet
-    protected Double verticalRate; // feet per minute
-    protected Double course; // degrees
-    protected Double heading; // degrees
-    protected Double speed; // knots
-    protected Long metaDataTime = System.currentTimeMillis(); // UTC millis since epoch. Set to current time on track creation.
+    protected double altitude; // feet
+    protected double verticalRate; // feet per minute
+    protected double course; // degrees
+    protected double heading; // degrees
+    protected double speed; // knots
+    protected int present = 0; // Bitmask of which of the numeric fields above (and in subclasses) are known
+    protected long metaDataTime = System.currentTimeMillis(); // UTC millis since epoch. Set to current time on track creation.
     protected boolean fixed = false;
     protected boolean createdByConfig = false;
+    private transient TrackTable trackTable; // The track table this track is in, if any
+    private transient long gridCell = NO_GRID_CELL; // Spatial index cell, managed by the track table
+    private transient long scheduledMaintenanceTime = NOT_SCHEDULED; // Expiry queue bucket, managed by the track table
+    private transient volatile long changeSequence = 0; // Track table sequence number of the last change to this track
+    private transient volatile int pendingChanges = 0; // ChangeGroup bits changed since the last track event was published
+    private transient volatile TrackState state; // Latest published snapshot of this track
+    private transient double rangeFromBaseStation; // metres, cached by the track table when a position is accepted
+    private transient double bearingFromBaseStation; // degrees, cached alongside the range
+    private transient int rangeBaseStationVersion = 0; // Track table base station version the cached values are for
+    private transient volatile Trail trail; // Simplified trail for the "first" API call, cached until the history changes
+    private transient volatile JSONFragment firstCallJSON; // Entry for the "first" API call, cached until the track changes
+    private transient volatile JSONFragment updateCallJSON; // Entry for the "update" API call, cached until the track changes
+    private transient String serializedID; // ID read using Java serialization, which can't be set on the final field, see readResolve()
+    private transient PositionHistory serializedPositionHistory; // Position history read alongside it
 
     public Track(String id) {
         this.id = id;
@@ -43,7 +124,10 @@ public abstract class Track implements Serializable {
     }
 
     public void setCallsign(String callsign) {
-        this.callsign = callsign;
+        if (!Objects.equals(this.callsign, callsign)) {
+            this.callsign = callsign;
+            markChanged();
+        }
     }
 
     public TrackType getTrackType() {
@@ -51,7 +135,15 @@ public abstract class Track implements Serializable {
     }
 
     public void setTrackType(TrackType trackType) {
-        this.trackType = trackType;
+        TrackType oldType = this.trackType;
+        if (oldType != trackType) {
+            this.trackType = trackType;
+            positionHistory.setPolicy(PositionHistoryPolicy.forType(trackType));
+            markChanged();
+            if (trackTable != null) {
+                trackTable.onTrackTypeChanged(this, oldType, trackType);
+            }
+        }
     }
 
     public String getSymbolCode() {
@@ -59,7 +151,10 @@ public abstract class Track implements Serializable {
     }
 
     public void setSymbolCode(String symbolCode) {
-        this.symbolCode = symbolCode;
+        if (!Objects.equals(this.symbolCode, symbolCode)) {
+            this.symbolCode = symbolCode;
+            markChanged();
+        }
     }
 
     /**
@@ -87,7 +182,7 @@ public abstract class Track implements Serializable {
     public TimestampedPosition getDRPosition() {
         if (!positionHistory.isEmpty()) {
             TimestampedPosition p = positionHistory.getLatest();
-            if (course != null && speed != null) {
+            if (has(HAS_COURSE) && has(HAS_SPEED)) {
                 return deadReckonFrom(p, course, speed);
             } else {
                 return p;
@@ -131,55 +226,130 @@ public abstract class Track implements Serializable {
      * Get the altitude in feet. May be null if altitude is unknown.
      */
     public Double getAltitude() {
-        return altitude;
+        return has(HAS_ALTITUDE) ? altitude : null;
     }
 
+    public void setAltitude(double altitude) {
+        if (!has(HAS_ALTITUDE) || Double.compare(this.altitude, altitude) != 0) {
+            this.altitude = altitude;
+            present |= HAS_ALTITUDE;
+            markChanged(ChangeGroup.KINEMATICS);
+        }
+    }
+
+    /**
+     * Set the altitude, or clear it if null.
+     */
     public void setAltitude(Double altitude) {
-        this.altitude = altitude;
+        if (altitude != null) {
+            setAltitude(altitude.doubleValue());
+        } else {
+            clear(HAS_ALTITUDE, ChangeGroup.KINEMATICS);
+        }
     }
 
     /**
      * Get the rate of change of altitude in feet per minute. May be null if rate is unknown.
      */
     public Double getVerticalRate() {
-        return verticalRate;
+        return has(HAS_VERTICAL_RATE) ? verticalRate : null;
+    }
+
+    public void setVerticalRate(double verticalRate) {
+        if (!has(HAS_VERTICAL_RATE) || Double.compare(this.verticalRate, verticalRate) != 0) {
+            this.verticalRate = verticalRate;
+            present |= HAS_VERTICAL_RATE;
+            markChanged(ChangeGroup.KINEMATICS);
+        }
     }
 
+    /**
+     * Set the vertical rate, or clear it if null.
+     */
     public void setVerticalRate(Double verticalRate) {
-        this.verticalRate = verticalRate;
+        if (verticalRate != null) {
+            setVerticalRate(verticalRate.doubleValue());
+        } else {
+            clear(HAS_VERTICAL_RATE, ChangeGroup.KINEMATICS);
+        }
     }
 
     /**
      * Get the course in degrees. May be null if speed is unknown.
      */
     public Double getCourse() {
-        return course;
+        return has(HAS_COURSE) ? course : null;
     }
 
+    public void setCourse(double course) {
+        if (!has(HAS_COURSE) || Double.compare(this.course, course) != 0) {
+            this.course = course;
+            present |= HAS_COURSE;
+            markChanged(ChangeGroup.KINEMATICS);
+        }
+    }
+
+    /**
+     * Set the course, or clear it if null.
+     */
     public void setCourse(Double course) {
-        this.course = course;
+        if (course != null) {
+            setCourse(course.doubleValue());
+        } else {
+            clear(HAS_COURSE, ChangeGroup.KINEMATICS);
+        }
     }
 
     /**
      * Get the heading in degrees. May be null if speed is unknown.
      */
     public Double getHeading() {
-        return heading;
+        return has(HAS_HEADING) ? heading : null;
+    }
+
+    public void setHeading(double heading) {
+        if (!has(HAS_HEADING) || Double.compare(this.heading, heading) != 0) {
+            this.heading = heading;
+            present |= HAS_HEADING;
+            markChanged(ChangeGroup.KINEMATICS);
+        }
     }
 
+    /**
+     * Set the heading, or clear it if null.
+     */
     public void setHeading(Double heading) {
-        this.heading = heading;
+        if (heading != null) {
+            setHeading(heading.doubleValue());
+        } else {
+            clear(HAS_HEADING, ChangeGroup.KINEMATICS);
+        }
     }
 
     /**
      * Get the speed in knots. May be null if speed is unknown.
      */
     public Double getSpeed() {
-        return speed;
+        return has(HAS_SPEED) ? speed : null;
+    }
+
+    public void setSpeed(double speed) {
+        if (!has(HAS_SPEED) || Double.compare(this.speed, speed) != 0) {
+            this.speed = speed;
+            present |= HAS_SPEED;
+            markChanged(ChangeGroup.KINEMATICS);
+        }
     }
 
+    /**
+     * Set the speed, or clear it if null.
+     */
     public void setSpeed(Double speed) {
-        this.speed = speed;
+        if (speed != null) {
+            setSpeed(speed.doubleValue());
+        } else {
+            clear(HAS_SPEED, ChangeGroup.KINEMATICS);
+        }
     }
 
     public PositionHistory getPositionHistory() {
@@ -206,9 +376,20 @@ public abstract class Track implements Serializable {
      * @param time      Timestamp of position report, UTC UNIX millis
      */
     public void addPosition(double latitude, double longitude, long time) {
-        if (APP.getTrackTable().isReasonablePosition(latitude, longitude, trackType)) {
+        TrackTable tt = (trackTable != null) ? trackTable : APP.getTrackTable();
+        double range = tt.getRangeIfReasonable(latitude, longitude, trackType);
+        if (range != TrackTable.UNREASONABLE) {
             positionHistory.add(new TimestampedPosition(latitude, longitude, time));
+            tt.cacheRangeAndBearing(this, latitude, longitude, range);
+            if (fixed) {
+                // Fixed tracks only ever need their latest position
+                positionHistory.keepOnlyLatest();
+            }
+            markChanged(ChangeGroup.POSITION);
             updateMetadataTime(time);
+            if (trackTable != null) {
+                trackTable.onPositionAdded(this);
+            }
         } else if (trackType != null) {
             LOGGER.warn("Position {},{} is unreasonable for track {} and has been rejected.", latitude, longitude, getDisplayName());
         } else {
@@ -229,21 +410,27 @@ public abstract class Track implements Serializable {
     }
 
     public void updateMetadataTime() {
-        metaDataTime = System.currentTimeMillis();
+        updateMetadataTime(System.currentTimeMillis());
     }
 
     public void updateMetadataTime(long newTime) {
-        metaDataTime = newTime;
+        if (metaDataTime != newTime) {
+            metaDataTime = newTime;
+            markChanged(ChangeGroup.UPDATE_TIME);
+        }
+        if (trackTable != null) {
+            trackTable.onMetadataUpdated(this);
+        }
     }
 
-    public Long getMetaDataTime() {
+    public long getMetaDataTime() {
         return metaDataTime;
     }
 
     /**
      * Gets the age, in milliseconds, of the last metadata update for this track.
      */
-    public Long getMetaDataAge() {
+    public long getMetaDataAge() {
         return System.currentTimeMillis() - metaDataTime;
     }
 
@@ -251,14 +438,18 @@ public abstract class Track implements Serializable {
      * Gets the age, in milliseconds, of the last position *or* metadata update for
      * this track.
      */
-    public Long getTimeSinceLastUpdate() {
-        if (getMetaDataAge() != null && getPositionAge() != null) {
-            return Math.min(getMetaDataAge(), getPositionAge());
-        } else if (getMetaDataAge() != null) {
-            return getMetaDataAge();
-        } else {
-            return getPositionAge();
-        }
+    public long getTimeSinceLastUpdate() {
+        Long positionAge = getPositionAge();
+        return (positionAge != null) ? Math.min(getMetaDataAge(), positionAge) : getMetaDataAge();
+    }
+
+    /**
+     * Gets the time, in UTC millis since epoch, of the last position *or* metadata
+     * update for this track.
+     */
+    public long getLastUpdateTime() {
+        TimestampedPosition p = positionHistory.getLatest();
+        return (p != null) ? Math.max(metaDataTime, p.time()) : metaDataTime;
     }
 
     /**
@@ -273,7 +464,10 @@ public abstract class Track implements Serializable {
     }
 
     public void setFixed(boolean fixed) {
-        this.fixed = fixed;
+        if (this.fixed != fixed) {
+            this.fixed = fixed;
+            markChanged();
+        }
     }
 
     /**
@@ -286,21 +480,221 @@ public abstract class Track implements Serializable {
     }
 
     public void setCreatedByConfig(boolean createdByConfig) {
-        this.createdByConfig = createdByConfig;
+        if (this.createdByConfig != createdByConfig) {
+            this.createdByConfig = createdByConfig;
+            markChanged();
+        }
         if (createdByConfig) {
-            this.fixed = true;
+            setFixed(true);
         }
     }
 
     /**
      * Return true if this track is old and should be dropped from the track table.
-     * By default, this is true if the track is not "fixed", and has no data newer
+     */
+    public boolean shouldDrop() {
+        return shouldDrop(System.currentTimeMillis());
+    }
+
+    /**
+     * Return true if this track is old and should be dropped from the track table
+     * at the given time.
+     */
+    public boolean shouldDrop(long now) {
+        return now > getDropTime();
+    }
+
+    /**
+     * Get the time, in UTC millis since epoch, after which this track should be
+     * dropped from the track table, based on its current state. Long.MAX_VALUE means
+     * it should never be dropped.
+     * By default, a track is dropped if it is not "fixed", and has no data newer
      * than the amount of position history it's configured to store. However
      * subclasses can override this, e.g. to provide different logic for planes at
      * altitude compared to on the ground.
      */
-    public boolean shouldDrop() {
-        return !isFixed() && getPositionHistory().isEmpty() && getMetaDataAge() > getPositionHistory().getHistoryLength();
+    public long getDropTime() {
+        if (!isFixed() && getPositionHistory().isEmpty()) {
+            return saturatedAdd(metaDataTime, getPositionHistory().getHistoryLength());
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Get the time, in UTC millis since epoch, at which the track table next needs
+     * to do maintenance on this track, i.e. cull its old position history or drop
+     * it entirely.
+     */
+    public long getNextMaintenanceTime() {
+        long next = getDropTime();
+        if (!fixed) {
+            next = Math.min(next, positionHistory.getNextCullTime());
+        }
+        return next;
+    }
+
+    /**
+     * Perform periodic maintenance on the track. For non-fixed tracks, delete
+     * position data older than the threshold, handing it to the track table to
+     * archive. For fixed tracks, just leave the single most recent position
+     * (regardless of age) since it won't have moved anyway.
+     */
+    public void performMaintenance(long now) {
+        int oldSize = positionHistory.size();
+        if (!fixed) {
+            List<TimestampedPosition> culled = positionHistory.cull(now);
+            TrackTable tt = trackTable;
+            if (tt != null && !culled.isEmpty()) {
+                tt.archive(this, culled);
+            }
+        } else {
+            positionHistory.keepOnlyLatest();
+        }
+        if (positionHistory.size() != oldSize) {
+            markChanged(ChangeGroup.POSITION);
+        }
+    }
+
+    /**
+     * Get the time, in UTC millis since epoch, of the track table's expiry queue
+     * bucket that this track is in, or NOT_SCHEDULED if it is not in the queue.
+     */
+    public long getScheduledMaintenanceTime() {
+        return scheduledMaintenanceTime;
+    }
+
+    /**
+     * Set the time of the track table's expiry queue bucket that this track is in.
+     * Only to be called by the expiry queue.
+     */
+    public void setScheduledMaintenanceTime(long scheduledMaintenanceTime) {
+        this.scheduledMaintenanceTime = scheduledMaintenanceTime;
+    }
+
+    /**
+     * Get the cached range from the base station in metres. Only valid if
+     * getRangeBaseStationVersion() matches the track table's current base station
+     * version. Use TrackTable.getDistanceFromBaseStation() rather than calling this.
+     */
+    public double getRangeFromBaseStation() {
+        return rangeFromBaseStation;
+    }
+
+    /**
+     * Get the cached bearing from the base station in degrees. Only valid if
+     * getRangeBaseStationVersion() matches the track table's current base station
+     * version. Use TrackTable.getBearingFromBaseStation() rather than calling this.
+     */
+    public double getBearingFromBaseStation() {
+        return bearingFromBaseStation;
+    }
+
+    /**
+     * Get the track table base station version that the cached range and bearing
+     * were calculated for, or zero if they have never been calculated.
+     */
+    public int getRangeBaseStationVersion() {
+        return rangeBaseStationVersion;
+    }
+
+    /**
+     * Set the cached range and bearing from the base station. Only to be called by
+     * the track table.
+     */
+    public void setRangeAndBearing(double range, double bearing, int baseStationVersion) {
+        this.rangeFromBaseStation = range;
+        this.bearingFromBaseStation = bearing;
+        this.rangeBaseStationVersion = baseStationVersion;
+    }
+
+    /**
+     * Get the track table sequence number of the last change to this track. This
+     * can be compared against the track table's current sequence number to tell
+     * whether the track has changed since it was last looked at. Zero if the track
+     * has never been in a track table.
+     */
+    public long getChangeSequence() {
+        return changeSequence;
+    }
+
+    /**
+     * Check whether the numeric field(s) with the given "present" bit(s) are known.
+     */
+    protected boolean has(int bits) {
+        return (present & bits) == bits;
+    }
+
+    /**
+     * Get the value of a numeric field, or NaN if it is unknown.
+     */
+    private double valueOrNaN(int bit, double value) {
+        return has(bit) ? value : Double.NaN;
+    }
+
+    /**
+     * Mark the numeric field with the given "present" bit as unknown, recording a
+     * change if it was known before.
+     */
+    protected void clear(int bit, ChangeGroup group) {
+        if ((present & bit) != 0) {
+            present &= ~bit;
+            markChanged(group);
+        }
+    }
+
+    /**
+     * Record that this track's metadata has changed. See markChanged(ChangeGroup).
+     */
+    public void markChanged() {
+        markChanged(ChangeGroup.METADATA);
+    }
+
+    /**
+     * Record that this track has changed, by taking the next sequence number from
+     * the track table it belongs to, and queueing an event for any listeners.
+     * Setters call this themselves whenever they change a value, so it only needs
+     * calling directly when track data has been changed some other way. Does
+     * nothing if the track is not in a track table.
+     *
+     * @param group The group of fields that has changed
+     */
+    public void markChanged(ChangeGroup group) {
+        TrackTable tt = trackTable;
+        if (tt != null) {
+            long seq = tt.nextSequence();
+            // Never go backwards if another thread has marked a later change meanwhile
+            long current;
+            while ((current = changeSequence) < seq && !CHANGE_SEQUENCE.compareAndSet(this, current, seq)) {
+                Thread.onSpinWait();
+            }
+
+            if (tt.hasSubscribers()) {
+                int old;
+                do {
+                    old = pendingChanges;
+                } while ((old & group.bit()) == 0 && !PENDING_CHANGES.compareAndSet(this, old, old | group.bit()));
+                // Only the first change since the last event needs to queue a new one
+                if (old == 0) {
+                    tt.onTrackChanged(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get and clear the set of ChangeGroup bits for changes made since this was
+     * last called. Called by the track table when publishing an event for this track.
+     */
+    public int takePendingChanges() {
+        return PENDING_CHANGES.getAndSet(this, 0);
+    }
+
+    /**
+     * Add two times, clamping the result at Long.MAX_VALUE rather than overflowing.
+     */
+    protected static long saturatedAdd(long a, long b) {
+        long r = a + b;
+        return (((a ^ r) & (b ^ r)) < 0) ? Long.MAX_VALUE : r;
     }
 
     /**
@@ -331,6 +725,37 @@ public abstract class Track implements Serializable {
         }
     }
 
+    /**
+     * Get the track table this track belongs to, or null if it has not been added to one.
+     */
+    public TrackTable getTrackTable() {
+        return trackTable;
+    }
+
+    /**
+     * Set the track table this track belongs to. Called by the track table itself
+     * when the track is added or removed, so it can be notified of changes.
+     */
+    public void setTrackTable(TrackTable trackTable) {
+        this.trackTable = trackTable;
+    }
+
+    /**
+     * Get the cell of the track table's spatial index that this track is currently
+     * in, or NO_GRID_CELL if it is not indexed.
+     */
+    public long getGridCell() {
+        return gridCell;
+    }
+
+    /**
+     * Set the cell of the track table's spatial index that this track is currently
+     * in. Only to be called by the spatial index.
+     */
+    public void setGridCell(long gridCell) {
+        this.gridCell = gridCell;
+    }
+
     /**
      * Method called on the track when it is loaded from the track data store,
      * i.e. the software has been restarted and this track added back into the
@@ -343,6 +768,147 @@ public abstract class Track implements Serializable {
     public void performPostLoadTasks() {
     }
 
+    /**
+     * Write this track's data to a track data store record. Subclasses with their
+     * own data should override this, call the superclass method, and then write
+     * their own fields. The caller holds the track's lock.
+     */
+    public void writeFields(TrackRecordWriter w) {
+        w.writeString(FIELD_CALLSIGN, callsign);
+        w.writeEnum(FIELD_TRACK_TYPE, trackType);
+        w.writeString(FIELD_SYMBOL_CODE, symbolCode);
+        w.writePositions(FIELD_POSITION_HISTORY, positionHistory);
+        w.writeDouble(FIELD_ALTITUDE, getAltitude());
+        w.writeDouble(FIELD_VERTICAL_RATE, getVerticalRate());
+        w.writeDouble(FIELD_COURSE, getCourse());
+        w.writeDouble(FIELD_HEADING, getHeading());
+        w.writeDouble(FIELD_SPEED, getSpeed());
+        w.writeLong(FIELD_METADATA_TIME, metaDataTime);
+        w.writeBoolean(FIELD_FIXED, fixed);
+        w.writeBoolean(FIELD_CREATED_BY_CONFIG, createdByConfig);
+    }
+
+    /**
+     * Read this track's data from a track data store record, into a track that has
+     * just been constructed and is not yet in a track table. Fields missing from the
+     * record (e.g. because it was saved by an older version) are left as they were
+     * constructed. Subclasses with their own data should override this, call the
+     * superclass method, and then read their own fields.
+     */
+    public void readFields(TrackRecord r) {
+        if (r.has(FIELD_CALLSIGN)) {
+            callsign = r.getString(FIELD_CALLSIGN);
+        }
+        trackType = r.getEnum(FIELD_TRACK_TYPE, TrackType.class, trackType);
+        positionHistory.setPolicy(PositionHistoryPolicy.forType(trackType));
+        if (r.has(FIELD_SYMBOL_CODE)) {
+            symbolCode = r.getString(FIELD_SYMBOL_CODE);
+        }
+        List<TimestampedPosition> positions = r.getPositions(FIELD_POSITION_HISTORY);
+        if (positions != null) {
+            positionHistory.clear();
+            positionHistory.addAll(positions);
+        }
+        if (r.has(FIELD_ALTITUDE)) {
+            setAltitude(r.getDouble(FIELD_ALTITUDE));
+        }
+        if (r.has(FIELD_VERTICAL_RATE)) {
+            setVerticalRate(r.getDouble(FIELD_VERTICAL_RATE));
+        }
+        if (r.has(FIELD_COURSE)) {
+            setCourse(r.getDouble(FIELD_COURSE));
+        }
+        if (r.has(FIELD_HEADING)) {
+            setHeading(r.getDouble(FIELD_HEADING));
+        }
+        if (r.has(FIELD_SPEED)) {
+            setSpeed(r.getDouble(FIELD_SPEED));
+        }
+        Long time = r.getLong(FIELD_METADATA_TIME);
+        if (time != null) {
+            metaDataTime = time;
+        }
+        fixed = r.getBoolean(FIELD_FIXED, fixed);
+        createdByConfig = r.getBoolean(FIELD_CREATED_BY_CONFIG, createdByConfig);
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField f = out.putFields();
+        f.put("id", id);
+        f.put("callsign", callsign);
+        f.put("trackType", trackType);
+        f.put("symbolCode", symbolCode);
+        f.put("positionHistory", positionHistory);
+        f.put("altitude", getAltitude());
+        f.put("verticalRate", getVerticalRate());
+        f.put("course", getCourse());
+        f.put("heading", getHeading());
+        f.put("speed", getSpeed());
+        f.put("metaDataTime", (Long) metaDataTime);
+        f.put("fixed", fixed);
+        f.put("createdByConfig", createdByConfig);
+        out.writeFields();
+    }
+
+    /**
+     * Read a track saved using Java serialization. The final fields can't be set
+     * here, so the ID and position history are kept aside until readResolve()
+     * replaces this track with a properly constructed one.
+     */
+    @Serial
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField f = in.readFields();
+        serializedID = (String) f.get("id", null);
+        serializedPositionHistory = (PositionHistory) f.get("positionHistory", null);
+        callsign = (String) f.get("callsign", null);
+        trackType = (TrackType) f.get("trackType", null);
+        symbolCode = (String) f.get("symbolCode", null);
+        altitude = readSerializedDouble(f, "altitude", HAS_ALTITUDE);
+        verticalRate = readSerializedDouble(f, "verticalRate", HAS_VERTICAL_RATE);
+        course = readSerializedDouble(f, "course", HAS_COURSE);
+        heading = readSerializedDouble(f, "heading", HAS_HEADING);
+        speed = readSerializedDouble(f, "speed", HAS_SPEED);
+        Long time = (Long) f.get("metaDataTime", null);
+        metaDataTime = (time != null) ? time : System.currentTimeMillis();
+        fixed = f.get("fixed", false);
+        createdByConfig = f.get("createdByConfig", false);
+    }
+
+    /**
+     * Get the value of a numeric field saved using Java serialization, where it is
+     * null if unknown, and set its "present" bit if it is known. For subclasses to
+     * use when reading their own fields.
+     *
+     * @return The value, or zero if unknown.
+     */
+    protected double readSerializedDouble(ObjectInputStream.GetField f, String name, int bit) throws IOException, ClassNotFoundException {
+        Double value = (Double) f.get(name, null);
+        if (value == null) {
+            return 0;
+        }
+        present |= bit;
+        return value;
+    }
+
+    /**
+     * Replace a track read using Java serialization with a newly constructed copy, so
+     * that its final and transient fields are initialised just as they are for a
+     * track loaded from the track data store. Tracks of a kind that the track data
+     * store doesn't hold, i.e. those created by config, are left as read.
+     */
+    @Serial
+    protected Object readResolve() {
+        Track t = TrackDataStore.copyOf(this, serializedID);
+        if (t == null) {
+            return this;
+        }
+        if (serializedPositionHistory != null) {
+            t.positionHistory.addAll(serializedPositionHistory);
+        }
+        return t;
+    }
+
     /**
      * Get the type description for display.
      */
@@ -358,6 +924,40 @@ public abstract class Track implements Serializable {
      */
     public abstract String getDisplayInfo2();
 
+    /**
+     * Get the latest published snapshot of this track's data. This is lock-free,
+     * and the snapshot is immutable, so it is safe to read while the track is being
+     * updated by other threads.
+     */
+    public TrackState getState() {
+        TrackState s = state;
+        return (s != null) ? s : publishState();
+    }
+
+    /**
+     * Take a snapshot of this track's data and publish it for readers, if anything
+     * has changed since the last one. The track table calls this at the end of each
+     * update. Synchronized on the track, like updates, so that the snapshot is
+     * consistent.
+     */
+    public synchronized TrackState publishState() {
+        TrackState s = state;
+        long seq = changeSequence;
+        if (s != null && seq != 0 && s.sequence() == seq) {
+            return s;
+        }
+        TrackTable tt = trackTable;
+        Double range = (tt != null) ? tt.getDistanceFromBaseStation(this) : null;
+        Double bearing = (tt != null) ? tt.getBearingFromBaseStation(this) : null;
+        s = new TrackState(id, trackType, symbolCode, callsign, getDisplayName(), getTypeDescription(),
+                getDisplayInfo1(), getDisplayInfo2(), fixed, createdByConfig, getPosition(), range, bearing,
+                valueOrNaN(HAS_ALTITUDE, altitude), valueOrNaN(HAS_VERTICAL_RATE, verticalRate),
+                valueOrNaN(HAS_COURSE, course), valueOrNaN(HAS_HEADING, heading), valueOrNaN(HAS_SPEED, speed),
+                metaDataTime, seq);
+        state = s;
+        return s;
+    }
+
     /**
      * Get a map of data for this track that will be provided to the client,
      * including all metadata, the current position, and the position history, used
@@ -368,60 +968,102 @@ public abstract class Track implements Serializable {
      * be omitted to save bandwidth.
      */
     public Map<String, Object> getFirstCallData() {
-        Map<String, Object> map = getAllCallData();
+        TrackState s = getState();
+        Map<String, Object> map = s.getCallData();
 
-        if (!fixed) {
-            List<Map<String, Object>> posHistory = new ArrayList<>();
-            for (TimestampedPosition p : positionHistory) {
-                Map<String, Object> m = new HashMap<>();
-                m.put("lat", p.latitude());
-                m.put("lon", p.longitude());
-                posHistory.add(m);
-            }
-            map.put("poshistory", posHistory);
+        if (!s.fixed()) {
+            map.put("poshistory", getSimplifiedTrail().points());
         }
         return map;
     }
 
+    /**
+     * Get this track's entry in the "first" API call as UTF-8 encoded JSON, i.e. its
+     * quoted ID, a colon, and the data from getFirstCallData() as an object. This is
+     * cached, and only rebuilt when the track's state or trail has changed, so the
+     * web server can put a response together from the entries of every track
+     * without re-encoding the ones that haven't changed.
+     */
+    public byte[] getFirstCallJSON() {
+        TrackState s = getState();
+        Trail t = s.fixed() ? null : getSimplifiedTrail();
+        JSONFragment f = firstCallJSON;
+        if (f == null || f.state() != s || f.trail() != t) {
+            Map<String, Object> map = s.getCallData();
+            if (t != null) {
+                map.put("poshistory", t.points());
+            }
+            f = new JSONFragment(s, t, encode(map));
+            firstCallJSON = f;
+        }
+        return f.json();
+    }
+
+    /**
+     * Get this track's entry in the "update" API call as UTF-8 encoded JSON. This is
+     * cached in the same way as getFirstCallJSON().
+     */
+    public byte[] getUpdateCallJSON() {
+        TrackState s = getState();
+        JSONFragment f = updateCallJSON;
+        if (f == null || f.state() != s) {
+            f = new JSONFragment(s, null, encode(s.getCallData()));
+            updateCallJSON = f;
+        }
+        return f.json();
+    }
+
+    private byte[] encode(Map<String, Object> map) {
+        return (JSONObject.quote(id) + ":" + new JSONObject(map)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the track's position history, simplified according to the configured
+     * tolerance for its type, laid out for the "first" API call. This is cached,
+     * and only rebuilt when positions have been added to or culled from the history.
+     */
+    private Trail getSimplifiedTrail() {
+        List<TimestampedPosition> history = positionHistory.snapshot();
+        int size = history.size();
+        long oldestTime = (size > 0) ? history.get(0).time() : 0;
+        long latestTime = (size > 0) ? history.get(size - 1).time() : 0;
+        Trail t = trail;
+        if (t != null && t.size() == size && t.oldestTime() == oldestTime && t.latestTime() == latestTime) {
+            return t;
+        }
+
+        List<Map<String, Object>> points = new ArrayList<>();
+        for (TimestampedPosition p : TrailSimplifier.simplify(history, TrailSimplifier.getTolerance(trackType))) {
+            Map<String, Object> m = new HashMap<>();
+            m.put("lat", p.latitude());
+            m.put("lon", p.longitude());
+            points.add(m);
+        }
+        t = new Trail(size, oldestTime, latestTime, Collections.unmodifiableList(points));
+        trail = t;
+        return t;
+    }
+
+    /**
+     * A simplified trail, along with enough about the position history it was made
+     * from to tell whether the history has changed since.
+     */
+    private record Trail(int size, long oldestTime, long latestTime, List<Map<String, Object>> points) {
+    }
+
+    /**
+     * An encoded API call entry, along with the state (and trail, if any) it was
+     * encoded from.
+     */
+    private record JSONFragment(TrackState state, Trail trail, byte[] json) {
+    }
+
     /**
      * Get a map of data for this track that will be provided to the client,
      * including all metadata and the current position, used for the "update" API
      * call.
      */
     public Map<String, Object> getUpdateCallData() {
-        return getAllCallData();
-    }
-
-    /**
-     * Get a map of metadata for this track that will be provided to the client in
-     * all API calls. This should be enough to generate all the information the
-     * client needs, and shouldn't need overriding in subclasses.
-     */
-    private Map<String, Object> getAllCallData() {
-        Map<String, Object> map = new LinkedHashMap<>();
-        map.put("id", getID());
-        map.put("name", getDisplayName().toUpperCase());
-        map.put("tracktype", getTrackType().toString());
-        map.put("symbolcode", getSymbolCode());
-        map.put("fixed", isFixed());
-        map.put("createdByConfig", isCreatedByConfig());
-
-        TimestampedPosition p = getPosition();
-        if (p != null) {
-            map.put("lat", p.latitude());
-            map.put("lon", p.longitude());
-            map.put("postime", p.time());
-        }
-
-        map.put("course", (getCourse() != null) ? Math.round(getCourse()) : null);
-        map.put("heading", (getHeading() != null) ? Math.round(getHeading()) : null);
-        map.put("speed", (getSpeed() != null) ? Math.round(getSpeed()) : null);
-        map.put("altitude", (getAltitude() != null) ? Math.round(getAltitude()) : null);
-        map.put("altrate", (getVerticalRate() != null) ? Math.round(getVerticalRate()) : null);
-        map.put("typeDesc", getTypeDescription().toUpperCase());
-        map.put("info1", getDisplayInfo1().toUpperCase());
-        map.put("info2", getDisplayInfo2().toUpperCase());
-        map.put("datatime", getMetaDataTime());
-        return map;
+        return getState().getCallData();
     }
 }
@@ -0,0 +1,87 @@
+package com.ianrenton.planesailing.data;
+
+import com.ianrenton.planesailing.app.TrackTable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of a track's data at one point in time. A new one is
+ * published by the track at the end of each update, so readers such as the web
+ * server can get a consistent view of the track (e.g. a position and altitude from
+ * the same update) without locking, even while receivers are updating it.
+ * <p>
+ * Position history is not included, as copying it on every update would be too
+ * expensive. Readers that need it can iterate the track's PositionHistory, which
+ * gives its own consistent snapshot.
+ *
+ * @param id              Track ID
+ * @param trackType       Type of track
+ * @param symbolCode      MIL-STD2525C symbol code
+ * @param callsign        Callsign, may be null
+ * @param displayName     Name for display
+ * @param typeDescription Type description for display
+ * @param displayInfo1    First line of extra information for display
+ * @param displayInfo2    Second line of extra information for display
+ * @param fixed           Whether the track is known to be immobile
+ * @param createdByConfig Whether the track was created by config
+ * @param position        Latest position, may be null
+ * @param range           Range from the base station in metres, may be null
+ * @param bearing         Bearing from the base station in degrees, may be null
+ * @param altitude        Altitude in feet, NaN if unknown
+ * @param verticalRate    Vertical rate in feet per minute, NaN if unknown
+ * @param course          Course in degrees, NaN if unknown
+ * @param heading         Heading in degrees, NaN if unknown
+ * @param speed           Speed in knots, NaN if unknown
+ * @param metaDataTime    Time of the last metadata update, UTC millis since epoch
+ * @param sequence        Track table sequence number of the change this snapshot reflects
+ */
+public record TrackState(String id, TrackType trackType, String symbolCode, String callsign, String displayName,
+                         String typeDescription, String displayInfo1, String displayInfo2, boolean fixed,
+                         boolean createdByConfig, TimestampedPosition position, Double range, Double bearing,
+                         double altitude, double verticalRate, double course, double heading, double speed,
+                         long metaDataTime, long sequence) {
+
+    /**
+     * Get a map of data for this track that will be provided to the client in all
+     * API calls. This should be enough to generate all the information the client
+     * needs.
+     */
+    public Map<String, Object> getCallData() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("id", id);
+        map.put("name", displayName.toUpperCase());
+        map.put("tracktype", trackType.toString());
+        map.put("symbolcode", symbolCode);
+        map.put("fixed", fixed);
+        map.put("createdByConfig", createdByConfig);
+
+        if (position != null) {
+            map.put("lat", position.latitude());
+            map.put("lon", position.longitude());
+            map.put("postime", position.time());
+        }
+
+        // Range is provided in nautical miles to match the rest of the UI
+        map.put("range", (range != null) ? Math.round(range * TrackTable.METRES_TO_NMI * 10.0) / 10.0 : null);
+        map.put("bearing", (bearing != null) ? Math.round(bearing) : null);
+
+        map.put("course", roundOrNull(course));
+        map.put("heading", roundOrNull(heading));
+        map.put("speed", roundOrNull(speed));
+        map.put("altitude", roundOrNull(altitude));
+        map.put("altrate", roundOrNull(verticalRate));
+        map.put("typeDesc", typeDescription.toUpperCase());
+        map.put("info1", displayInfo1.toUpperCase());
+        map.put("info2", displayInfo2.toUpperCase());
+        map.put("datatime", metaDataTime);
+        return map;
+    }
+
+    /**
+     * Round a value for the client, or give null if it is unknown.
+     */
+    private static Long roundOrNull(double value) {
+        return !Double.isNaN(value) ? Math.round(value) : null;
+    }
+}
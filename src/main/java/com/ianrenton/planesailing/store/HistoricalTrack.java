@@ -0,0 +1,128 @@
+package com.ianrenton.planesailing.store;
+
+import com.ianrenton.planesailing.data.TimestampedPosition;
+import com.ianrenton.planesailing.data.TrackState;
+import com.ianrenton.planesailing.data.TrackType;
+
+import java.util.*;
+
+/**
+ * A track as it was over some past time window, put together from the track
+ * archive and the live track table. Only the metadata needed to display the track
+ * is kept, along with its positions within the window.
+ */
+public class HistoricalTrack {
+
+    private final String id;
+    private TrackType trackType;
+    private String symbolCode = "";
+    private String displayName = "";
+    private String typeDescription = "";
+    private String displayInfo1 = "";
+    private String displayInfo2 = "";
+    private final List<TimestampedPosition> positions = new ArrayList<>();
+
+    public HistoricalTrack(String id) {
+        this.id = id;
+    }
+
+    public String getID() {
+        return id;
+    }
+
+    /**
+     * Set the track's metadata. Where a track appears in several places, the most
+     * recent metadata should be set last.
+     */
+    public void setInfo(TrackType trackType, String symbolCode, String displayName, String typeDescription,
+                        String displayInfo1, String displayInfo2) {
+        this.trackType = trackType;
+        this.symbolCode = symbolCode;
+        this.displayName = displayName;
+        this.typeDescription = typeDescription;
+        this.displayInfo1 = displayInfo1;
+        this.displayInfo2 = displayInfo2;
+    }
+
+    /**
+     * Set the track's metadata from a live track's state.
+     */
+    public void setInfo(TrackState s) {
+        setInfo(s.trackType(), s.symbolCode(), s.displayName(), s.typeDescription(), s.displayInfo1(), s.displayInfo2());
+    }
+
+    public TrackType getTrackType() {
+        return trackType;
+    }
+
+    public String getSymbolCode() {
+        return symbolCode;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public String getTypeDescription() {
+        return typeDescription;
+    }
+
+    public String getDisplayInfo1() {
+        return displayInfo1;
+    }
+
+    public String getDisplayInfo2() {
+        return displayInfo2;
+    }
+
+    public void addPosition(TimestampedPosition p) {
+        positions.add(p);
+    }
+
+    /**
+     * Get the track's positions within the window, oldest first.
+     */
+    public List<TimestampedPosition> getPositions() {
+        positions.sort(Comparator.naturalOrder());
+        return positions;
+    }
+
+    /**
+     * Get a map of data for this track that will be provided to the client for the
+     * "history" API call. This is laid out like the "first" API call, with the
+     * latest position in the window as the track's position, so that the client
+     * can show the picture as it was at the end of the window.
+     */
+    public Map<String, Object> getCallData() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("id", id);
+        map.put("name", displayName.toUpperCase());
+        map.put("tracktype", (trackType != null) ? trackType.toString() : null);
+        map.put("symbolcode", symbolCode);
+        map.put("fixed", false);
+        map.put("createdByConfig", false);
+
+        List<TimestampedPosition> sorted = getPositions();
+        if (!sorted.isEmpty()) {
+            TimestampedPosition latest = sorted.get(sorted.size() - 1);
+            map.put("lat", latest.latitude());
+            map.put("lon", latest.longitude());
+            map.put("postime", latest.time());
+        }
+
+        map.put("typeDesc", typeDescription.toUpperCase());
+        map.put("info1", displayInfo1.toUpperCase());
+        map.put("info2", displayInfo2.toUpperCase());
+
+        List<Map<String, Object>> posHistory = new ArrayList<>();
+        for (TimestampedPosition p : sorted) {
+            Map<String, Object> m = new HashMap<>();
+            m.put("lat", p.latitude());
+            m.put("lon", p.longitude());
+            m.put("time", p.time());
+            posHistory.add(m);
+        }
+        map.put("poshistory", posHistory);
+        return map;
+    }
+}
@@ -0,0 +1,536 @@
+package com.ianrenton.planesailing.store;
+
+import com.ianrenton.planesailing.app.BoundingBox;
+import com.ianrenton.planesailing.data.TimestampedPosition;
+import com.ianrenton.planesailing.data.TrackState;
+import com.ianrenton.planesailing.data.TrackType;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk archive of track history that has left the track table, i.e. positions
+ * culled from tracks' position histories and tracks that have been dropped, so that
+ * the picture can be looked at again later.
+ * <p>
+ * The archive is partitioned by hour, with one file per hour named after the UTC
+ * time it starts. History is handed to the archive as it leaves the track table,
+ * and written out once a minute as a block in the file for the hour each position
+ * falls in. Each block holds a list of tracks and their metadata, then the times,
+ * latitudes and longitudes of all their positions as separate columns of integers,
+ * which keeps it compact.
+ * <p>
+ * Each block starts with a small header giving the time range and area covered by
+ * its positions. Queries only look at the files for the hours they cover, and read
+ * these headers to skip over any block that can't contain anything of interest,
+ * so only the data that is actually wanted is ever read into memory.
+ * <p>
+ * Partitions older than the retention period are deleted.
+ */
+public class TrackArchive {
+    private static final Logger LOGGER = LogManager.getLogger(TrackArchive.class);
+
+    /**
+     * Magic number at the start of an archive partition file, "PSAR".
+     */
+    public static final int MAGIC = 0x50534152;
+    /**
+     * Current version of the archive format.
+     */
+    public static final short VERSION = 1;
+    /**
+     * Length of time covered by each partition.
+     */
+    public static final long PARTITION_MILLIS = 60 * 60 * 1000;
+    /**
+     * Maximum number of pieces of history waiting to be written before new ones are
+     * discarded.
+     */
+    public static final int MAX_PENDING_ENTRIES = 100000;
+
+    private static final long FLUSH_INTERVAL_MILLIS = 60 * 1000;
+    // Length of the magic number and version at the start of a partition file
+    private static final int FILE_HEADER_LENGTH = 6;
+    // Length of the header at the start of each block, see writeBlock()
+    private static final int BLOCK_HEADER_LENGTH = 44;
+    private static final String EXTENSION = ".psa";
+    private static final DateTimeFormatter PARTITION_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH")
+            .withZone(ZoneOffset.UTC);
+    // Positions are stored as integer multiples of this many degrees, about 1cm
+    private static final double COORDINATE_SCALE = 1e7;
+
+    private final File directory;
+    private final long retentionMillis;
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("Track Archive Thread").build());
+    @SuppressWarnings("rawtypes")
+    private ScheduledFuture flushTask;
+    private long lastRetentionCheck = 0;
+    // Partitions that have been checked for a partial block at the end since starting up
+    private final Set<File> checkedPartitions = new HashSet<>();
+
+    /**
+     * Create the archive.
+     *
+     * @param directory       Directory to store the partition files in
+     * @param retentionMillis How long to keep history for, in milliseconds
+     */
+    public TrackArchive(File directory, long retentionMillis) {
+        this.directory = directory.getAbsoluteFile();
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Start writing history to disk in the background.
+     */
+    public void start() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.error("Could not create track archive directory {}, check file permissions!", directory);
+        }
+        flushTask = executor.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (Throwable t) {
+                LOGGER.error("Caught exception writing the track archive, continuing...", t);
+            }
+        }, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hand some history to the archive. This only queues it, so it is safe to call
+     * while holding a track's lock.
+     *
+     * @param state     State of the track the positions belong to
+     * @param positions Positions to archive
+     */
+    public void archive(TrackState state, List<TimestampedPosition> positions) {
+        if (positions.isEmpty()) {
+            return;
+        }
+        if (pendingCount.incrementAndGet() > MAX_PENDING_ENTRIES) {
+            pendingCount.decrementAndGet();
+            LOGGER.warn("Track archive has fallen behind, discarding history for {}", state.id());
+            return;
+        }
+        pending.add(new Entry(state, positions));
+    }
+
+    /**
+     * Write everything that has been handed to the archive so far to disk, and
+     * delete any partitions that have passed the retention period.
+     */
+    public synchronized void flush() throws IOException {
+        // Group the pending history by partition and track
+        Map<Long, Map<String, Block>> partitions = new TreeMap<>();
+        Entry e;
+        while ((e = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            String id = e.state().id();
+            for (TimestampedPosition p : e.positions()) {
+                long partition = Math.floorDiv(p.time(), PARTITION_MILLIS) * PARTITION_MILLIS;
+                Block b = partitions.computeIfAbsent(partition, k -> new LinkedHashMap<>())
+                        .computeIfAbsent(id, k -> new Block());
+                b.state = e.state();
+                b.positions.add(p);
+            }
+        }
+
+        for (Map.Entry<Long, Map<String, Block>> partition : partitions.entrySet()) {
+            writeBlock(getPartitionFile(partition.getKey()), partition.getValue());
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastRetentionCheck > PARTITION_MILLIS) {
+            lastRetentionCheck = now;
+            deleteExpiredPartitions(now);
+        }
+    }
+
+    /**
+     * Find all the archived history within a time window, and optionally an area.
+     * Anything still waiting to be written is written first, so that it is included.
+     *
+     * @param from Start of the window, UTC millis since epoch, inclusive
+     * @param to   End of the window, UTC millis since epoch, inclusive
+     * @param area Area to find history in, or null for everywhere
+     * @return Map of track ID to the track's history, in the order the tracks were
+     * first found.
+     */
+    public synchronized Map<String, HistoricalTrack> query(long from, long to, BoundingBox area) throws IOException {
+        flush();
+        Map<String, HistoricalTrack> tracks = new LinkedHashMap<>();
+        for (File f : getPartitionFiles()) {
+            long start = partitionStartOf(f);
+            if (start <= to && start + PARTITION_MILLIS > from) {
+                queryPartition(f, from, to, area, tracks);
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * Write any remaining history to disk and stop the archive.
+     */
+    public void shutdown() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        executor.shutdown();
+        try {
+            flush();
+        } catch (IOException ex) {
+            LOGGER.error("Could not write the track archive on shutdown", ex);
+        }
+    }
+
+    /**
+     * Append a block of history to a partition file. The block is built in memory
+     * first, then written with a single call, so a crash can only ever leave a
+     * partial block at the end of the file. The first time each partition is
+     * appended to after starting up, any partial block is cut off, so that the
+     * blocks appended after it can still be found.
+     */
+    private void writeBlock(File file, Map<String, Block> tracks) throws IOException {
+        if (checkedPartitions.add(file)) {
+            truncatePartialBlock(file);
+        }
+
+        int count = 0;
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        int minLat = Integer.MAX_VALUE;
+        int maxLat = Integer.MIN_VALUE;
+        int minLon = Integer.MAX_VALUE;
+        int maxLon = Integer.MIN_VALUE;
+        for (Block b : tracks.values()) {
+            b.positions.sort(Comparator.naturalOrder());
+            for (TimestampedPosition p : b.positions) {
+                int lat = toFixed(p.latitude());
+                int lon = toFixed(p.longitude());
+                minTime = Math.min(minTime, p.time());
+                maxTime = Math.max(maxTime, p.time());
+                minLat = Math.min(minLat, lat);
+                maxLat = Math.max(maxLat, lat);
+                minLon = Math.min(minLon, lon);
+                maxLon = Math.max(maxLon, lon);
+                count++;
+            }
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64 + count * 12);
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeInt(tracks.size());
+        for (Map.Entry<String, Block> e : tracks.entrySet()) {
+            TrackState s = e.getValue().state;
+            out.writeUTF(e.getKey());
+            out.writeUTF((s.trackType() != null) ? s.trackType().name() : "");
+            out.writeUTF(Objects.toString(s.symbolCode(), ""));
+            out.writeUTF(Objects.toString(s.displayName(), ""));
+            out.writeUTF(Objects.toString(s.typeDescription(), ""));
+            out.writeUTF(Objects.toString(s.displayInfo1(), ""));
+            out.writeUTF(Objects.toString(s.displayInfo2(), ""));
+            out.writeInt(e.getValue().positions.size());
+        }
+        // Times are stored relative to the earliest in the block, which fits in an
+        // int as the block is all within one partition
+        for (Block b : tracks.values()) {
+            for (TimestampedPosition p : b.positions) {
+                out.writeInt((int) (p.time() - minTime));
+            }
+        }
+        for (Block b : tracks.values()) {
+            for (TimestampedPosition p : b.positions) {
+                out.writeInt(toFixed(p.latitude()));
+            }
+        }
+        for (Block b : tracks.values()) {
+            for (TimestampedPosition p : b.positions) {
+                out.writeInt(toFixed(p.longitude()));
+            }
+        }
+        out.flush();
+        byte[] contents = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream(contents.length + 64);
+        DataOutputStream blockOut = new DataOutputStream(block);
+        boolean newFile = !file.exists() || file.length() == 0;
+        if (newFile) {
+            blockOut.writeInt(MAGIC);
+            blockOut.writeShort(VERSION);
+        }
+        blockOut.writeInt(contents.length);
+        blockOut.writeLong(minTime);
+        blockOut.writeLong(maxTime);
+        blockOut.writeInt(minLat);
+        blockOut.writeInt(maxLat);
+        blockOut.writeInt(minLon);
+        blockOut.writeInt(maxLon);
+        blockOut.writeInt(count);
+        blockOut.writeInt((int) crc.getValue());
+        blockOut.write(contents);
+        blockOut.flush();
+
+        try (FileOutputStream fos = new FileOutputStream(file, true)) {
+            fos.write(block.toByteArray());
+        }
+    }
+
+    /**
+     * Cut a partition file back to the end of the last complete block whose
+     * checksum is correct, if anything follows it, e.g. because the software was
+     * stopped while a block was being written.
+     */
+    private static void truncatePartialBlock(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long size = raf.length();
+            long end = 0;
+            if (size >= FILE_HEADER_LENGTH && raf.readInt() == MAGIC) {
+                end = FILE_HEADER_LENGTH;
+                CRC32 check = new CRC32();
+                while (end + BLOCK_HEADER_LENGTH <= size) {
+                    raf.seek(end);
+                    int length = raf.readInt();
+                    if (length < 0 || end + BLOCK_HEADER_LENGTH + length > size) {
+                        break;
+                    }
+                    raf.seek(end + BLOCK_HEADER_LENGTH - 4);
+                    int crc = raf.readInt();
+                    byte[] contents = new byte[length];
+                    raf.readFully(contents);
+                    check.reset();
+                    check.update(contents);
+                    if ((int) check.getValue() != crc) {
+                        break;
+                    }
+                    end += BLOCK_HEADER_LENGTH + length;
+                }
+            } else if (size >= FILE_HEADER_LENGTH) {
+                // Not a partition this software wrote, so leave it alone
+                return;
+            }
+            if (end < size) {
+                LOGGER.warn("Track archive partition {} ends with {} bytes of incomplete or corrupt data, removing them",
+                        file.getName(), size - end);
+                raf.setLength(end);
+            }
+        }
+    }
+
+    /**
+     * Read the history within the window and area from one partition file into the
+     * map of tracks.
+     */
+    private void queryPartition(File file, long from, long to, BoundingBox area, Map<String, HistoricalTrack> tracks) {
+        long size = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if (in.readInt() != MAGIC) {
+                LOGGER.warn("{} is not a track archive partition, ignoring it", file.getName());
+                return;
+            }
+            short version = in.readShort();
+            if (version > VERSION) {
+                LOGGER.warn("Track archive partition {} is version {}, which this software does not understand", file.getName(), version);
+                return;
+            }
+
+            long position = FILE_HEADER_LENGTH;
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException ex) {
+                    return;
+                }
+                // Check the length against what is left of the file before using it, as
+                // a partial block may have left anything here
+                if (length < 0 || position + BLOCK_HEADER_LENGTH + length > size) {
+                    LOGGER.warn("Track archive partition {} has an incomplete block, ignoring the rest of it", file.getName());
+                    return;
+                }
+                position += BLOCK_HEADER_LENGTH + length;
+                long minTime = in.readLong();
+                long maxTime = in.readLong();
+                int minLat = in.readInt();
+                int maxLat = in.readInt();
+                int minLon = in.readInt();
+                int maxLon = in.readInt();
+                int count = in.readInt();
+                int crc = in.readInt();
+
+                // Skip the block entirely if its header shows it has nothing we want
+                if (maxTime < from || minTime > to || (area != null && !overlaps(area, minLat, maxLat, minLon, maxLon))) {
+                    in.skipNBytes(length);
+                    continue;
+                }
+
+                byte[] contents = in.readNBytes(length);
+                CRC32 check = new CRC32();
+                check.update(contents);
+                // Each position takes 12 bytes, so the count can't be more than that allows
+                if (contents.length != length || (int) check.getValue() != crc || count < 0 || count > length / 12) {
+                    LOGGER.warn("Track archive partition {} has a corrupt block, ignoring the rest of it", file.getName());
+                    return;
+                }
+                readBlock(new DataInputStream(new ByteArrayInputStream(contents)), minTime, count, from, to, area, tracks);
+            }
+        } catch (EOFException ex) {
+            LOGGER.warn("Track archive partition {} ended early, it may not have been completely written", file.getName());
+        } catch (IOException ex) {
+            LOGGER.error("Could not read track archive partition {}", file.getName(), ex);
+        }
+    }
+
+    /**
+     * Read the history within the window and area from one block into the map of
+     * tracks.
+     */
+    private static void readBlock(DataInputStream in, long minTime, int count, long from, long to, BoundingBox area,
+                                  Map<String, HistoricalTrack> tracks) throws IOException {
+        int trackCount = in.readInt();
+        String[][] info = new String[trackCount][];
+        int[] positionCounts = new int[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            info[i] = new String[]{in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF()};
+            positionCounts[i] = in.readInt();
+        }
+
+        int[] times = readColumn(in, count);
+        int[] lats = readColumn(in, count);
+        int[] lons = readColumn(in, count);
+
+        int i = 0;
+        for (int t = 0; t < trackCount; t++) {
+            // Only tracks with positions inside the window and area are included
+            HistoricalTrack h = null;
+            for (int end = i + positionCounts[t]; i < end && i < count; i++) {
+                long time = minTime + times[i];
+                double lat = lats[i] / COORDINATE_SCALE;
+                double lon = lons[i] / COORDINATE_SCALE;
+                if (time >= from && time <= to && (area == null || area.contains(lat, lon))) {
+                    if (h == null) {
+                        String[] trackInfo = info[t];
+                        h = tracks.computeIfAbsent(trackInfo[0], HistoricalTrack::new);
+                        h.setInfo(parseTrackType(trackInfo[1]), trackInfo[2], trackInfo[3], trackInfo[4], trackInfo[5], trackInfo[6]);
+                    }
+                    h.addPosition(new TimestampedPosition(lat, lon, time));
+                }
+            }
+        }
+    }
+
+    private static int[] readColumn(DataInputStream in, int count) throws IOException {
+        int[] column = new int[count];
+        for (int i = 0; i < count; i++) {
+            column[i] = in.readInt();
+        }
+        return column;
+    }
+
+    /**
+     * Return true if the area overlaps the box described by a block header.
+     */
+    private static boolean overlaps(BoundingBox area, int minLat, int maxLat, int minLon, int maxLon) {
+        if (maxLat < toFixed(area.minLat()) || minLat > toFixed(area.maxLat())) {
+            return false;
+        }
+        int areaMinLon = toFixed(area.minLon());
+        int areaMaxLon = toFixed(area.maxLon());
+        if (areaMinLon <= areaMaxLon) {
+            return maxLon >= areaMinLon && minLon <= areaMaxLon;
+        } else {
+            // Area crosses the antimeridian
+            return maxLon >= areaMinLon || minLon <= areaMaxLon;
+        }
+    }
+
+    private void deleteExpiredPartitions(long now) {
+        for (File f : getPartitionFiles()) {
+            if (partitionStartOf(f) + PARTITION_MILLIS < now - retentionMillis) {
+                if (f.delete()) {
+                    LOGGER.info("Deleted expired track archive partition {}", f.getName());
+                } else {
+                    LOGGER.error("Failed to delete expired track archive partition {}, check file permissions!", f.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private File getPartitionFile(long partitionStart) {
+        return new File(directory, PARTITION_NAME_FORMAT.format(Instant.ofEpochMilli(partitionStart)) + EXTENSION);
+    }
+
+    /**
+     * Get the partition files on disk, oldest first.
+     */
+    private List<File> getPartitionFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        List<File> list = new ArrayList<>();
+        if (files != null) {
+            for (File f : files) {
+                if (partitionStartOf(f) != Long.MIN_VALUE) {
+                    list.add(f);
+                }
+            }
+        }
+        list.sort(Comparator.comparingLong(TrackArchive::partitionStartOf));
+        return list;
+    }
+
+    /**
+     * Get the start time of a partition from its file name, or Long.MIN_VALUE if the
+     * name is not that of a partition.
+     */
+    private static long partitionStartOf(File f) {
+        String name = f.getName();
+        try {
+            return LocalDateTime.parse(name.substring(0, name.length() - EXTENSION.length()), PARTITION_NAME_FORMAT)
+                    .toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (DateTimeParseException | StringIndexOutOfBoundsException ex) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static TrackType parseTrackType(String name) {
+        try {
+            return TrackType.valueOf(name);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static int toFixed(double degrees) {
+        return (int) Math.round(degrees * COORDINATE_SCALE);
+    }
+
+    /**
+     * Some history handed to the archive, waiting to be written.
+     */
+    private record Entry(TrackState state, List<TimestampedPosition> positions) {
+    }
+
+    /**
+     * One track's history within a block that is being built.
+     */
+    private static class Block {
+        private TrackState state;
+        private final List<TimestampedPosition> positions = new ArrayList<>();
+    }
+}
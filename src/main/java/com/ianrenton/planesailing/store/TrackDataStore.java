@@ -0,0 +1,596 @@
+package com.ianrenton.planesailing.store;
+
+import com.ianrenton.planesailing.data.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes snapshots of the track table in a compact binary format.
+ * Snapshots are streamed straight from the live tracks, so saving doesn't need a
+ * copy of the whole table in memory, and are read back as a stream too.
+ * <p>
+ * The file starts with a magic number and format version. It then contains a
+ * sequence of records, each of which is a record type, the length of its
+ * contents, the contents, and a CRC32 checksum of the contents. A record that
+ * fails its checksum is skipped, so a corrupt record only loses that one track,
+ * and a file that was cut short loses only the tracks after that point. The file
+ * ends with an end record.
+ * <p>
+ * Track records store each field with its own tag (see TrackRecordWriter), so
+ * changes to the track classes don't invalidate existing snapshots, unlike Java
+ * serialization.
+ * <p>
+ * As well as full snapshots, incremental segments can be saved, which contain only
+ * the tracks that have changed and the IDs of those that have been dropped since
+ * the last save. Segments are numbered, and stored alongside the snapshot. Each
+ * full snapshot records the number of the first segment that follows it, so that
+ * segments left over from before it are ignored even if they could not be deleted.
+ * Loading reads the snapshot and then applies each later segment in turn.
+ * <p>
+ * Loading memory-maps each file, finds where each record starts with a quick pass
+ * over the record headers, and then decodes the records in parallel across the
+ * common fork-join pool, which makes startup with a large table much quicker.
+ */
+public class TrackDataStore {
+    private static final Logger LOGGER = LogManager.getLogger(TrackDataStore.class);
+
+    /**
+     * Magic number at the start of a snapshot file, "PSTD".
+     */
+    public static final int MAGIC = 0x50535444;
+    /**
+     * Current version of the snapshot format.
+     */
+    public static final short VERSION = 1;
+
+    static final byte RECORD_END = 0;
+    static final byte RECORD_TRACK = 1;
+    static final byte RECORD_AIS_NAME = 2;
+    static final byte RECORD_DROP = 5;
+    static final byte RECORD_SEGMENT_START = 6;
+
+    /**
+     * Maximum length of a single record. Anything longer must be corrupt.
+     */
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+    /**
+     * Number of records below which a fork-join task decodes them itself rather
+     * than splitting further.
+     */
+    private static final int DECODE_BATCH_SIZE = 256;
+    /**
+     * Length of the file header (magic number and version).
+     */
+    private static final int HEADER_LENGTH = 6;
+
+    /**
+     * Functions to create an empty track of each kind that can be stored, given its
+     * ID. Tracks created by config are not stored, as they are recreated from the
+     * config file on startup.
+     */
+    private static final Map<String, Function<String, Track>> TRACK_FACTORIES = Map.of(
+            "Aircraft", Aircraft::new,
+            "AISTrack", id -> new AISTrack(Integer.parseInt(id)),
+            "APRSTrack", APRSTrack::new,
+            "Radiosonde", Radiosonde::new,
+            "MeshtasticNode", MeshtasticNode::new);
+
+    private final File file;
+    private int nextSegment;
+
+    public TrackDataStore(File file) {
+        this.file = file.getAbsoluteFile();
+        List<File> segments = getSegmentFiles();
+        nextSegment = segments.isEmpty() ? 1 : segmentNumberOf(segments.get(segments.size() - 1)) + 1;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Return true if the file exists and is a snapshot in this format, as opposed to
+     * e.g. a track table saved by an old version using Java serialization.
+     */
+    public boolean isSnapshot() {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Save a full snapshot. It is written to a temporary file first, and then moved
+     * over the old one, so there is always a complete snapshot on disk even if the
+     * software is stopped in the middle of a save. Any incremental segments are
+     * deleted afterwards, as the snapshot supersedes them.
+     *
+     * @param tracks   Tracks to save. Each track is locked while its record is built.
+     * @param aisNames AIS name cache to save
+     * @return The number of tracks saved.
+     */
+    public int save(Collection<Track> tracks, Map<Integer, String> aisNames) throws IOException {
+        int count = write(file, tracks, List.of(), aisNames, nextSegment);
+        for (File f : getSegmentFiles()) {
+            if (!f.delete()) {
+                LOGGER.error("Failed to delete old track data store segment {}, check file permissions!", f.getAbsolutePath());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Save an incremental segment, to be applied on top of the last full snapshot
+     * and any segments before it.
+     *
+     * @param tracks   Tracks that have changed. Each track is locked while its record is built.
+     * @param dropped  IDs of tracks that have been dropped
+     * @param aisNames AIS name cache to save, or null if it hasn't changed
+     * @return The number of tracks saved.
+     */
+    public int saveSegment(Collection<Track> tracks, Collection<String> dropped, Map<Integer, String> aisNames) throws IOException {
+        int count = write(segmentFile(nextSegment), tracks, dropped, aisNames != null ? aisNames : Map.of(), null);
+        nextSegment++;
+        return count;
+    }
+
+    /**
+     * Get the number of incremental segments saved since the last full snapshot.
+     */
+    public int getSegmentCount() {
+        return getSegmentFiles().size();
+    }
+
+    /**
+     * Write a snapshot or segment file, via a temporary file.
+     *
+     * @param segmentStart For a full snapshot, the number of the first segment that
+     *                     follows it. Null for a segment.
+     */
+    private static int write(File target, Collection<Track> tracks, Collection<String> dropped, Map<Integer, String> aisNames,
+                             Integer segmentStart) throws IOException {
+        File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+
+            CRC32 crc = new CRC32();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+            DataOutputStream bufferOut = new DataOutputStream(buffer);
+            if (segmentStart != null) {
+                bufferOut.writeInt(segmentStart);
+                writeRecord(out, RECORD_SEGMENT_START, buffer.toByteArray(), crc);
+            }
+
+            // Drops come first, in case a dropped track has since been recreated
+            for (String id : dropped) {
+                buffer.reset();
+                bufferOut.writeUTF(id);
+                writeRecord(out, RECORD_DROP, buffer.toByteArray(), crc);
+            }
+
+            TrackRecordWriter w = new TrackRecordWriter();
+            for (Track t : tracks) {
+                if (!isStorable(t)) {
+                    continue;
+                }
+                byte[] contents;
+                synchronized (t) {
+                    w.start(t.getClass().getSimpleName(), t.getID());
+                    t.writeFields(w);
+                    contents = w.finish();
+                }
+                writeRecord(out, RECORD_TRACK, contents, crc);
+                count++;
+            }
+
+            for (Map.Entry<Integer, String> e : aisNames.entrySet()) {
+                buffer.reset();
+                bufferOut.writeInt(e.getKey());
+                bufferOut.writeUTF(e.getValue());
+                writeRecord(out, RECORD_AIS_NAME, buffer.toByteArray(), crc);
+            }
+
+            out.writeByte(RECORD_END);
+        }
+
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return count;
+    }
+
+    /**
+     * Load the snapshot and any segments that follow it into the given maps.
+     * Corrupt records are skipped with a warning.
+     *
+     * @param tracks   Map of track ID to track, to put the loaded tracks in
+     * @param aisNames Map to put the loaded AIS names in
+     * @throws IOException if the snapshot is not in this format, is a newer version
+     *                     than this software understands, or can't be read.
+     */
+    public void load(Map<String, Track> tracks, Map<Integer, String> aisNames) throws IOException {
+        int segmentStart = loadFile(file, tracks, aisNames);
+        int segments = 0;
+        for (File f : getSegmentFiles()) {
+            if (segmentNumberOf(f) >= segmentStart) {
+                try {
+                    loadFile(f, tracks, aisNames);
+                    segments++;
+                } catch (IOException ex) {
+                    LOGGER.warn("Could not read track data store segment {}, continuing...", f.getAbsolutePath(), ex);
+                }
+            }
+        }
+        if (segments > 0) {
+            LOGGER.info("Applied {} incremental segments to the track data store", segments);
+        }
+    }
+
+    /**
+     * Load one snapshot or segment file, applying its records to the given maps in
+     * the order they appear in the file. The records are decoded in parallel, but
+     * applied from this thread.
+     *
+     * @return The number of the first segment that follows this file, if it is a
+     * full snapshot, or Integer.MAX_VALUE if it is not.
+     */
+    private static int loadFile(File file, Map<String, Track> tracks, Map<Integer, String> aisNames) throws IOException {
+        long size = file.length();
+        if (size > Integer.MAX_VALUE) {
+            // Too big to map in one go, so fall back to reading it as a stream
+            return loadStream(file, tracks, aisNames);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < HEADER_LENGTH || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a track data store snapshot");
+            }
+            short version = buffer.getShort(4);
+            if (version > VERSION) {
+                throw new IOException("Track data store snapshot is version " + version + ", but only up to " + VERSION + " is supported");
+            }
+
+            // Find the start of each record by skipping from header to header
+            int[] offsets = new int[1024];
+            int count = 0;
+            int pos = HEADER_LENGTH;
+            boolean complete = false;
+            while (pos < size) {
+                if (buffer.get(pos) == RECORD_END) {
+                    complete = true;
+                    break;
+                }
+                if (pos + 5 > size) {
+                    break;
+                }
+                int length = buffer.getInt(pos + 1);
+                if (length < 0 || length > MAX_RECORD_LENGTH || pos + 9L + length > size) {
+                    break;
+                }
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = pos;
+                pos += 9 + length;
+            }
+            if (!complete) {
+                LOGGER.warn("Track data store ended early, it may not have been completely written");
+            }
+
+            // Decode them in parallel
+            Object[] results = new Object[count];
+            AtomicInteger skipped = new AtomicInteger();
+            ForkJoinPool.commonPool().invoke(new DecodeTask(buffer, offsets, results, 0, count, skipped));
+            if (skipped.get() > 0) {
+                LOGGER.warn("Skipped {} corrupt records", skipped.get());
+            }
+
+            int segmentStart = Integer.MAX_VALUE;
+            for (Object o : results) {
+                segmentStart = Math.min(segmentStart, apply(o, tracks, aisNames));
+            }
+            return segmentStart;
+        }
+    }
+
+    /**
+     * Load a snapshot by reading it as a stream, one record at a time.
+     */
+    private static int loadStream(File file, Map<String, Track> tracks, Map<Integer, String> aisNames) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a track data store snapshot");
+            }
+            short version = in.readShort();
+            if (version > VERSION) {
+                throw new IOException("Track data store snapshot is version " + version + ", but only up to " + VERSION + " is supported");
+            }
+
+            int[] segmentStart = {Integer.MAX_VALUE};
+            boolean complete = readRecords(in, (type, contents) ->
+                    segmentStart[0] = Math.min(segmentStart[0], apply(decodeRecord(type, contents), tracks, aisNames)));
+            if (!complete) {
+                LOGGER.warn("Track data store ended early, it may not have been completely written");
+            }
+            return segmentStart[0];
+        }
+    }
+
+    /**
+     * Apply a decoded record to the maps being loaded.
+     *
+     * @return The segment start number, if the record is one, or Integer.MAX_VALUE.
+     */
+    private static int apply(Object o, Map<String, Track> tracks, Map<Integer, String> aisNames) {
+        if (o instanceof Track t) {
+            tracks.put(t.getID(), t);
+        } else if (o instanceof AISName n) {
+            aisNames.put(n.mmsi(), n.name());
+        } else if (o instanceof DroppedID d) {
+            tracks.remove(d.id());
+        } else if (o instanceof SegmentStart s) {
+            return s.segment();
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Handler for the contents of one record.
+     */
+    @FunctionalInterface
+    interface RecordHandler {
+        void handle(byte type, byte[] contents) throws IOException;
+    }
+
+    /**
+     * Read records from a stream until the end record, passing the contents of each
+     * one that passes its checksum to the handler. Records that fail their checksum,
+     * or that the handler can't read, are skipped with a warning.
+     *
+     * @return true if the end record was reached, false if the stream ended early
+     * or became unreadable.
+     */
+    static boolean readRecords(DataInputStream in, RecordHandler handler) throws IOException {
+        CRC32 crc = new CRC32();
+        int skipped = 0;
+        boolean complete = false;
+        while (true) {
+            byte type;
+            byte[] contents;
+            try {
+                type = in.readByte();
+                if (type == RECORD_END) {
+                    complete = true;
+                    break;
+                }
+                int length = in.readInt();
+                if (length < 0 || length > MAX_RECORD_LENGTH) {
+                    LOGGER.warn("Record has invalid length {}, ignoring the rest of the file", length);
+                    break;
+                }
+                contents = new byte[length];
+                in.readFully(contents);
+                int checksum = in.readInt();
+                crc.reset();
+                crc.update(contents);
+                if ((int) crc.getValue() != checksum) {
+                    skipped++;
+                    continue;
+                }
+            } catch (EOFException ex) {
+                break;
+            }
+
+            try {
+                handler.handle(type, contents);
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.warn("Could not read a record, skipping it", ex);
+                skipped++;
+            }
+        }
+        if (skipped > 0) {
+            LOGGER.warn("Skipped {} corrupt records", skipped);
+        }
+        return complete;
+    }
+
+    /**
+     * Create an empty track of the given kind, or return null if it is not a kind
+     * that can be stored.
+     */
+    static Track createTrack(String kind, String id) {
+        Function<String, Track> factory = TRACK_FACTORIES.get(kind);
+        return (factory != null) ? factory.apply(id) : null;
+    }
+
+    /**
+     * Create a new track of the same kind as the given one, with the given ID, and
+     * copy the given track's fields into it, except for its position history. This
+     * is used to convert tracks read using Java serialization from a track table
+     * saved by an older version.
+     *
+     * @return The new track, or null if it is not a kind that can be stored.
+     */
+    public static Track copyOf(Track t, String id) {
+        String kind = t.getClass().getSimpleName();
+        Track copy = createTrack(kind, id);
+        if (copy != null) {
+            TrackRecordWriter w = new TrackRecordWriter();
+            w.start(kind, id, false);
+            t.writeFields(w);
+            try {
+                copy.readFields(TrackRecord.read(new DataInputStream(new ByteArrayInputStream(w.finish()))));
+            } catch (IOException ex) {
+                // Can't happen, the record was just written by this version
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Return true if tracks of the given kind can be stored.
+     */
+    static boolean isStorable(Track t) {
+        return !t.isCreatedByConfig() && TRACK_FACTORIES.containsKey(t.getClass().getSimpleName());
+    }
+
+    static void writeRecord(DataOutputStream out, byte type, byte[] contents, CRC32 crc) throws IOException {
+        crc.reset();
+        crc.update(contents);
+        out.writeByte(type);
+        out.writeInt(contents.length);
+        out.write(contents);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Decode the contents of a record into a Track or an AISName, or return null if
+     * it is of a type that is not understood.
+     */
+    private static Object decodeRecord(byte type, byte[] contents) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+        switch (type) {
+            case RECORD_TRACK -> {
+                TrackRecord r = TrackRecord.read(in);
+                Track t = createTrack(r.getKind(), r.getID());
+                if (t == null) {
+                    LOGGER.warn("Unknown kind of track {} in track data store, skipping it", r.getKind());
+                    return null;
+                }
+                t.readFields(r);
+                return t;
+            }
+            case RECORD_AIS_NAME -> {
+                return new AISName(in.readInt(), in.readUTF());
+            }
+            case RECORD_DROP -> {
+                return new DroppedID(in.readUTF());
+            }
+            case RECORD_SEGMENT_START -> {
+                return new SegmentStart(in.readInt());
+            }
+            default -> {
+                LOGGER.debug("Unknown record type {} in track data store, skipping it", type);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * An entry in the AIS name cache.
+     */
+    private record AISName(int mmsi, String name) {
+    }
+
+    /**
+     * The ID of a track that was dropped, in an incremental segment.
+     */
+    private record DroppedID(String id) {
+    }
+
+    /**
+     * The number of the first segment that follows a full snapshot.
+     */
+    private record SegmentStart(int segment) {
+    }
+
+    /**
+     * Get the segment files on disk, oldest first.
+     */
+    private List<File> getSegmentFiles() {
+        String prefix = file.getName() + ".seg.";
+        File[] files = file.getParentFile().listFiles((dir, name) -> name.startsWith(prefix) && name.length() > prefix.length()
+                && name.substring(prefix.length()).chars().allMatch(Character::isDigit));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        List<File> list = new ArrayList<>(Arrays.asList(files));
+        list.sort(Comparator.comparingInt(TrackDataStore::segmentNumberOf));
+        return list;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(file.getParentFile(), file.getName() + ".seg." + segment);
+    }
+
+    private static int segmentNumberOf(File f) {
+        String name = f.getName();
+        return Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * Fork-join task that decodes a range of records from a mapped snapshot file,
+     * splitting the range in half until it is small enough to do directly.
+     */
+    @SuppressWarnings("serial")
+    private static class DecodeTask extends RecursiveAction {
+        @Serial
+        private static final long serialVersionUID = 1L;
+        private final MappedByteBuffer buffer;
+        private final int[] offsets;
+        private final Object[] results;
+        private final int from;
+        private final int to;
+        private final AtomicInteger skipped;
+
+        DecodeTask(MappedByteBuffer buffer, int[] offsets, Object[] results, int from, int to, AtomicInteger skipped) {
+            this.buffer = buffer;
+            this.offsets = offsets;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.skipped = skipped;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > DECODE_BATCH_SIZE) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DecodeTask(buffer, offsets, results, from, mid, skipped),
+                        new DecodeTask(buffer, offsets, results, mid, to, skipped));
+                return;
+            }
+
+            CRC32 crc = new CRC32();
+            for (int i = from; i < to; i++) {
+                int pos = offsets[i];
+                byte type = buffer.get(pos);
+                byte[] contents = new byte[buffer.getInt(pos + 1)];
+                buffer.get(pos + 5, contents);
+                crc.reset();
+                crc.update(contents);
+                if ((int) crc.getValue() != buffer.getInt(pos + 5 + contents.length)) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                try {
+                    results[i] = decodeRecord(type, contents);
+                } catch (IOException | RuntimeException ex) {
+                    LOGGER.warn("Could not read a record, skipping it", ex);
+                    skipped.incrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,573 @@
+package com.ianrenton.planesailing.store;
+
+import com.ianrenton.planesailing.app.TrackTable;
+import com.ianrenton.planesailing.data.ChangeGroup;
+import com.ianrenton.planesailing.data.TimestampedPosition;
+import com.ianrenton.planesailing.data.Track;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of changes to the track table, kept alongside the track data
+ * store snapshot so that a crash loses at most a second or so of data rather than
+ * everything since the last snapshot.
+ * <p>
+ * The track table calls the journal directly when a track is created (the whole
+ * track is written), updated (its fields, plus any positions added since the last
+ * entry) or dropped, rather than it going through the lossy event subscriptions.
+ * Entries are handed to a writer thread which writes them in batches, syncing the
+ * file to disk once per batch ("group commit"), so the cost is a small steady
+ * trickle of I/O however busy the receivers are. If the writer falls behind, the
+ * callers wait for it rather than entries being lost.
+ * <p>
+ * If writing fails, e.g. because the disk is full, the generation being written
+ * may have been left with a partial entry at the end, beyond which nothing in it
+ * can be replayed. So it is abandoned, and the entries are written again to a new
+ * generation. If that keeps failing, the journal gives up and discards entries
+ * until the next snapshot, which must then be a full one, so that it covers
+ * everything the journal missed.
+ * <p>
+ * The journal is split into numbered generations. Compaction starts a new
+ * generation, saves a snapshot, and then deletes the older generations, which the
+ * snapshot now covers. On startup, the snapshot is loaded and then every remaining
+ * generation is replayed on top of it. Replaying is safe even if some of the
+ * entries are already reflected in the snapshot.
+ * <p>
+ * Entries use the same record framing and checksums as the snapshot, see
+ * TrackDataStore.
+ */
+public class TrackJournal {
+    private static final Logger LOGGER = LogManager.getLogger(TrackJournal.class);
+
+    /**
+     * Magic number at the start of a journal file, "PSTJ".
+     */
+    public static final int MAGIC = 0x5053544A;
+    /**
+     * Current version of the journal format.
+     */
+    public static final short VERSION = 1;
+    /**
+     * Maximum number of entries waiting to be written. Once this many are waiting,
+     * adding another blocks until the writer has caught up.
+     */
+    public static final int MAX_PENDING_ENTRIES = 100000;
+    /**
+     * Number of times to try writing a batch of entries before giving up until the
+     * next snapshot.
+     */
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+
+    static final byte RECORD_UPSERT = 3;
+    static final byte RECORD_POSITIONS = 4;
+    static final byte RECORD_DROP = TrackDataStore.RECORD_DROP;
+
+    private final File snapshotFile;
+    private final long commitIntervalMillis;
+    private final BlockingQueue<byte[]> pending = new LinkedBlockingQueue<>(MAX_PENDING_ENTRIES);
+    private final Map<String, Long> lastJournaledPositionTime = new ConcurrentHashMap<>();
+    private final TrackRecordWriter recordWriter = new TrackRecordWriter();
+    private final ByteArrayOutputStream entryBuffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream entryOut = new DataOutputStream(entryBuffer);
+    private final CRC32 crc = new CRC32();
+    /**
+     * Guards the shared buffers above, since entries are built on whichever thread
+     * changed the track. Always taken last, and never held while waiting for room
+     * in the queue.
+     */
+    private final Object entryLock = new Object();
+    private final AtomicLong discardedCount = new AtomicLong();
+
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private int generation;
+    private Thread writerThread;
+    private volatile boolean running = false;
+    private volatile boolean failed = false;
+
+    /**
+     * Create the journal.
+     *
+     * @param snapshotFile         The track data store snapshot file. Journal files
+     *                             are kept alongside it.
+     * @param commitIntervalMillis Minimum interval between syncs to disk. Entries
+     *                             arriving in between are batched together.
+     */
+    public TrackJournal(File snapshotFile, long commitIntervalMillis) {
+        this.snapshotFile = snapshotFile.getAbsoluteFile();
+        this.commitIntervalMillis = commitIntervalMillis;
+    }
+
+    /**
+     * Replay all journal generations on disk onto the given tracks, which should
+     * have just been loaded from the snapshot.
+     *
+     * @param tracks Map of track ID to track, which is modified to reflect the
+     *               journal.
+     * @return The number of entries replayed.
+     */
+    public int replay(Map<String, Track> tracks) {
+        int count = 0;
+        for (File f : getGenerationFiles()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 65536))) {
+                if (in.readInt() != MAGIC || in.readShort() > VERSION) {
+                    LOGGER.warn("Ignoring unreadable journal file {}", f.getAbsolutePath());
+                    continue;
+                }
+                int[] fileCount = {0};
+                TrackDataStore.readRecords(in, (type, contents) -> {
+                    replayEntry(type, contents, tracks);
+                    fileCount[0]++;
+                });
+                count += fileCount[0];
+            } catch (IOException ex) {
+                LOGGER.warn("Could not read journal file {}, continuing...", f.getAbsolutePath(), ex);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Start journalling changes to the track table, in a new generation after any
+     * already on disk.
+     */
+    public synchronized void start(TrackTable trackTable) throws IOException {
+        List<File> existing = getGenerationFiles();
+        generation = existing.isEmpty() ? 1 : generationOf(existing.get(existing.size() - 1)) + 1;
+        openGeneration();
+
+        // Positions already in the table are covered by the snapshot or old journals
+        for (Track t : trackTable.values()) {
+            TimestampedPosition p = t.getPosition();
+            if (p != null) {
+                lastJournaledPositionTime.put(t.getID(), p.time());
+            }
+        }
+
+        running = true;
+        writerThread = new Thread(this::writeLoop, "Track Journal Writer Thread");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Start a new generation, so that a snapshot can be taken which covers all
+     * generations before it.
+     *
+     * @return The files of the previous generations, which can be deleted with
+     * deleteGenerations() once the snapshot has been saved. Empty if the journal
+     * has not been started, as generations on disk may not have been replayed yet.
+     */
+    public synchronized List<File> rotate() throws IOException {
+        if (writerThread == null) {
+            return new ArrayList<>();
+        }
+        List<File> old = getGenerationFiles();
+        closeGeneration();
+        generation++;
+        openGeneration();
+        // The snapshot about to be taken covers anything discarded while failed
+        failed = false;
+        return old;
+    }
+
+    /**
+     * Delete journal generations that are covered by a snapshot.
+     */
+    public void deleteGenerations(List<File> files) {
+        for (File f : files) {
+            if (!f.delete()) {
+                LOGGER.error("Failed to delete old journal file {}, check file permissions!", f.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Stop journalling, writing out any entries that are still waiting.
+     */
+    public void shutdown() {
+        running = false;
+        if (writerThread != null) {
+            try {
+                writerThread.join(5000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            try {
+                closeGeneration();
+            } catch (IOException ex) {
+                LOGGER.error("Could not close journal file", ex);
+            }
+        }
+    }
+
+    /**
+     * Return true if the journal has given up writing entries since it was last
+     * rotated, so the next snapshot must include every track rather than just
+     * those changed since the last one.
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Return true if the journal has been started and not yet shut down.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Get the number of entries discarded because they arrived after the journal
+     * was shut down, or while it had failed.
+     */
+    public long getDiscardedCount() {
+        return discardedCount.get();
+    }
+
+    /**
+     * Write an entry for a track that has been added to the track table. Called by
+     * the track table on the thread that added it, which waits if the writer is
+     * behind.
+     * <p>
+     * Entries for a track are built and queued while holding its lock, as is the
+     * track being removed from the table, so that a track's entries are always
+     * in the journal in the order they happened. Otherwise, an entry for a change
+     * could be queued after the track's drop entry, and bring the track back when
+     * the journal is replayed.
+     */
+    public void trackCreated(Track t) {
+        if (!running || !TrackDataStore.isStorable(t)) {
+            return;
+        }
+        try {
+            synchronized (t) {
+                // Skip tracks that have been dropped again already
+                if (t.getTrackTable() == null) {
+                    return;
+                }
+                byte[] contents;
+                synchronized (entryLock) {
+                    recordWriter.start(t.getClass().getSimpleName(), t.getID(), true);
+                    t.writeFields(recordWriter);
+                    contents = recordWriter.finish();
+                }
+                TimestampedPosition p = t.getPosition();
+                if (p != null) {
+                    lastJournaledPositionTime.put(t.getID(), p.time());
+                }
+                queue(RECORD_UPSERT, contents);
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Could not create journal entry for {}", t.getID(), ex);
+        }
+    }
+
+    /**
+     * Write entries for a track that has changed. Called by the track table when it
+     * publishes the track's coalesced changes, which waits if the writer is behind.
+     * Changes made meanwhile keep accumulating on the track, so none are lost. The
+     * entries are queued while holding the track's lock, see trackCreated().
+     *
+     * @param changes The groups of fields that have changed since the last call
+     */
+    public void trackUpdated(Track t, Set<ChangeGroup> changes) {
+        if (!running || !TrackDataStore.isStorable(t)) {
+            return;
+        }
+        try {
+            byte[] fields = null;
+            byte[] positions = null;
+            synchronized (t) {
+                // Skip updates that arrive after the track has been dropped
+                if (t.getTrackTable() == null) {
+                    return;
+                }
+                if (changes.contains(ChangeGroup.POSITION)) {
+                    positions = newPositionsEntry(t);
+                }
+                // A new position also updates the metadata time, and replaying the
+                // position does the same, so only write the fields if something else changed
+                if (changes.contains(ChangeGroup.METADATA) || changes.contains(ChangeGroup.KINEMATICS)
+                        || (changes.contains(ChangeGroup.UPDATE_TIME) && !changes.contains(ChangeGroup.POSITION))) {
+                    synchronized (entryLock) {
+                        recordWriter.start(t.getClass().getSimpleName(), t.getID(), false);
+                        t.writeFields(recordWriter);
+                        fields = recordWriter.finish();
+                    }
+                }
+                if (fields != null) {
+                    queue(RECORD_UPSERT, fields);
+                }
+                if (positions != null) {
+                    queue(RECORD_POSITIONS, positions);
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Could not create journal entry for {}", t.getID(), ex);
+        }
+    }
+
+    /**
+     * Write an entry for a track that has been removed from the track table. Called
+     * by the track table on the thread that removed it, which waits if the writer
+     * is behind. This must be after the track has been marked as removed while
+     * holding its lock, see trackCreated().
+     */
+    public void trackDropped(Track t) {
+        if (!running || !TrackDataStore.isStorable(t)) {
+            return;
+        }
+        try {
+            lastJournaledPositionTime.remove(t.getID());
+            byte[] contents;
+            synchronized (entryLock) {
+                entryBuffer.reset();
+                entryOut.writeUTF(t.getID());
+                contents = entryBuffer.toByteArray();
+            }
+            queue(RECORD_DROP, contents);
+        } catch (IOException ex) {
+            LOGGER.error("Could not create journal entry for {}", t.getID(), ex);
+        }
+    }
+
+    /**
+     * Build an entry containing the positions the track has gained since the last
+     * entry for it, or return null if there are none.
+     */
+    private byte[] newPositionsEntry(Track t) throws IOException {
+        long since = lastJournaledPositionTime.getOrDefault(t.getID(), Long.MIN_VALUE);
+        List<TimestampedPosition> newPositions = new ArrayList<>();
+        List<TimestampedPosition> history = t.getPositionHistory().snapshot();
+        for (int i = history.size() - 1; i >= 0; i--) {
+            TimestampedPosition p = history.get(i);
+            if (p.time() <= since) {
+                break;
+            }
+            newPositions.add(p);
+        }
+        if (newPositions.isEmpty()) {
+            return null;
+        }
+        Collections.reverse(newPositions);
+        lastJournaledPositionTime.put(t.getID(), newPositions.get(newPositions.size() - 1).time());
+
+        synchronized (entryLock) {
+            entryBuffer.reset();
+            entryOut.writeUTF(t.getID());
+            entryOut.writeInt(newPositions.size());
+            for (TimestampedPosition p : newPositions) {
+                entryOut.writeDouble(p.latitude());
+                entryOut.writeDouble(p.longitude());
+                entryOut.writeLong(p.time());
+            }
+            return entryBuffer.toByteArray();
+        }
+    }
+
+    /**
+     * Frame an entry and queue it for the writer thread. If the queue is full, wait
+     * for the writer to make room, so that the caller is slowed down rather than
+     * the entry being lost. Entries are only discarded once the journal has been
+     * shut down.
+     */
+    private void queue(byte type, byte[] contents) throws IOException {
+        if (failed) {
+            discardedCount.incrementAndGet();
+            return;
+        }
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(contents.length + 9);
+        synchronized (entryLock) {
+            TrackDataStore.writeRecord(new DataOutputStream(framed), type, contents, crc);
+        }
+        byte[] entry = framed.toByteArray();
+        try {
+            while (!pending.offer(entry, 1, TimeUnit.SECONDS)) {
+                if (!running) {
+                    discardedCount.incrementAndGet();
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            discardedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writer thread. Waits for entries, then writes all that are waiting in one go
+     * and syncs them to disk, at most once per commit interval.
+     */
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<>();
+        long lastCommit = 0;
+        while (running || !pending.isEmpty()) {
+            try {
+                byte[] first = pending.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                long wait = lastCommit + commitIntervalMillis - System.currentTimeMillis();
+                if (wait > 0 && running) {
+                    Thread.sleep(wait);
+                }
+                batch.add(first);
+                pending.drainTo(batch);
+                writeBatch(batch);
+                lastCommit = System.currentTimeMillis();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception ex) {
+                LOGGER.error("Caught exception in journal writer, continuing...", ex);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write a batch of entries and sync them to disk. If that fails, abandon the
+     * generation, as it may now end with a partial entry, and try again in a new
+     * one. If all attempts fail, give up until the next rotation.
+     */
+    private void writeBatch(List<byte[]> batch) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            synchronized (this) {
+                if (failed) {
+                    discardedCount.addAndGet(batch.size());
+                    return;
+                }
+                try {
+                    if (out == null) {
+                        generation++;
+                        openGeneration();
+                    }
+                    for (byte[] b : batch) {
+                        out.write(b);
+                    }
+                    out.flush();
+                    fileOut.getChannel().force(false);
+                    return;
+                } catch (IOException ex) {
+                    abandonGeneration();
+                    if (attempt >= MAX_WRITE_ATTEMPTS) {
+                        LOGGER.error("Could not write to the track journal, so it will be stopped until the next backup", ex);
+                        failed = true;
+                        discardedCount.addAndGet(batch.size());
+                        return;
+                    }
+                    LOGGER.warn("Could not write to the track journal, retrying in a new journal file...", ex);
+                }
+            }
+            Thread.sleep(commitIntervalMillis);
+        }
+    }
+
+    private void openGeneration() throws IOException {
+        fileOut = new FileOutputStream(fileFor(generation));
+        out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.flush();
+    }
+
+    private void closeGeneration() throws IOException {
+        if (out != null) {
+            out.writeByte(TrackDataStore.RECORD_END);
+            out.flush();
+            fileOut.getChannel().force(false);
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Close the generation after a failed write, without adding anything to it.
+     * Whatever it holds up to the failure can still be replayed.
+     */
+    private void abandonGeneration() {
+        if (out != null) {
+            try {
+                fileOut.close();
+            } catch (IOException ex) {
+                // Closing anyway
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Apply one journal entry to the tracks being loaded.
+     */
+    private static void replayEntry(byte type, byte[] contents, Map<String, Track> tracks) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+        switch (type) {
+            case RECORD_UPSERT -> {
+                TrackRecord r = TrackRecord.read(in);
+                Track t = tracks.get(r.getID());
+                if (t == null || !t.getClass().getSimpleName().equals(r.getKind())) {
+                    t = TrackDataStore.createTrack(r.getKind(), r.getID());
+                    if (t == null) {
+                        return;
+                    }
+                    tracks.put(r.getID(), t);
+                }
+                t.readFields(r);
+            }
+            case RECORD_POSITIONS -> {
+                Track t = tracks.get(in.readUTF());
+                int count = in.readInt();
+                for (int i = 0; i < count && t != null; i++) {
+                    TimestampedPosition p = new TimestampedPosition(in.readDouble(), in.readDouble(), in.readLong());
+                    // Skip positions the snapshot already has
+                    TimestampedPosition latest = t.getPositionHistory().getLatest();
+                    if (latest == null || p.time() > latest.time()) {
+                        t.getPositionHistory().add(p);
+                        if (p.time() > t.getMetaDataTime()) {
+                            t.updateMetadataTime(p.time());
+                        }
+                    }
+                }
+            }
+            case RECORD_DROP -> tracks.remove(in.readUTF());
+            default -> LOGGER.debug("Unknown journal entry type {}, skipping it", type);
+        }
+    }
+
+    /**
+     * Get the journal files on disk, oldest generation first.
+     */
+    private List<File> getGenerationFiles() {
+        String prefix = snapshotFile.getName() + ".journal.";
+        File[] files = snapshotFile.getParentFile().listFiles((dir, name) -> name.startsWith(prefix)
+                && name.substring(prefix.length()).chars().allMatch(Character::isDigit) && name.length() > prefix.length());
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        List<File> list = new ArrayList<>(Arrays.asList(files));
+        list.sort(Comparator.comparingInt(TrackJournal::generationOf));
+        return list;
+    }
+
+    private File fileFor(int generation) {
+        return new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".journal." + generation);
+    }
+
+    private static int generationOf(File f) {
+        String name = f.getName();
+        return Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+    }
+}
@@ -0,0 +1,130 @@
+package com.ianrenton.planesailing.store;
+
+import com.ianrenton.planesailing.data.TimestampedPosition;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fields of one track read from a track data store record. See
+ * TrackRecordWriter for the format.
+ * <p>
+ * Fields that were never written are reported as absent, so the track can keep
+ * whatever default it was constructed with. Fields that the reading class doesn't
+ * know about are simply ignored, and where a field's type has changed, numbers are
+ * converted where possible.
+ */
+public class TrackRecord {
+
+    private final String kind;
+    private final String id;
+    private final Map<Integer, Object> fields = new HashMap<>();
+
+    private TrackRecord(String kind, String id) {
+        this.kind = kind;
+        this.id = id;
+    }
+
+    /**
+     * Read a record's contents.
+     *
+     * @throws IOException if the record is malformed, or contains a type of field
+     *                     that this version doesn't understand.
+     */
+    static TrackRecord read(DataInputStream in) throws IOException {
+        TrackRecord r = new TrackRecord(in.readUTF(), in.readUTF());
+        while (true) {
+            int tag = in.readUnsignedByte();
+            if (tag == TrackRecordWriter.END_OF_FIELDS) {
+                return r;
+            }
+            byte type = in.readByte();
+            Object value = switch (type) {
+                case TrackRecordWriter.TYPE_NULL -> null;
+                case TrackRecordWriter.TYPE_BOOLEAN -> in.readBoolean();
+                case TrackRecordWriter.TYPE_INT -> in.readInt();
+                case TrackRecordWriter.TYPE_LONG -> in.readLong();
+                case TrackRecordWriter.TYPE_DOUBLE -> in.readDouble();
+                case TrackRecordWriter.TYPE_STRING -> in.readUTF();
+                case TrackRecordWriter.TYPE_POSITIONS -> readPositions(in);
+                default -> throw new IOException("Unknown field type " + type + " for field " + tag);
+            };
+            r.fields.put(tag, value);
+        }
+    }
+
+    private static List<TimestampedPosition> readPositions(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Negative position count " + count);
+        }
+        List<TimestampedPosition> positions = new ArrayList<>(Math.min(count, 65536));
+        for (int i = 0; i < count; i++) {
+            positions.add(new TimestampedPosition(in.readDouble(), in.readDouble(), in.readLong()));
+        }
+        return positions;
+    }
+
+    /**
+     * Get the kind of track this record is for.
+     */
+    public String getKind() {
+        return kind;
+    }
+
+    public String getID() {
+        return id;
+    }
+
+    /**
+     * Return true if the record contains the given field, even if its value is null.
+     */
+    public boolean has(int tag) {
+        return fields.containsKey(tag);
+    }
+
+    public boolean getBoolean(int tag, boolean defaultValue) {
+        return (fields.get(tag) instanceof Boolean b) ? b : defaultValue;
+    }
+
+    public Integer getInt(int tag) {
+        return (fields.get(tag) instanceof Number n) ? n.intValue() : null;
+    }
+
+    public Long getLong(int tag) {
+        return (fields.get(tag) instanceof Number n) ? n.longValue() : null;
+    }
+
+    public Double getDouble(int tag) {
+        return (fields.get(tag) instanceof Number n) ? n.doubleValue() : null;
+    }
+
+    public String getString(int tag) {
+        Object o = fields.get(tag);
+        return (o != null) ? o.toString() : null;
+    }
+
+    /**
+     * Get an enum value, or the default if it is missing or no longer exists.
+     */
+    public <E extends Enum<E>> E getEnum(int tag, Class<E> type, E defaultValue) {
+        String name = getString(tag);
+        if (name != null) {
+            try {
+                return Enum.valueOf(type, name);
+            } catch (IllegalArgumentException ex) {
+                // Fall through to default
+            }
+        }
+        return defaultValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<TimestampedPosition> getPositions(int tag) {
+        return (fields.get(tag) instanceof List<?> l) ? (List<TimestampedPosition>) l : null;
+    }
+}
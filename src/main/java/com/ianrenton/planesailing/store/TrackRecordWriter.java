@@ -0,0 +1,174 @@
+package com.ianrenton.planesailing.store;
+
+import com.ianrenton.planesailing.data.TimestampedPosition;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Writes the fields of one track into a track data store record. Each field is
+ * written as a tag number, which the track class chooses and must never reuse for
+ * a different field, then a type code and the value. This makes the format
+ * self-describing, so a record can be read even if fields have since been added to
+ * or removed from the track class.
+ * <p>
+ * A writer is reused for every record in a snapshot, to avoid allocating a new
+ * buffer for each track.
+ */
+public class TrackRecordWriter {
+
+    static final byte TYPE_NULL = 0;
+    static final byte TYPE_BOOLEAN = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_DOUBLE = 4;
+    static final byte TYPE_STRING = 5;
+    static final byte TYPE_POSITIONS = 6;
+
+    /**
+     * Tag that marks the end of a record's fields. Not to be used by tracks.
+     */
+    static final int END_OF_FIELDS = 0;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private boolean includePositions = true;
+
+    /**
+     * Start a new record for a track.
+     *
+     * @param kind Kind of track, used to pick the class to create when reading
+     * @param id   Track ID
+     */
+    void start(String kind, String id) {
+        start(kind, id, true);
+    }
+
+    /**
+     * Start a new record for a track.
+     *
+     * @param kind             Kind of track, used to pick the class to create when reading
+     * @param id               Track ID
+     * @param includePositions Whether to include position history fields. If not,
+     *                         they are left out of the record entirely, so the
+     *                         reader keeps whatever position history it already has.
+     */
+    void start(String kind, String id, boolean includePositions) {
+        this.includePositions = includePositions;
+        buffer.reset();
+        try {
+            out.writeUTF(kind);
+            out.writeUTF(id);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Finish the record and return its contents.
+     */
+    byte[] finish() {
+        try {
+            out.writeByte(END_OF_FIELDS);
+            out.flush();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return buffer.toByteArray();
+    }
+
+    public void writeBoolean(int tag, boolean value) {
+        try {
+            header(tag, TYPE_BOOLEAN);
+            out.writeBoolean(value);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    public void writeInt(int tag, Integer value) {
+        try {
+            if (header(tag, value == null ? TYPE_NULL : TYPE_INT)) {
+                out.writeInt(value);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    public void writeLong(int tag, Long value) {
+        try {
+            if (header(tag, value == null ? TYPE_NULL : TYPE_LONG)) {
+                out.writeLong(value);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    public void writeDouble(int tag, Double value) {
+        try {
+            if (header(tag, value == null ? TYPE_NULL : TYPE_DOUBLE)) {
+                out.writeDouble(value);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    public void writeString(int tag, String value) {
+        try {
+            if (header(tag, value == null ? TYPE_NULL : TYPE_STRING)) {
+                out.writeUTF(value);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Write an enum value, by name so that the enum can be reordered later.
+     */
+    public void writeEnum(int tag, Enum<?> value) {
+        writeString(tag, value != null ? value.name() : null);
+    }
+
+    public void writePositions(int tag, List<TimestampedPosition> positions) {
+        if (!includePositions) {
+            return;
+        }
+        try {
+            if (header(tag, positions == null ? TYPE_NULL : TYPE_POSITIONS)) {
+                // Take a copy so the count matches the contents, even if the list is
+                // being modified
+                Object[] array = positions.toArray();
+                out.writeInt(array.length);
+                for (Object o : array) {
+                    TimestampedPosition p = (TimestampedPosition) o;
+                    out.writeDouble(p.latitude());
+                    out.writeDouble(p.longitude());
+                    out.writeLong(p.time());
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Write a field header.
+     *
+     * @return true if a value should follow, false if the value is null.
+     */
+    private boolean header(int tag, byte type) throws IOException {
+        if (tag <= END_OF_FIELDS || tag > 255) {
+            throw new IllegalArgumentException("Field tag " + tag + " is out of range");
+        }
+        out.writeByte(tag);
+        out.writeByte(type);
+        return type != TYPE_NULL;
+    }
+}
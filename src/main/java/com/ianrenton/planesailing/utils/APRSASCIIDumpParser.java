@@ -11,8 +11,6 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.Map.Entry;
 
 /**
  * Hacky util to read Direwolf-style ASCII dumps of APRS packets
@@ -43,11 +41,10 @@ public class APRSASCIIDumpParser {
 
         // Remove mobile tracks as they are not really current,
         // leaving only base stations
-        for (Iterator<Entry<String, Track>> it = tt.entrySet().iterator(); it.hasNext(); ) {
-            Track t = it.next().getValue();
+        for (Track t : tt.values()) {
             try {
                 if (t.getTrackType() == TrackType.APRS_MOBILE) {
-                    it.remove();
+                    tt.remove(t.getID(), t);
                 }
             } catch (Exception ex) {
                 // This is fine, carry on
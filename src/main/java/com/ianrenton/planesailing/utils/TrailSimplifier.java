@@ -0,0 +1,128 @@
+package com.ianrenton.planesailing.utils;
+
+import com.ianrenton.planesailing.app.Application;
+import com.ianrenton.planesailing.data.TimestampedPosition;
+import com.ianrenton.planesailing.data.TrackType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Simplifies track trails using the Douglas-Peucker algorithm, so that long trails
+ * made up of many nearly collinear points can be sent to clients as far fewer
+ * points, while still looking the same on the map.
+ */
+public class TrailSimplifier {
+
+    private static final String CONFIG_PATH = "comms.web-server.trail-simplification-tolerance";
+    private static final double EARTH_RADIUS_METRES = 6371000.0;
+    private static final double[] TOLERANCE_BY_TYPE = loadTolerances();
+
+    /**
+     * Get the configured simplification tolerance for a type of track, in metres,
+     * or zero if trails of that type should not be simplified.
+     */
+    public static double getTolerance(TrackType type) {
+        return (type != null) ? TOLERANCE_BY_TYPE[type.ordinal()] : 0;
+    }
+
+    /**
+     * Simplify a trail. The first and last points are always kept, and any point
+     * that is within the tolerance of the simplified line through the points kept
+     * either side of it is left out.
+     *
+     * @param points    Trail to simplify, oldest first
+     * @param tolerance Tolerance in metres. If zero, the trail is returned unchanged.
+     * @return The simplified trail, which may be the list passed in if nothing could
+     * be left out.
+     */
+    public static List<TimestampedPosition> simplify(List<TimestampedPosition> points, double tolerance) {
+        int n = points.size();
+        if (n <= 2 || tolerance <= 0) {
+            return points;
+        }
+
+        // Project onto a flat plane in metres around the first point. This is
+        // accurate enough over the distances a trail covers.
+        TimestampedPosition origin = points.get(0);
+        double cosLat = Math.cos(Math.toRadians(origin.latitude()));
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            TimestampedPosition p = points.get(i);
+            double dLon = p.longitude() - origin.longitude();
+            // Keep trails that cross the antimeridian continuous
+            if (dLon > 180) {
+                dLon -= 360;
+            } else if (dLon < -180) {
+                dLon += 360;
+            }
+            x[i] = Math.toRadians(dLon) * cosLat * EARTH_RADIUS_METRES;
+            y[i] = Math.toRadians(p.latitude() - origin.latitude()) * EARTH_RADIUS_METRES;
+        }
+
+        // Iterative rather than recursive, so very long trails can't overflow the stack
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        double toleranceSquared = tolerance * tolerance;
+        Deque<int[]> stack = new ArrayDeque<>();
+        stack.push(new int[]{0, n - 1});
+        while (!stack.isEmpty()) {
+            int[] span = stack.pop();
+            int start = span[0];
+            int end = span[1];
+            double maxDistanceSquared = -1;
+            int furthest = -1;
+            for (int i = start + 1; i < end; i++) {
+                double d = distanceToSegmentSquared(x[i], y[i], x[start], y[start], x[end], y[end]);
+                if (d > maxDistanceSquared) {
+                    maxDistanceSquared = d;
+                    furthest = i;
+                }
+            }
+            if (furthest >= 0 && maxDistanceSquared > toleranceSquared) {
+                keep[furthest] = true;
+                stack.push(new int[]{start, furthest});
+                stack.push(new int[]{furthest, end});
+            }
+        }
+
+        List<TimestampedPosition> simplified = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                simplified.add(points.get(i));
+            }
+        }
+        return simplified;
+    }
+
+    /**
+     * Get the square of the distance from a point to a line segment. The distance
+     * to the segment rather than the infinite line is used, so that a track that
+     * doubles back on itself keeps its turning point.
+     */
+    private static double distanceToSegmentSquared(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = (lengthSquared > 0) ? ((px - ax) * dx + (py - ay) * dy) / lengthSquared : 0;
+        t = Math.max(0, Math.min(1, t));
+        double cx = ax + t * dx - px;
+        double cy = ay + t * dy - py;
+        return cx * cx + cy * cy;
+    }
+
+    private static double[] loadTolerances() {
+        double[] tolerances = new double[TrackType.values().length];
+        for (TrackType type : TrackType.values()) {
+            String path = CONFIG_PATH + "." + type.name();
+            if (Application.CONFIG.hasPath(path)) {
+                tolerances[type.ordinal()] = Application.CONFIG.getDouble(path);
+            }
+        }
+        return tolerances;
+    }
+}